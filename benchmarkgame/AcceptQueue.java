@@ -0,0 +1,29 @@
+package benchmarkgame;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounds the connections accepted but not logged in yet: the accepting
+ * thread takes a place before each accept, waiting while there is none,
+ * and the connection gives it back once it is logged in or turned away.
+ */
+class AcceptQueue {
+    private final Semaphore places;
+    private final ServerMetrics metrics;
+
+    AcceptQueue(int size, ServerMetrics metrics) {
+        this.places = new Semaphore(size);
+        this.metrics = metrics;
+    }
+
+    void enter() {
+        if (places.tryAcquire())
+            return;
+        metrics.acceptQueueFull();
+        places.acquireUninterruptibly();
+    }
+
+    void leave() {
+        places.release();
+    }
+}
@@ -0,0 +1,478 @@
+package benchmarkgame;
+
+import benchmarkgame.gameutils.ServerMode;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a Server and a Driver for every combination of core configuration,
+ * server mode, number of players and moves per player, and writes one CSV
+ * row per combination, e.g. "java benchmarkgame.BenchMatrix
+ * --cores=0-1/2-3 --cores=0-3/4-7 --modes=blocking,nio --players=100,1000".
+ *
+ * A core configuration is a list of CPUs for the server and one for the
+ * Driver, as taskset -c reads them, separated by a slash, or "any" not to
+ * pin; the two should not overlap, or the Driver steals the server's CPUs.
+ * By default the server gets 1, 2, 4... of the first half of the CPUs and
+ * the Driver the second half. The server and the Driver pin themselves
+ * with --cpus; --io-cpus and --engine-cpus, given among the server
+ * options, pin some of the server's threads further.
+ *
+ * Each server listens on its own port, from --port on, and is asked for
+ * its STATS once the Driver is done. A row holds the throughput and, in
+ * open loop (--rate), the latencies the Driver measured; the service time
+ * of the moves on the server; and the CPU time of the server while the
+ * Driver ran and that of the whole Driver process. With --attack, the
+ * Driver mixes ATTACK commands into the moves and the row also holds their
+ * number and service time. Other options are those of the server, with
+ * the journal off by default.
+ */
+public class BenchMatrix {
+    private static final String[] COLUMNS = {"server_cpus", "driver_cpus", "mode", "players", "moves",
+        "loop", "target_rate", "elapsed_s", "moves_per_s", "rejected", "p50_us", "p99_us", "p99_9_us",
+        "max_us", "service_p50_us", "service_p99_us", "server_cpu_s", "driver_cpu_s", "server_cpu_us_per_move",
+        "attacks", "attack_p50_us", "attack_p99_us"};
+    /**
+     * Driver columns copied as they are.
+     */
+    private static final String[] DRIVER_COLUMNS = {"loop", "target_rate", "elapsed_s", "moves_per_s",
+        "rejected", "p50_us", "p99_us", "p99_9_us", "max_us"};
+    private static final long READY_SECONDS = 30;
+    private static final int LOG_LINES = 20;
+
+    private final List<String[]> cores;
+    private final List<String> modes;
+    private final int[] players;
+    private final int[] moves;
+    private final List<String> serverOptions;
+    private final List<String> driverOptions;
+    private final List<String> jvmOptions;
+    private final long timeoutSeconds;
+    private int port;
+
+    BenchMatrix(List<String[]> cores, List<String> modes, int[] players, int[] moves, int port,
+            List<String> serverOptions, List<String> driverOptions, List<String> jvmOptions,
+            long timeoutSeconds) {
+        this.cores = cores;
+        this.modes = modes;
+        this.players = players;
+        this.moves = moves;
+        this.port = port;
+        this.serverOptions = serverOptions;
+        this.driverOptions = driverOptions;
+        this.jvmOptions = jvmOptions;
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String[]> cores = new ArrayList<String[]>();
+        List<String> modes = Arrays.asList("blocking", "virtual", "nio");
+        int[] players = {10, 100};
+        int[] moves = {1000};
+        int port = 41317;
+        long timeout = 600;
+        String out = "matrix.csv";
+        List<String> serverOptions = new ArrayList<String>();
+        List<String> driverOptions = new ArrayList<String>(Arrays.asList("--protocol=binary"));
+        List<String> jvmOptions = new ArrayList<String>();
+        ServerConfig config = new ServerConfig();
+        boolean journal = false;
+        try {
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (!arg.startsWith("--") || eq < 0)
+                    throw new IllegalArgumentException("Option must be --name=value: " + arg);
+                String name = arg.substring(2, eq), value = arg.substring(eq + 1);
+                switch (name) {
+                    case "cores":
+                        cores.add(cores(value));
+                        break;
+                    case "modes":
+                        modes = Arrays.asList(value.toLowerCase().split(","));
+                        for (String mode : modes)
+                            ServerMode.valueOf(mode.toUpperCase());
+                        break;
+                    case "players":
+                        players = numbers(name, value);
+                        break;
+                    case "moves":
+                        moves = numbers(name, value);
+                        break;
+                    case "port":
+                        port = Integer.parseInt(value);
+                        break;
+                    case "timeout":
+                        timeout = Long.parseLong(value);
+                        break;
+                    case "out":
+                        out = value;
+                        break;
+                    case "jvm":
+                        jvmOptions.addAll(Arrays.asList(value.trim().split("\\s+")));
+                        break;
+                    case "protocol":
+                    case "batch":
+                    case "rate":
+                    case "attack":
+                    case "radius":
+                        driverOptions.add(arg);
+                        break;
+                    case "driver-threads":
+                        driverOptions.add("--threads=" + value);
+                        break;
+                    case "mode":
+                    case "max-players":
+                    case "cpus":
+                        throw new IllegalArgumentException("--" + name + " is set for each run, see --modes,"
+                                + " --players and --cores");
+                    default:
+                        config.set(name, value);
+                        journal |= name.equals("journal");
+                        serverOptions.add(arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage() + "\n\nSyntax: java benchmarkgame.BenchMatrix [--cores=S/D]..."
+                    + " [--modes=M,...] [--players=N,...] [--moves=N,...]\n"
+                    + "\t[--rate=R] [--protocol=text|binary] [--batch=N] [--attack=PERCENT] [--radius=R]"
+                    + " [--driver-threads=N] [--port=N]\n"
+                    + "\t[--timeout=S] [--jvm=OPTIONS] [--out=FILE] [server options]\n\n"
+                    + "Runs a server pinned to the CPUs S and a Driver pinned to the CPUs D (\"any\" for no pinning)\n"
+                    + "for every core configuration, mode, number of players and moves per player, and writes\n"
+                    + "a CSV row for each (default " + out + ").\n\n" + ServerConfig.usage());
+            System.exit(1);
+            return;
+        }
+        if (!journal)
+            serverOptions.add("--journal=off");
+        if (cores.isEmpty())
+            cores = defaultCores(Runtime.getRuntime().availableProcessors());
+        for (String[] c : cores) {
+            if (cpus(c[0]).intersects(cpus(c[1])))
+                System.err.println("Warning: the server CPUs " + c[0] + " and the Driver CPUs " + c[1] + " overlap");
+        }
+
+        new BenchMatrix(cores, modes, players, moves, port, serverOptions, driverOptions, jvmOptions, timeout)
+            .run(new File(out));
+        System.exit(0);
+    }
+
+    /**
+     * Runs every combination, writing each row as soon as it is measured.
+     */
+    void run(File out) throws IOException, InterruptedException {
+        try (PrintWriter csv = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(out), StandardCharsets.UTF_8))) {
+            csv.println(String.join(",", COLUMNS));
+            System.out.println(String.join(",", COLUMNS));
+            for (String[] c : cores) {
+                for (String mode : modes) {
+                    for (int n : players) {
+                        for (int m : moves) {
+                            String[] row = cell(c[0], c[1], mode, n, m, port++);
+                            if (row == null)
+                                continue;
+                            StringBuilder line = new StringBuilder();
+                            for (int i = 0; i < row.length; i++)
+                                line.append(i > 0 ? "," : "").append(quote(row[i]));
+                            csv.println(line);
+                            csv.flush();
+                            System.out.println(line);
+                        }
+                    }
+                }
+            }
+        }
+        System.out.println("Wrote " + out);
+    }
+
+    /**
+     * Runs one server and one Driver.
+     * @return the row, or null if the run failed.
+     */
+    private String[] cell(String serverCpus, String driverCpus, String mode, int n, int m, int port)
+            throws IOException, InterruptedException {
+        String what = "server_cpus=" + serverCpus + " driver_cpus=" + driverCpus + " mode=" + mode
+            + " players=" + n + " moves=" + m;
+        List<String> cmd = java("benchmarkgame.Server");
+        cmd.add("127.0.0.1");
+        cmd.add("--port=" + port);
+        cmd.add("--mode=" + mode);
+        // one more for the STATS connection
+        cmd.add("--max-players=" + (n + 1));
+        if (!serverCpus.equals("any"))
+            cmd.add("--cpus=" + serverCpus);
+        cmd.addAll(serverOptions);
+        Process server = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        Output serverOut = new Output(server, "Waiting for new players");
+        try {
+            if (!serverOut.ready.await(READY_SECONDS, TimeUnit.SECONDS) || !server.isAlive()) {
+                System.err.println(what + ": the server did not start\n" + serverOut.tail());
+                return null;
+            }
+            long cpu0 = cpuNanos(server);
+
+            cmd = java("benchmarkgame.Driver");
+            cmd.addAll(Arrays.asList(String.valueOf(n), String.valueOf(m), "127.0.0.1", String.valueOf(port),
+                    "--format=csv"));
+            if (!driverCpus.equals("any"))
+                cmd.add("--cpus=" + driverCpus);
+            cmd.addAll(driverOptions);
+            Process driver = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+            Output driverOut = new Output(driver, null);
+            if (!driver.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+                driver.destroyForcibly().waitFor();
+                System.err.println(what + ": the Driver did not finish in " + timeoutSeconds + "s");
+                return null;
+            }
+            long cpu1 = cpuNanos(server);
+            driverOut.done.await();
+            Map<String, String> result = driverOut.csv();
+            if (driver.exitValue() != 0 || result == null) {
+                System.err.println(what + ": the Driver failed\n" + driverOut.tail());
+                return null;
+            }
+            Map<String, double[]> service = serviceTimes(port);
+            double[] moved = service.containsKey("MOVE") ? service.get("MOVE") : service.get("BATCH");
+            double[] attacked = service.get("ATTACK");
+
+            String[] row = new String[COLUMNS.length];
+            row[0] = serverCpus;
+            row[1] = driverCpus;
+            row[2] = mode;
+            row[3] = String.valueOf(n);
+            row[4] = String.valueOf(m);
+            for (int i = 0; i < DRIVER_COLUMNS.length; i++)
+                row[5 + i] = result.getOrDefault(DRIVER_COLUMNS[i], "");
+            row[14] = moved == null ? "" : format(moved[0]);
+            row[15] = moved == null ? "" : format(moved[1]);
+            boolean cpu = cpu0 >= 0 && cpu1 >= 0;
+            row[16] = cpu ? format((cpu1 - cpu0) / 1e9) : "";
+            row[17] = result.getOrDefault("cpu_s", "");
+            row[18] = cpu ? format((cpu1 - cpu0) / 1e3 / Math.max(1L, (long) n * m)) : "";
+            row[19] = result.getOrDefault("attacks", "");
+            row[20] = attacked == null ? "" : format(attacked[0]);
+            row[21] = attacked == null ? "" : format(attacked[1]);
+            return row;
+        } finally {
+            server.destroy();
+            if (!server.waitFor(10, TimeUnit.SECONDS))
+                server.destroyForcibly().waitFor();
+        }
+    }
+
+    /**
+     * Command running a class of this benchmark with the same JVM and
+     * class path.
+     */
+    private List<String> java(String main) {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        cmd.addAll(jvmOptions);
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(main);
+        return cmd;
+    }
+
+    /**
+     * CPU time the process used so far, or -1 where the system does not
+     * tell.
+     */
+    private static long cpuNanos(Process p) {
+        return p.toHandle().info().totalCpuDuration().map(Duration::toNanos).orElse(-1L);
+    }
+
+    /**
+     * Median and 99th percentile service time of each command served, in
+     * microseconds, from the STATS of the server; none if it does not
+     * answer.
+     */
+    private static Map<String, double[]> serviceTimes(int port) {
+        Map<String, double[]> times = new HashMap<String, double[]>();
+        try (Socket s = new Socket("127.0.0.1", port)) {
+            s.setSoTimeout(10_000);
+            s.getOutputStream().write("STATS\n".getBytes(StandardCharsets.US_ASCII));
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+            String header = in.readLine();
+            if (header == null || !header.startsWith("Stats: "))
+                return times;
+            int lines = Integer.parseInt(header.split(" ")[1]);
+            for (int i = 0; i < lines; i++) {
+                String[] line = in.readLine().split(" ");
+                if (line[0].equals("service_us"))
+                    times.put(line[1], percentiles(line));
+            }
+        } catch (IOException | RuntimeException ex) {
+            System.err.println("No STATS from port " + port + ": " + ex);
+        }
+        return times;
+    }
+
+    private static double[] percentiles(String[] line) {
+        double[] v = new double[2];
+        for (String field : line) {
+            if (field.startsWith("p50="))
+                v[0] = Double.parseDouble(field.substring(4));
+            else if (field.startsWith("p99="))
+                v[1] = Double.parseDouble(field.substring(4));
+        }
+        return v;
+    }
+
+    /**
+     * Server and Driver CPU lists of "S/D".
+     */
+    private static String[] cores(String value) {
+        int slash = value.indexOf('/');
+        if (slash < 0)
+            throw new IllegalArgumentException("--cores must be SERVER/DRIVER CPUs: " + value);
+        String[] c = {value.substring(0, slash), value.substring(slash + 1)};
+        cpus(c[0]);
+        cpus(c[1]);
+        return c;
+    }
+
+    /**
+     * The server on 1, 2, 4... CPUs of the first half, the Driver on the
+     * second half; both on CPU 0 if there is only one.
+     */
+    static List<String[]> defaultCores(int n) {
+        List<String[]> cores = new ArrayList<String[]>();
+        if (n < 2) {
+            cores.add(new String[] {"0", "0"});
+            return cores;
+        }
+        String driver = range(n / 2, n - 1);
+        for (int k = 1; k <= n / 2; k *= 2)
+            cores.add(new String[] {range(0, k - 1), driver});
+        if (Integer.bitCount(n / 2) != 1)
+            cores.add(new String[] {range(0, n / 2 - 1), driver});
+        return cores;
+    }
+
+    private static String range(int from, int to) {
+        return from == to ? String.valueOf(from) : from + "-" + to;
+    }
+
+    /**
+     * The CPUs of a list such as "0-3,6", none for "any".
+     */
+    static BitSet cpus(String list) {
+        BitSet set = new BitSet();
+        if (list.equals("any"))
+            return set;
+        try {
+            for (String part : list.split(",")) {
+                int dash = part.indexOf('-');
+                int from = Integer.parseInt(dash < 0 ? part : part.substring(0, dash));
+                int to = dash < 0 ? from : Integer.parseInt(part.substring(dash + 1));
+                if (from < 0 || to < from)
+                    throw new IllegalArgumentException("Bad CPU range " + part);
+                set.set(from, to + 1);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad CPU list " + list);
+        }
+        return set;
+    }
+
+    private static int[] numbers(String name, String value) {
+        String[] parts = value.split(",");
+        int[] v = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            v[i] = Integer.parseInt(parts[i].trim());
+            if (v[i] < 1)
+                throw new IllegalArgumentException(name + " must be positive");
+        }
+        return v;
+    }
+
+    private static String quote(String field) {
+        return field.indexOf(',') >= 0 ? "\"" + field + "\"" : field;
+    }
+
+    private static String format(double v) {
+        return String.format(Locale.ROOT, "%.3f", v);
+    }
+
+    /**
+     * Reads the output of a child process as it comes, so that it never
+     * blocks writing it, keeping the last lines and telling when a line
+     * holding some text went by.
+     */
+    private static class Output implements Runnable {
+        final CountDownLatch ready = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        private final Process process;
+        private final String readyText;
+        private final ArrayDeque<String> last = new ArrayDeque<String>();
+        private String[] header;
+        private String[] values;
+
+        Output(Process process, String readyText) {
+            this.process = process;
+            this.readyText = readyText;
+            Thread t = new Thread(this, "output-" + process.pid());
+            t.setDaemon(true);
+            t.start();
+        }
+
+        public void run() {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                for (String line; (line = in.readLine()) != null; ) {
+                    if (readyText != null && line.contains(readyText))
+                        ready.countDown();
+                    synchronized (this) {
+                        if (header != null && values == null)
+                            values = line.split(",", -1);
+                        else if (line.startsWith("loop,"))
+                            header = line.split(",");
+                        last.add(line);
+                        if (last.size() > LOG_LINES)
+                            last.poll();
+                    }
+                }
+            } catch (IOException ex) {
+                // the process is gone
+            } finally {
+                ready.countDown();
+                done.countDown();
+            }
+        }
+
+        /**
+         * The CSV row the Driver printed, by column, or null.
+         */
+        synchronized Map<String, String> csv() {
+            if (header == null || values == null || values.length != header.length)
+                return null;
+            Map<String, String> row = new HashMap<String, String>();
+            for (int i = 0; i < header.length; i++)
+                row.put(header[i], values[i]);
+            return row;
+        }
+
+        synchronized String tail() {
+            return String.join("\n", last);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package benchmarkgame;
+
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The toroidal game map, stored in square chunks that only exist where
+ * there are players. A chunk is allocated the first time a player enters it
+ * and released when its last player leaves, so the memory used follows the
+ * number of players rather than the area of the world.
+ *
+ * Chunks have the size of a lock region, so every chunk is guarded by exactly
+ * one stripe: callers must hold the stripe of the cells they read or write.
+ * Worlds with few enough chunks keep them in a flat directory; larger ones
+ * keep, for every stripe, a hash table of the chunks of its regions.
+ *
+ * Maps of up to INDEX_LIMIT positions also keep a FreeCellIndex, so a free
+ * position is found in O(log n) even when the map is nearly full. Larger
+ * maps must stay at most half full and are simply sampled, which then takes
+ * fewer than two tries on average.
+ */
+class Board {
+    /**
+     * Marks the free positions of the game map.
+     */
+    public static final int FREE = -1;
+    /**
+     * Above this number of chunks the flat directory is replaced by hashing.
+     */
+    private static final long DIRECTORY_LIMIT = 1 << 20;
+    /**
+     * Largest map with a free position index (8 MB of bits).
+     */
+    static final long INDEX_LIMIT = 1 << 26;
+
+    public final int width;
+    public final int height;
+    private final int chunkSide;
+    private final int chunkCells;
+    private final int chunksPerColumn;
+    private final int[][] directory;
+    private final ChunkMap[] maps;
+    private final LockStripes stripes;
+    private final AtomicLong allocated = new AtomicLong();
+    private final FreeCellIndex index;
+
+    /**
+     * @param width number of columns (x) of the map.
+     * @param height number of rows (y) of the map.
+     * @param stripes locks guarding the regions, their side is the chunk side.
+     * @param maxPlayers most positions ever occupied at once.
+     */
+    public Board(int width, int height, LockStripes stripes, int maxPlayers) {
+        this.width = width;
+        this.height = height;
+        this.stripes = stripes;
+        this.chunkSide = stripes.regionSide();
+        this.chunkCells = chunkSide * chunkSide;
+        this.chunksPerColumn = (height + chunkSide - 1) / chunkSide;
+        long chunks = (long) ((width + chunkSide - 1) / chunkSide) * chunksPerColumn;
+        if (chunks <= DIRECTORY_LIMIT) {
+            directory = new int[(int) chunks][];
+            maps = null;
+        } else {
+            directory = null;
+            maps = new ChunkMap[stripes.size()];
+            for (int i = 0; i < maps.length; i++)
+                maps[i] = new ChunkMap();
+        }
+        long cells = (long) width * height;
+        if (cells <= INDEX_LIMIT) {
+            index = new FreeCellIndex((int) cells);
+        } else if (2L * maxPlayers > cells) {
+            throw new IllegalArgumentException(
+                "Maps larger than " + INDEX_LIMIT + " positions can be at most half full");
+        } else {
+            index = null;
+        }
+    }
+
+    /**
+     * Returns the player in the position, or FREE.
+     */
+    public int get(int x, int y) {
+        int[] chunk = chunk(x, y);
+        if (chunk == null)
+            return FREE;
+        return chunk[(x % chunkSide) * chunkSide + (y % chunkSide)];
+    }
+
+    /**
+     * Puts a player in the position, or frees it.
+     */
+    public void set(int x, int y, int id) {
+        int[] chunk = chunk(x, y);
+        if (chunk == null) {
+            if (id == FREE)
+                return;
+            chunk = new int[chunkCells + 1];
+            Arrays.fill(chunk, 0, chunkCells, FREE);
+            store(x, y, chunk);
+            allocated.incrementAndGet();
+        }
+        int i = (x % chunkSide) * chunkSide + (y % chunkSide);
+        int old = chunk[i];
+        chunk[i] = id;
+        // the last slot counts the players in the chunk
+        if (old == FREE && id != FREE) {
+            chunk[chunkCells]++;
+            if (index != null)
+                index.occupy(x * height + y);
+        } else if (old != FREE && id == FREE) {
+            if (index != null)
+                index.release(x * height + y);
+            if (--chunk[chunkCells] == 0) {
+                store(x, y, null);
+                allocated.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Picks a random position that was free when looked at. It is read 
+     * without any stripe, so the caller must check it again under its own.
+     *
+     * @return the position packed by Server.pack, or -1 if none was found.
+     */
+    public long randomFree(RandomGenerator random) {
+        if (index == null)
+            return Server.pack(random.nextInt(width), random.nextInt(height));
+        int cell = index.randomFree(random);
+        if (cell < 0)
+            return -1;
+        return Server.pack(cell / height, cell % height);
+    }
+
+    /**
+     * Same as randomFree, among the columns from firstX (included) to endX
+     * (excluded) only.
+     */
+    public long randomFree(RandomGenerator random, int firstX, int endX) {
+        if (index == null)
+            return Server.pack(firstX + random.nextInt(endX - firstX), random.nextInt(height));
+        int cell = index.randomFree(random, firstX * height, endX * height);
+        if (cell < 0)
+            return -1;
+        return Server.pack(cell / height, cell % height);
+    }
+
+    /**
+     * Number of chunks currently allocated.
+     */
+    public long allocatedChunks() {
+        return allocated.get();
+    }
+
+    /**
+     * Rough number of bytes held by the map: the chunks plus the directory
+     * or hash tables that index them.
+     */
+    public long footprintBytes() {
+        long chunkBytes = 16 + 4L * (chunkCells + 1);
+        long index;
+        if (directory != null) {
+            index = 16 + 4L * directory.length;
+        } else {
+            index = 0;
+            for (ChunkMap m : maps)
+                index += m.footprintBytes();
+        }
+        return allocated.get() * chunkBytes + index
+            + (this.index != null ? (long) width * height / 8 : 0);
+    }
+
+    private long key(int x, int y) {
+        return (long) (x / chunkSide) * chunksPerColumn + (y / chunkSide);
+    }
+
+    private int[] chunk(int x, int y) {
+        if (directory != null)
+            return directory[(int) key(x, y)];
+        return maps[stripes.stripeOf(x, y)].get(key(x, y));
+    }
+
+    private void store(int x, int y, int[] chunk) {
+        if (directory != null)
+            directory[(int) key(x, y)] = chunk;
+        else if (chunk != null)
+            maps[stripes.stripeOf(x, y)].put(key(x, y), chunk);
+        else
+            maps[stripes.stripeOf(x, y)].remove(key(x, y));
+    }
+}
+
+/**
+ * Open addressing hash table from chunk number to chunk, with linear probing
+ * and backward-shift deletion so it never fills with tombstones.
+ */
+class ChunkMap {
+    private long[] keys = new long[16];
+    private int[][] values = new int[16][];
+    private int size = 0;
+
+    public int[] get(long key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask)
+            if (keys[i] == key)
+                return values[i];
+        return null;
+    }
+
+    public void put(long key, int[] value) {
+        if (2 * (size + 1) > keys.length)
+            resize(keys.length * 2);
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (values[i] != null && keys[i] != key)
+            i = (i + 1) & mask;
+        if (values[i] == null)
+            size++;
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    public void remove(long key) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (values[i] != null && keys[i] != key)
+            i = (i + 1) & mask;
+        if (values[i] == null)
+            return;
+        size--;
+        // shift back the entries that probed past the removed one
+        int hole = i;
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = slot(keys[j], mask);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        values[hole] = null;
+    }
+
+    public long footprintBytes() {
+        return 32 + 8L * keys.length + 4L * values.length;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[][] oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity][];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++)
+            if (oldValues[i] != null)
+                put(oldKeys[i], oldValues[i]);
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+}
@@ -0,0 +1,169 @@
+package benchmarkgame;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Gives readers consistent views of the map without ever making a mover
+ * wait, at a cost proportional to the players that moved since the last
+ * view.
+ *
+ * Time is cut in epochs. Every change of the map (a committed push chain,
+ * a spawn, a removal) is made inside enter/exit, which pins the current
+ * epoch, and records the new position of each player it moves in the
+ * buffer of that epoch's parity, listing the player the first time. A
+ * snapshot starts the next epoch, so new changes go to the other buffer,
+ * waits for the changes already pinned to the old epoch to exit, and
+ * applies the players listed there to a private mirror of the map.
+ *
+ * The cut is consistent: changes touching the same positions are made
+ * under the same stripes, so they read the epoch in the order they are
+ * made, and a change can never be in the snapshot while an earlier
+ * conflicting one is not. Readers only wait for each other.
+ */
+class BoardSnapshots {
+    /**
+     * Counters of pinned changes per parity, spread over padded slots so
+     * movers do not share a cache line.
+     */
+    private static final int SLOTS = 64;
+    private static final int PAD = 8;
+    private static final VarHandle FLAGS = MethodHandles.arrayElementVarHandle(byte[].class);
+
+    private final int width;
+    private final int height;
+    private final int rows;
+    private final int cols;
+    private volatile long epoch = 0;
+    private final AtomicLongArray[] pinned = {
+        new AtomicLongArray(SLOTS * PAD), new AtomicLongArray(SLOTS * PAD)
+    };
+    /**
+     * Per parity: the last position given to each player during the epoch,
+     * whether it is listed, and the list.
+     */
+    private final long[][] latest;
+    private final byte[][] listed;
+    private final int[][] changed;
+    private final AtomicInteger[] changedCount = { new AtomicInteger(), new AtomicInteger() };
+    /**
+     * The map as of the last snapshot, guarded by readLock: the position of
+     * each player and the positions rendered.
+     */
+    private final ReentrantLock readLock = new ReentrantLock();
+    private final long[] mirror;
+    private final boolean[] window;
+    private int players = 0;
+
+    /**
+     * @param width map width.
+     * @param height map height.
+     * @param maxPlayers number of player IDs.
+     */
+    public BoardSnapshots(int width, int height, int maxPlayers) {
+        this.width = width;
+        this.height = height;
+        this.rows = Math.min(height, Server.RENDER_LIMIT);
+        this.cols = Math.min(width, Server.RENDER_LIMIT);
+        latest = new long[2][maxPlayers];
+        listed = new byte[2][maxPlayers];
+        changed = new int[2][maxPlayers];
+        mirror = new long[maxPlayers];
+        Arrays.fill(mirror, Server.NOT_MOVED);
+        window = new boolean[rows * cols];
+    }
+
+    /**
+     * Pins the current epoch before changing the map.
+     * @param id the player making the change, spreading the counters.
+     * @return the epoch to hand to changed and exit.
+     */
+    public long enter(int id) {
+        int slot = (id & (SLOTS - 1)) * PAD;
+        while (true) {
+            long e = epoch;
+            AtomicLongArray counters = pinned[(int) e & 1];
+            counters.getAndIncrement(slot);
+            // a snapshot that moved on meanwhile may not have seen us
+            if (epoch == e)
+                return e;
+            counters.getAndDecrement(slot);
+        }
+    }
+
+    /**
+     * Records the new position of a player, packed by Server.pack, or
+     * Server.NOT_MOVED once it left the map.
+     */
+    public void changed(long e, int id, long pos) {
+        int p = (int) e & 1;
+        latest[p][id] = pos;
+        if ((byte) FLAGS.getOpaque(listed[p], id) == 0
+                && FLAGS.compareAndSet(listed[p], id, (byte) 0, (byte) 1))
+            changed[p][changedCount[p].getAndIncrement()] = id;
+    }
+
+    /**
+     * Unpins the epoch returned by enter.
+     */
+    public void exit(long e, int id) {
+        pinned[(int) e & 1].getAndDecrement((id & (SLOTS - 1)) * PAD);
+    }
+
+    /**
+     * Takes a consistent view of the map as it is now.
+     */
+    public Snapshot take() {
+        readLock.lock();
+        try {
+            long e = epoch;
+            epoch = e + 1;
+            int p = (int) e & 1;
+            AtomicLongArray counters = pinned[p];
+            for (int slot = 0; slot < SLOTS * PAD; slot += PAD)
+                while (counters.get(slot) != 0)
+                    Thread.onSpinWait();
+            // every player leaves its old position before any takes its new
+            // one, as one may move into the position another one left
+            int n = changedCount[p].get();
+            for (int i = 0; i < n; i++)
+                leave(changed[p][i]);
+            for (int i = 0; i < n; i++) {
+                int id = changed[p][i];
+                arrive(id, latest[p][id]);
+                listed[p][id] = 0;
+            }
+            changedCount[p].set(0);
+            return new Snapshot(e, System.currentTimeMillis(), width, height, players,
+                    rows, cols, window.clone());
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private void leave(int id) {
+        if (mirror[id] != Server.NOT_MOVED) {
+            mark(mirror[id], false);
+            mirror[id] = Server.NOT_MOVED;
+            players--;
+        }
+    }
+
+    private void arrive(int id, long pos) {
+        if (pos != Server.NOT_MOVED) {
+            mark(pos, true);
+            mirror[id] = pos;
+            players++;
+        }
+    }
+
+    private void mark(long pos, boolean taken) {
+        int x = Server.unpackX(pos), y = Server.unpackY(pos);
+        if (x < cols && y < rows)
+            window[y * cols + x] = taken;
+    }
+}
@@ -0,0 +1,410 @@
+package benchmarkgame;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Optimistic alternative to the lock-based engine: the map is a flat array
+ * of cells changed with compare-and-set only, and no move takes a lock.
+ *
+ * A move first reserves every cell it is going to change, by swapping the
+ * content of the cell for a reserved mark: its own cell, its target and,
+ * for a push, the cell of each pushed player and the free cell the chain
+ * ends on. A move to a free cell thus takes two compareAndSets. A cell
+ * that changed or is reserved by another move makes the move give its
+ * cells back and start over after a short pause, so no move ever waits
+ * with cells reserved and moves cannot deadlock. Once its cells are
+ * reserved a move cannot fail: it records the new positions, then writes
+ * the final content of each cell, which releases it.
+ *
+ * Reservations exclude each other like the stripes of the lock-based
+ * engine, so changes of the same cells enter snapshot epochs in the order
+ * they are made. The push rules are those of PushResolver: the same seed
+ * and the same moves give the same chains.
+ */
+class CasEngine {
+    /**
+     * Outcomes of a move attempt.
+     */
+    private static final int MOVED = 0, BLOCKED = 1, CONFLICT = 2;
+    private static final int FREE = Board.FREE;
+    private static final VarHandle CELLS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle POSITIONS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final int width;
+    private final int height;
+    /**
+     * The player in each position, FREE, or reserved(content) while a move
+     * changes it; position (x, y) is cell x * height + y.
+     */
+    private final int[] cells;
+    /**
+     * Position of each player packed by Server.pack, or Server.NOT_MOVED.
+     */
+    private final long[] positions;
+    /**
+     * Free cells, on maps of up to Board.INDEX_LIMIT positions; larger
+     * ones are at most half full and sampled.
+     */
+    private final FreeCellIndex index;
+    private final int maxDepth;
+    private final long seed;
+    private final StateJournal journal;
+    private final BoardSnapshots snapshots;
+    private final NeighborIndex neighbors;
+    private final PushNotices notices;
+    private final ThreadLocal<Reservation> reservations = ThreadLocal.withInitial(Reservation::new);
+    /**
+     * Committed moves by number of players pushed, moves refused because
+     * of their chain, and attempts started over because of another move.
+     */
+    private final LongAdder[] chainLengths;
+    private final LongAdder blocked = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+
+    /**
+     * @param width number of columns of the map.
+     * @param height number of rows of the map.
+     * @param maxPlayers number of player IDs.
+     * @param maxDepth most players a single move may push.
+     * @param seed seed of the push destinations.
+     * @param journal told about every player moved, or null.
+     * @param snapshots told about every player moved.
+     * @param neighbors told about every player moved.
+     * @param notices told about every player pushed.
+     */
+    public CasEngine(int width, int height, int maxPlayers, int maxDepth, long seed,
+            StateJournal journal, BoardSnapshots snapshots, NeighborIndex neighbors,
+            PushNotices notices) {
+        long size = (long) width * height;
+        if (size > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("The cas engine keeps a flat map of at most 2^31 positions");
+        this.width = width;
+        this.height = height;
+        this.cells = new int[(int) size];
+        Arrays.fill(cells, FREE);
+        this.positions = new long[maxPlayers];
+        Arrays.fill(positions, Server.NOT_MOVED);
+        this.index = size <= Board.INDEX_LIMIT ? new FreeCellIndex((int) size) : null;
+        this.maxDepth = maxDepth;
+        this.seed = seed;
+        this.journal = journal;
+        this.snapshots = snapshots;
+        this.neighbors = neighbors;
+        this.notices = notices;
+        this.chainLengths = new LongAdder[maxDepth + 1];
+        for (int i = 0; i <= maxDepth; i++)
+            chainLengths[i] = new LongAdder();
+    }
+
+    /**
+     * The mark of a reserved cell holding the given content.
+     */
+    private static int reserved(int content) {
+        return -3 - content;
+    }
+
+    private int cell(int x, int y) {
+        return x * height + y;
+    }
+
+    /**
+     * Returns the player in the position, FREE, or a value below FREE while
+     * a move changes it.
+     */
+    public int get(int x, int y) {
+        return (int) CELLS.getAcquire(cells, cell(x, y));
+    }
+
+    /**
+     * Position of the player packed by Server.pack, or Server.NOT_MOVED.
+     */
+    public long position(int id) {
+        return (long) POSITIONS.getAcquire(positions, id);
+    }
+
+    /**
+     * Places a player whose room on the map is reserved on a random free
+     * position.
+     */
+    public void spawn(int id) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (true) {
+            int c = index != null ? index.randomFree(random) : random.nextInt(cells.length);
+            if (c >= 0 && occupy(id, c))
+                return;
+        }
+    }
+
+    /**
+     * Places a player on a given position, if it is free.
+     */
+    public boolean place(int id, int x, int y) {
+        return occupy(id, cell(x, y));
+    }
+
+    private boolean occupy(int id, int c) {
+        if (!CELLS.compareAndSet(cells, c, FREE, reserved(FREE)))
+            return false;
+        long pos = Server.pack(c / height, c % height);
+        long epoch = snapshots.enter(id);
+        POSITIONS.setRelease(positions, id, pos);
+        snapshots.changed(epoch, id, pos);
+        neighbors.changed(id, pos);
+        snapshots.exit(epoch, id);
+        if (journal != null)
+            journal.changed(id, pos);
+        CELLS.setRelease(cells, c, id);
+        if (index != null)
+            index.occupy(c);
+        return true;
+    }
+
+    /**
+     * Takes the player off the map.
+     * @return false if it was not on it.
+     */
+    public boolean remove(int id) {
+        for (int attempt = 0; ; attempt++) {
+            long pos = position(id);
+            if (pos == Server.NOT_MOVED)
+                return false;
+            int c = cell(Server.unpackX(pos), Server.unpackY(pos));
+            // fails while a push moves the player
+            if (CELLS.compareAndSet(cells, c, id, reserved(id))) {
+                long epoch = snapshots.enter(id);
+                POSITIONS.setRelease(positions, id, Server.NOT_MOVED);
+                snapshots.changed(epoch, id, Server.NOT_MOVED);
+                neighbors.changed(id, Server.NOT_MOVED);
+                snapshots.exit(epoch, id);
+                if (journal != null)
+                    journal.changed(id, Server.NOT_MOVED);
+                CELLS.setRelease(cells, c, FREE);
+                if (index != null)
+                    index.release(c);
+                return true;
+            }
+            backoff(attempt);
+        }
+    }
+
+    /**
+     * Moves the player by (dx, dy), pushing the players in the way.
+     * @return the new position, packed by Server.pack, or Server.NOT_MOVED.
+     */
+    public long move(int id, int dx, int dy) {
+        Reservation r = reservations.get();
+        for (int attempt = 0; ; attempt++) {
+            switch (attempt(id, dx, dy, r)) {
+                case MOVED:
+                    return Server.pack(r.chain.toX[0], r.chain.toY[0]);
+                case BLOCKED:
+                    return Server.NOT_MOVED;
+                default:
+                    conflicts.increment();
+                    backoff(attempt);
+            }
+        }
+    }
+
+    /**
+     * Applies a batch of moves, in order.
+     * @return the number of moves made.
+     */
+    public int moveBatch(int id, int[] dx, int[] dy, int n) {
+        int moved = 0;
+        for (int i = 0; i < n; i++)
+            if (move(id, dx[i], dy[i]) != Server.NOT_MOVED)
+                moved++;
+        return moved;
+    }
+
+    /**
+     * Reserves the cells of a move along its push chain, the same chain
+     * PushResolver would find, and commits it.
+     *
+     * @return MOVED, BLOCKED, or CONFLICT with nothing reserved if another
+     * move got in the way.
+     */
+    private int attempt(int id, int dx, int dy, Reservation r) {
+        long pos = position(id);
+        if (pos == Server.NOT_MOVED)
+            return BLOCKED;
+        int x = Server.unpackX(pos), y = Server.unpackY(pos);
+        Chain chain = r.chain;
+        chain.length = 0;
+        // holding its own cell keeps the mover from being pushed meanwhile
+        if (!reserve(r, cell(x, y), id))
+            return CONFLICT;
+        int member = id, px = x, py = y;
+        int tx = PushResolver.wrap(x + dx, width), ty = PushResolver.wrap(y + dy, height);
+        while (true) {
+            chain.add(member, tx, ty);
+            int c = cell(tx, ty);
+            int other = (int) CELLS.getAcquire(cells, c);
+            if (other < FREE || !reserve(r, c, other))
+                return rollback(r, CONFLICT);
+            if (other == FREE) {
+                commit(r);
+                return MOVED;
+            }
+            if (chain.length > maxDepth)
+                return rollback(r, BLOCKED);
+            int d = destination(other, tx, ty, px, py, chain);
+            if (d < 0)
+                return rollback(r, BLOCKED);
+            member = other;
+            px = tx;
+            py = ty;
+            tx = PushResolver.wrap(tx + PushResolver.DX[d], width);
+            ty = PushResolver.wrap(ty + PushResolver.DY[d], height);
+        }
+    }
+
+    /**
+     * Reserves a cell if it still holds the expected content.
+     */
+    private boolean reserve(Reservation r, int c, int expected) {
+        if (!CELLS.compareAndSet(cells, c, expected, reserved(expected)))
+            return false;
+        r.add(c, expected);
+        return true;
+    }
+
+    /**
+     * Gives every reserved cell its content back.
+     * @return the outcome, for the caller to return.
+     */
+    private int rollback(Reservation r, int outcome) {
+        for (int i = r.count - 1; i >= 0; i--)
+            CELLS.setRelease(cells, r.cells[i], r.contents[i]);
+        r.count = 0;
+        if (outcome == BLOCKED)
+            blocked.increment();
+        return outcome;
+    }
+
+    /**
+     * Applies a chain whose cells are all reserved: the mover's cell, the
+     * first one reserved, ends up free and every player in the position
+     * given by the chain, which releases the cells.
+     */
+    private void commit(Reservation r) {
+        Chain chain = r.chain;
+        int mover = chain.ids[0];
+        long epoch = snapshots.enter(mover);
+        for (int i = chain.length - 1; i >= 0; i--) {
+            int id = chain.ids[i];
+            long pos = Server.pack(chain.toX[i], chain.toY[i]);
+            POSITIONS.setRelease(positions, id, pos);
+            snapshots.changed(epoch, id, pos);
+            neighbors.changed(id, pos);
+            if (journal != null)
+                journal.changed(id, pos);
+        }
+        snapshots.exit(epoch, mover);
+        for (int i = chain.length - 1; i >= 0; i--)
+            CELLS.setRelease(cells, cell(chain.toX[i], chain.toY[i]), chain.ids[i]);
+        CELLS.setRelease(cells, r.cells[0], FREE);
+        if (index != null) {
+            index.occupy(r.cells[r.count - 1]);
+            index.release(r.cells[0]);
+        }
+        r.count = 0;
+        for (int i = 1; i < chain.length; i++)
+            notices.pushed(chain.ids[i]);
+        chainLengths[chain.length - 1].increment();
+    }
+
+    /**
+     * Picks where a pushed player goes, like PushResolver: among the
+     * positions around (x, y), skipping its pusher's position (px, py) and
+     * the position of every player of the chain.
+     *
+     * @return an index into PushResolver.DX/DY, or -1.
+     */
+    private int destination(int id, int x, int y, int px, int py, Chain chain) {
+        int start = PushResolver.firstDirection(seed, id, x, y, px, py);
+        for (int k = 0; k < 8; k++) {
+            int d = (start + k) & 7;
+            int nx = PushResolver.wrap(x + PushResolver.DX[d], width);
+            int ny = PushResolver.wrap(y + PushResolver.DY[d], height);
+            if (nx == px && ny == py)
+                continue;
+            long at = Server.pack(nx, ny);
+            boolean taken = false;
+            for (int i = 0; i < chain.length && !taken; i++)
+                taken = position(chain.ids[i]) == at;
+            if (!taken)
+                return d;
+        }
+        return -1;
+    }
+
+    /**
+     * Pauses before an attempt is made again: spinning at first, as the
+     * cells of a move are only held for a few writes, then yielding, then
+     * sleeping for a random while, in case the thread holding them is not
+     * running.
+     */
+    private static void backoff(int attempt) {
+        if (attempt < 2)
+            Thread.onSpinWait();
+        else if (attempt < 6)
+            Thread.yield();
+        else
+            LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(1_000L << Math.min(attempt - 6, 10)));
+    }
+
+    /**
+     * Number of committed moves by number of players pushed, from 0 to
+     * maxDepth.
+     */
+    public long[] chainLengths() {
+        long[] out = new long[chainLengths.length];
+        for (int i = 0; i < out.length; i++)
+            out[i] = chainLengths[i].sum();
+        return out;
+    }
+
+    public long blockedMoves() {
+        return blocked.sum();
+    }
+
+    /**
+     * Attempts started over because another move held a cell.
+     */
+    public long conflicts() {
+        return conflicts.sum();
+    }
+
+    public long footprintBytes() {
+        return 4L * cells.length + 8L * positions.length
+            + (index != null ? (long) cells.length / 8 : 0);
+    }
+}
+
+/**
+ * The cells a move reserved, with their content before, and its push
+ * chain. Reused by each thread, so a move does not allocate.
+ */
+class Reservation {
+    final Chain chain = new Chain();
+    int[] cells = new int[16];
+    int[] contents = new int[16];
+    int count = 0;
+
+    void add(int cell, int content) {
+        if (count == cells.length) {
+            cells = Arrays.copyOf(cells, count * 2);
+            contents = Arrays.copyOf(contents, count * 2);
+        }
+        cells[count] = cell;
+        contents[count] = content;
+        count++;
+    }
+}
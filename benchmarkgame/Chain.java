@@ -0,0 +1,33 @@
+package benchmarkgame;
+
+import java.util.Arrays;
+
+/**
+ * The players of a push chain and where each one goes, the mover first.
+ * Reused by each thread, so resolving a move does not allocate.
+ */
+class Chain {
+    int[] ids = new int[16];
+    int[] toX = new int[16];
+    int[] toY = new int[16];
+    int length = 0;
+
+    void add(int id, int x, int y) {
+        if (length == ids.length) {
+            ids = Arrays.copyOf(ids, length * 2);
+            toX = Arrays.copyOf(toX, length * 2);
+            toY = Arrays.copyOf(toY, length * 2);
+        }
+        ids[length] = id;
+        toX[length] = x;
+        toY[length] = y;
+        length++;
+    }
+
+    boolean contains(int id) {
+        for (int i = 0; i < length; i++)
+            if (ids[i] == id)
+                return true;
+        return false;
+    }
+}
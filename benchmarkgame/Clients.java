@@ -1,10 +1,21 @@
 package benchmarkgame;
 
+import benchmarkgame.gameutils.BinaryProtocol;
+import benchmarkgame.gameutils.Command;
 import benchmarkgame.gameutils.Move;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Random;
 import java.util.Scanner;
 
@@ -18,6 +29,62 @@ public class Clients {
      */
     public Socket socket;
     private Scanner scanner;
+    /**
+     * Whether the player speaks the binary protocol instead of text lines.
+     */
+    public final boolean binary;
+    /**
+     * Bytes written to and read from the server so far.
+     */
+    public long bytesSent = 0;
+    public long bytesReceived = 0;
+    /**
+     * Percentage of the commands sent as ATTACK instead of a move, the
+     * radius of the attacks, and the attacks sent so far.
+     */
+    private int attackPercent = 0;
+    private int radius = 0;
+    public long attacksSent = 0;
+    /**
+     * Whether the server answered that it has no room for the player.
+     */
+    public boolean turnedAway = false;
+    /**
+     * Buffered output to the server, kept for the life of the connection;
+     * each command is flushed as soon as it is complete.
+     */
+    private OutputStream out;
+    /**
+     * Buffered input from the server, opened by the first readReply.
+     */
+    private InputStream replyIn;
+    /**
+     * Command being sent, reused.
+     */
+    private ByteBuffer command;
+    /**
+     * Text of each MOVE command by Move ordinal, and of the other commands.
+     */
+    private static final byte[][] MOVE_LINES = new byte[Move.values().length][];
+    private static final byte[][] MOVE_NAMES = new byte[Move.values().length][];
+    private static final byte[] BATCH = "BATCH".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] SHOW = "SHOW\n".getBytes(StandardCharsets.ISO_8859_1);
+    /**
+     * Start of the text reply of a server with no room for the player.
+     */
+    static final byte[] FULL = "Server full.".getBytes(StandardCharsets.ISO_8859_1);
+    /**
+     * Text of the ATTACK command by radius.
+     */
+    private static final byte[][] ATTACK_LINES = new byte[BinaryProtocol.MAX_RADIUS + 1][];
+    static {
+        for (Move m : Move.values()) {
+            MOVE_LINES[m.ordinal()] = ("MOVE " + m + "\n").getBytes(StandardCharsets.ISO_8859_1);
+            MOVE_NAMES[m.ordinal()] = (" " + m).getBytes(StandardCharsets.ISO_8859_1);
+        }
+        for (int r = 0; r <= BinaryProtocol.MAX_RADIUS; r++)
+            ATTACK_LINES[r] = ("ATTACK " + r + "\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
     /**
      * An instance of the Random class that generates a stream of pseudorandom 
      * numbers that is used to generate movements for the players ramdomly. 
@@ -33,10 +100,40 @@ public class Clients {
      * @throws Exception
      */
     public Clients(InetAddress serverAddress, int serverPort) throws Exception {
+        this(serverAddress, serverPort, false);
+    }
+
+    /**
+     * Same as above, optionally opening the binary protocol handshake (see 
+     * {@link BinaryProtocol}); the server's answer is read with the replies.
+     *
+     * @param serverAddress IP address of the server
+     * @param serverPort server port number
+     * @param binary whether to use the binary protocol
+     * @throws Exception
+     */
+    public Clients(InetAddress serverAddress, int serverPort, boolean binary) throws Exception {
         this.socket = new Socket(serverAddress, serverPort);
         this.scanner = new Scanner(System.in);
+        this.binary = binary;
+        this.out = new BufferedOutputStream(this.socket.getOutputStream());
+        if (binary) {
+            out.write(BinaryProtocol.HELLO);
+            out.write(BinaryProtocol.VERSION);
+            out.flush();
+            bytesSent += 2;
+        }
     }
     
+    /**
+     * Sends the given percentage of the commands as "ATTACK radius"
+     * instead of a move; only without batches.
+     */
+    public void mixAttacks(int percent, int radius) {
+        this.attackPercent = percent;
+        this.radius = radius;
+    }
+
     /**
      * Chooses a movement ramdomly among the possible ones.
      *
@@ -59,12 +156,225 @@ public class Clients {
      * @throws InterruptedException
      */
     public void startToMove(int movesPerClient) throws IOException, InterruptedException {       
-        for(int i=0; i<movesPerClient; i++) {
-            Move m = randomEnum(Move.class);
-            String send = "MOVE " + m;
-            PrintWriter out = new PrintWriter(this.socket.getOutputStream(), true);
-            out.println(send);
-            out.flush();
+        startToMove(movesPerClient, 1);
+    }
+
+    /**
+     * Same as above, sending the moves in batches of up to batchSize moves
+     * that the server answers once each.
+     * Command syntax: "BATCH (direction) (direction) ..." - e.g. "BATCH UP DL"
+     *
+     * @param movesPerClient number of movements per player
+     * @param batchSize most movements per batch, 1 sends single moves
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void startToMove(int movesPerClient, int batchSize) throws IOException, InterruptedException {
+        for(int i=0; i<movesPerClient; i += batchSize)
+            send(Math.min(batchSize, movesPerClient - i), batchSize);
+    }
+
+    /**
+     * Sends a single command of n random movements: a MOVE when batches are
+     * not used, else a BATCH; or an ATTACK, as often as mixAttacks says.
+     *
+     * @param n number of movements
+     * @param batchSize most movements per batch, 1 sends single moves
+     * @throws IOException
+     */
+    public void send(int n, int batchSize) throws IOException {
+        if (command == null)
+            command = ByteBuffer.allocate(maxCommandSize(batchSize));
+        command.clear();
+        if (attacks(random, attackPercent)) {
+            bytesSent += encodeAttack(command, binary, radius);
+            attacksSent++;
+        } else {
+            bytesSent += encode(command, binary, n, batchSize, random);
+        }
+        out.write(command.array(), 0, command.position());
+        out.flush();
+    }
+
+    /**
+     * Longest command sent with the given batch size, in either protocol.
+     */
+    static int maxCommandSize(int batchSize) {
+        int longest = 0;
+        for (byte[] line : MOVE_LINES)
+            longest = Math.max(longest, line.length);
+        longest = Math.max(longest, ATTACK_LINES[BinaryProtocol.MAX_RADIUS].length);
+        return Math.max(longest, BATCH.length + batchSize * longest + 1);
+    }
+
+    /**
+     * Whether the next command is an attack, drawn with the given
+     * percentage.
+     */
+    static boolean attacks(Random random, int attackPercent) {
+        return attackPercent > 0 && random.nextInt(100) < attackPercent;
+    }
+
+    /**
+     * Encodes an ATTACK command of the given radius into buf.
+     *
+     * @return number of bytes written
+     */
+    static int encodeAttack(ByteBuffer buf, boolean binary, int radius) {
+        if (binary) {
+            buf.put((byte) Command.ATTACK.ordinal()).put((byte) radius);
+            return BinaryProtocol.REQUEST_SIZE;
+        }
+        buf.put(ATTACK_LINES[radius]);
+        return ATTACK_LINES[radius].length;
+    }
+
+    /**
+     * Encodes a single command of n random movements into buf: a MOVE when
+     * batches are not used, else a BATCH. Shared with the multiplexed
+     * players of the Driver.
+     *
+     * @return number of bytes written
+     */
+    static int encode(ByteBuffer buf, boolean binary, int n, int batchSize, Random random) {
+        int start = buf.position();
+        Move[] moves = Move.values();
+        if (batchSize == 1) {
+            int m = random.nextInt(moves.length);
+            if (binary)
+                buf.put((byte) Command.MOVE.ordinal()).put((byte) m);
+            else
+                buf.put(MOVE_LINES[m]);
+        } else if (binary) {
+            buf.put((byte) Command.BATCH.ordinal()).put((byte) n);
+            for (int k = 0; k < n; k++)
+                buf.put((byte) random.nextInt(moves.length));
+        } else {
+            buf.put(BATCH);
+            for (int k = 0; k < n; k++)
+                buf.put(MOVE_NAMES[random.nextInt(moves.length)]);
+            buf.put((byte) '\n');
+        }
+        return buf.position() - start;
+    }
+
+    /**
+     * Reads the next reply to a move or batch without printing it, for the
+     * open-loop mode of the Driver.
+     *
+     * @return false if the server closed the connection or had no room
+     * for the player
+     * @throws IOException
+     */
+    public boolean readReply() throws IOException {
+        if (replyIn == null) {
+            replyIn = new BufferedInputStream(socket.getInputStream());
+            if (binary && !skip(2))
+                return false;
+        }
+        if (!binary) {
+            int c, n = 0;
+            boolean full = true;
+            while ((c = replyIn.read()) != '\n') {
+                if (c < 0)
+                    return false;
+                full &= n >= FULL.length || c == FULL[n];
+                n++;
+                bytesReceived++;
+            }
+            bytesReceived++;
+            turnedAway = full && n >= FULL.length;
+            return !turnedAway;
+        }
+        int status = replyIn.read();
+        if (status < 0)
+            return false;
+        bytesReceived++;
+        if (status == BinaryProtocol.FULL) {
+            turnedAway = true;
+            return false;
+        }
+        int size = status == BinaryProtocol.BATCHED
+            ? BinaryProtocol.BATCH_REPLY_SIZE : BinaryProtocol.REPLY_SIZE;
+        return skip(size - 1);
+    }
+
+    private boolean skip(int n) throws IOException {
+        for (int i = 0; i < n; i++)
+            if (replyIn.read() < 0)
+                return false;
+        bytesReceived += n;
+        return true;
+    }
+
+    /**
+     * Reads and prints the server replies to the moves sent, one per move or
+     * batch.
+     *
+     * @param expected number of replies to wait for
+     * @return number of replies received before the server closed the 
+     * connection, 0 if it had no room for the player (see turnedAway)
+     * @throws IOException
+     */
+    public int receiveReplies(int expected) throws IOException {
+        int received = 0;
+        if (binary) {
+            DataInputStream in = new DataInputStream(this.socket.getInputStream());
+            byte[] frame = new byte[BinaryProtocol.BATCH_REPLY_SIZE];
+            try {
+                in.readFully(frame, 0, 2);
+                bytesReceived += 2;
+                while (received < expected) {
+                    in.readFully(frame, 0, 1);
+                    int size = frame[0] == BinaryProtocol.BATCHED
+                        ? BinaryProtocol.BATCH_REPLY_SIZE : BinaryProtocol.REPLY_SIZE;
+                    in.readFully(frame, 1, size - 1);
+                    bytesReceived += size;
+                    System.out.println("\r\nMessage from server: " + describe(frame));
+                    if (frame[0] == BinaryProtocol.FULL) {
+                        turnedAway = true;
+                        break;
+                    }
+                    received++;
+                }
+            } catch (EOFException e) {
+                // the server closed the connection
+            }
+            return received;
+        }
+        String message = null;
+        BufferedReader in = new BufferedReader(
+            new InputStreamReader(this.socket.getInputStream()));
+        while ( received < expected && (message = in.readLine()) != null ) {
+            System.out.println("\r\nMessage from server: " + message);
+            bytesReceived += message.length() + 1;
+            if (message.startsWith("Server full.")) {
+                turnedAway = true;
+                break;
+            }
+            received++;
+        }
+        return received;
+    }
+
+    private static String describe(byte[] frame) {
+        switch (frame[0]) {
+            case BinaryProtocol.MOVED:
+                return "Move successful, your new position is: (" 
+                    + BinaryProtocol.replyX(frame, 0) + ", " + BinaryProtocol.replyY(frame, 0) + ").";
+            case BinaryProtocol.NOT_MOVED:
+                return "You could not make the move.";
+            case BinaryProtocol.ATTACKED:
+                return "Attack done, " + BinaryProtocol.replyX(frame, 0) + " players hit within "
+                    + BinaryProtocol.replyY(frame, 0) + ".";
+            case BinaryProtocol.FULL:
+                return "Server full.";
+            case BinaryProtocol.BATCHED:
+                return "Batch done, " + BinaryProtocol.batchMoved(frame, 0) 
+                    + " moves made, your new position is: (" 
+                    + BinaryProtocol.batchX(frame, 0) + ", " + BinaryProtocol.batchY(frame, 0) + ").";
+            default:
+                return "Invalid command.";
         }
     }
 
@@ -75,9 +385,7 @@ public class Clients {
      * @throws IOException
      */
     private void sendShow() throws IOException {
-        String send = "SHOW";
-        PrintWriter out = new PrintWriter(this.socket.getOutputStream(), true);
-        out.println(send);
+        out.write(SHOW);
         out.flush();
     }
 }
\ No newline at end of file
@@ -1,10 +1,16 @@
 package benchmarkgame;
 
-import java.io.BufferedReader;
+import benchmarkgame.gameutils.BinaryProtocol;
+import benchmarkgame.gameutils.SetConfig;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Locale;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,7 +19,7 @@ public class Driver {
 
 		if(args.length < 1 ){
 			System.err.println("Hey, you must set:\n\n\t* the number of players, \n\t* the number of movements per player,\n\t* the IP address and\n\t* the port number for the server!");
-            System.err.println("\nSyntax example: java Driver 10000000 5000 208.80.152.130 4444");
+            System.err.println("\nSyntax example: java Driver 10000000 5000 208.80.152.130 4444 [--protocol=text|binary] [--batch=N] [--rate=MOVES_PER_S] [--format=text|csv|json] [--threads=N] [--servers=IP:PORT,...] [--cpus=LIST] [--attack=PERCENT] [--radius=R]");
 			System.exit(1);
 		}
 
@@ -21,30 +27,149 @@ public class Driver {
 		
 		final int movesPerPlayer = Integer.parseInt(args[1]); //Number of moves per player. 
 
+		boolean binary = false; //Whether players speak the binary protocol.
+		int batch = 1; //Moves sent together in one BATCH command.
+		double rate = 0; //Target moves per second of all players together, 0 for closed loop.
+		String format = "text"; //How the summary is printed.
+		int loops = 0; //Selector threads multiplexing the players, 0 for a thread per player.
+		String servers = null; //Shards of the game the players are spread over, in turn.
+		int attackPercent = 0; //Share of the commands sent as ATTACK instead of a move.
+		int radius = 8; //Radius of the attacks.
+		for (int i = 4; i < args.length; i++) {
+			if (args[i].equals("--protocol=binary"))
+				binary = true;
+			else if (args[i].startsWith("--batch="))
+				batch = Integer.parseInt(args[i].substring("--batch=".length()));
+			else if (args[i].startsWith("--rate="))
+				rate = Double.parseDouble(args[i].substring("--rate=".length()));
+			else if (args[i].startsWith("--threads="))
+				loops = Integer.parseInt(args[i].substring("--threads=".length()));
+			else if (args[i].startsWith("--servers="))
+				servers = args[i].substring("--servers=".length());
+			else if (args[i].startsWith("--cpus=")) //Pins the players' threads, e.g. away from the server's CPUs.
+				SetConfig.setAffinity(args[i].substring("--cpus=".length()));
+			else if (args[i].startsWith("--attack="))
+				attackPercent = Integer.parseInt(args[i].substring("--attack=".length()));
+			else if (args[i].startsWith("--radius="))
+				radius = Integer.parseInt(args[i].substring("--radius=".length()));
+			else if (args[i].matches("--format=(text|csv|json)"))
+				format = args[i].substring("--format=".length());
+			else if (!args[i].equals("--protocol=text")) {
+				System.err.println("Unknown option: " + args[i]);
+				System.exit(1);
+			}
+		}
+		if (batch < 1 || batch > BinaryProtocol.MAX_BATCH) {
+			System.err.println("The batch size must be between 1 and " + BinaryProtocol.MAX_BATCH);
+			System.exit(1);
+		}
+		if (attackPercent < 0 || attackPercent > 100 || radius < 0 || radius > BinaryProtocol.MAX_RADIUS
+				|| (attackPercent > 0 && batch > 1)) {
+			System.err.println("The attack share must be between 0 and 100, without batches, and the radius between 0 and "
+			    + BinaryProtocol.MAX_RADIUS);
+			System.exit(1);
+		}
+		final int batchSize = batch;
+		final int repliesPerPlayer = (movesPerPlayer + batch - 1) / batch; //Answers expected by each player.
+
+		//player i plays on server i modulo their number
+		InetSocketAddress[] addresses;
+		if (servers == null) {
+			addresses = new InetSocketAddress[] {new InetSocketAddress(args[2], Integer.parseInt(args[3]))};
+		} else {
+			String[] list = servers.split(",");
+			addresses = new InetSocketAddress[list.length];
+			for (int i = 0; i < list.length; i++) {
+				int colon = list[i].lastIndexOf(':');
+				addresses[i] = new InetSocketAddress(list[i].substring(0, colon), Integer.parseInt(list[i].substring(colon + 1)));
+			}
+		}
+
+		if (loops > 0) {
+			runMultiplexed(loops, numPlayers, movesPerPlayer, addresses, binary, batchSize, rate, format,
+			    attackPercent, radius);
+			return;
+		}
+
 		final Clients[] clients = new Clients[numPlayers]; 	// Array of players in the game.
 
 		Vector<Thread> threads = new Vector<Thread>(); //Threads vector, each thread will be associated with a single player.
+
+		final AtomicLong replies = new AtomicLong(); //Number of answers received from the server.
+		final AtomicLong moves = new AtomicLong(); //Number of moves the server answered.
+		final AtomicInteger rejected = new AtomicInteger(); //Players the server had no room for.
 		
 		//establishing the connection between players and the server
 		for(int i=0; i<numPlayers; i++){
 			try{
 				clients[i] = new Clients(
-				    InetAddress.getByName(args[2]), 
-				    Integer.parseInt(args[3]));
+				    addresses[i % addresses.length].getAddress(),
+				    addresses[i % addresses.length].getPort(),
+				    binary);
 			} catch (NumberFormatException nfe) {
 				System.err.println("The server's IP address and port number must be supplied correctly");
 				System.err.println("Syntax example: 208.80.152.130 34727");
 			}	
+			clients[i].mixAttacks(attackPercent, radius);
 			System.out.println("\r\nConnected to Server: " + clients[i].socket.getInetAddress());
 		}
 		
+		//in open loop, command k of player i is due at start + offset(i) + k * interval,
+		//answered or not; its latency is counted from then, not from when it was sent
+		final boolean openLoop = rate > 0;
+		final long interval = openLoop ? (long) (1e9 * numPlayers * batchSize / rate) : 0;
+		final AtomicLong startTime = new AtomicLong(); //Set once every thread is built.
+		final LatencyHistogram[] latencies = new LatencyHistogram[numPlayers];
+		final long[] sendLag = new long[numPlayers]; //Worst delay of a command past its due time.
+
 		//creating threads for each player/client 
 		for(int i=0; i<numPlayers; i++){
 			final int index = i;
+			if (openLoop) {
+				final long offset = interval * index / numPlayers;
+				latencies[index] = new LatencyHistogram();
+				threads.add(new Thread() {
+					public void run(){
+						long start = startTime.get();
+						try {
+							for (int k = 0, sent = 0; k < repliesPerPlayer; k++, sent += batchSize) {
+								long due = start + offset + k * interval;
+								long wait;
+								while ((wait = due - System.nanoTime()) > 0)
+									LockSupport.parkNanos(wait);
+								sendLag[index] = Math.max(sendLag[index], System.nanoTime() - due);
+								clients[index].send(Math.min(batchSize, movesPerPlayer - sent), batchSize);
+							}
+						} catch (IOException e) {
+							//the server closed the connection, the reader tells
+						}
+					}
+				});
+				threads.add(new Thread() {
+					public void run(){
+						long start = startTime.get();
+						int received = 0;
+						try {
+							while (received < repliesPerPlayer && clients[index].readReply()) {
+								latencies[index].record(System.nanoTime() - (start + offset + received * interval));
+								received++;
+							}
+							clients[index].socket.close();
+						} catch (IOException e) {
+							System.err.println("IO exception!");
+						}
+						if (received == 0 && movesPerPlayer > 0)
+							rejected.incrementAndGet();
+						replies.addAndGet(received);
+						moves.addAndGet(Math.min((long) received * batchSize, movesPerPlayer));
+					}
+				});
+				continue;
+			}
 			threads.add(new Thread() {
 				public void run(){
 					try {
-						clients[index].startToMove(movesPerPlayer);
+						clients[index].startToMove(movesPerPlayer, batchSize);
 					} catch (IOException e) {
 						System.err.println("IO exception!");
 					} catch (InterruptedException e) {
@@ -54,13 +179,12 @@ public class Driver {
 					//clients receive message from server telling them whether their movements 
 					//have been successful or unsuccessful
 					try {
-			            String message = null;
-			            BufferedReader in = new BufferedReader(
-			                new InputStreamReader(clients[index].socket.getInputStream()));
-			            while ( (message = in.readLine()) != null ) {
-			            	
-			                System.out.println("\r\nMessage from server: " + message);
-			            }
+			            int received = clients[index].receiveReplies(repliesPerPlayer);
+			            if (received == 0 && movesPerPlayer > 0)
+			                rejected.incrementAndGet();
+			            replies.addAndGet(received);
+			            moves.addAndGet(Math.min((long) received * batchSize, movesPerPlayer));
+			            clients[index].socket.close();
 			        } catch (IOException ex) {
 			            Logger.getLogger(Driver.class.getName()).log(Level.SEVERE, null, ex);
 			        }
@@ -68,6 +192,10 @@ public class Driver {
 			});
 		}
         
+        //the first commands of the open loop are due once every thread is running
+        long start = System.nanoTime() + (openLoop ? 100_000_000L : 0);
+        startTime.set(start);
+
         //initializing the created threads
         for (Thread t : threads) {
             t.start();
@@ -83,7 +211,123 @@ public class Driver {
 		} catch(InterruptedException ie) {
 			System.err.println("Interrupt exception!");
 		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long bytes = 0, attacks = 0;
+		for (Clients c : clients)
+			if (c != null) {
+				bytes += c.bytesSent + c.bytesReceived;
+				attacks += c.attacksSent;
+			}
+		LatencyHistogram latency = new LatencyHistogram();
+		long lag = 0;
+		for (int i = 0; openLoop && i < numPlayers; i++) {
+			latency.add(latencies[i]);
+			lag = Math.max(lag, sendLag[i]);
+		}
+		report(format, openLoop, numPlayers, addresses.length, batchSize, binary, rate, rejected.get(), replies.get(),
+		    seconds, moves.get() - attacks, attacks, bytes, latency, lag);
         
         return;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Simulates the players over non-blocking channels shared by a few
+	 * selector threads (see PlayerLoop), so a single Driver can run far
+	 * more players than it could threads.
+	 */
+	private static void runMultiplexed(int loopCount, int numPlayers, int movesPerPlayer,
+			InetSocketAddress[] servers, boolean binary, int batchSize, double rate, String format,
+			int attackPercent, int radius) throws IOException, InterruptedException {
+		boolean openLoop = rate > 0;
+		long interval = openLoop ? (long) (1e9 * numPlayers * batchSize / rate) : 0;
+		PlayerLoop[] loops = new PlayerLoop[loopCount];
+		for (int i = 0; i < loopCount; i++)
+			loops[i] = new PlayerLoop(binary, batchSize, movesPerPlayer, interval, attackPercent, radius);
+		//connecting one at a time, so the server accept queue does not overflow
+		for (int i = 0; i < numPlayers; i++) {
+			SocketChannel channel = SocketChannel.open(servers[i % servers.length]);
+			loops[i % loopCount].add(channel, interval * i / numPlayers);
+		}
+		System.out.println("\r\nConnected " + numPlayers + " players to " + Arrays.toString(servers));
+
+		long start = System.nanoTime() + (openLoop ? 100_000_000L : 0);
+		Thread[] threads = new Thread[loopCount];
+		for (int i = 0; i < loopCount; i++) {
+			loops[i].start(start);
+			threads[i] = new Thread(loops[i], "players-" + i);
+			threads[i].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		LatencyHistogram latency = new LatencyHistogram();
+		long replies = 0, moves = 0, attacks = 0, bytes = 0, lag = 0;
+		int rejected = 0;
+		for (PlayerLoop loop : loops) {
+			latency.add(loop.latency);
+			lag = Math.max(lag, loop.sendLag);
+			replies += loop.replies;
+			moves += loop.moves;
+			attacks += loop.attacks;
+			bytes += loop.bytes;
+			rejected += loop.rejected;
+		}
+		report(format, openLoop, numPlayers, servers.length, batchSize, binary, rate, rejected, replies,
+		    seconds, moves - attacks, attacks, bytes, latency, lag);
+	}
+
+	/**
+	 * Prints the summary of the run: a line of text, or a CSV header and
+	 * row, or a JSON object. Latencies are in microseconds, and only
+	 * measured in open loop: they are left empty in closed loop. The CPU
+	 * time is that of the whole Driver process so far. Attacks are
+	 * counted apart from the moves, and answered like them.
+	 */
+	private static void report(String format, boolean openLoop, int players, int servers, int batch, boolean binary,
+			double rate, int rejected, long replies, double seconds, long moves, long attacks, long bytes,
+			LatencyHistogram latency, long sendLag) {
+		String[] names = {"loop", "protocol", "players", "servers", "batch", "target_rate", "rejected", "replies",
+			"elapsed_s", "moves_per_s", "bytes_per_move", "p50_us", "p99_us", "p99_9_us", "max_us",
+			"mean_us", "max_send_lag_us", "cpu_s", "attacks"};
+		Object[] values = {openLoop ? "open" : "closed", binary ? "binary" : "text", players, servers, batch,
+			rate, rejected, replies, seconds, moves / seconds, moves > 0 ? (double) bytes / moves : 0.0,
+			latency.valueAt(50) / 1e3, latency.valueAt(99) / 1e3, latency.valueAt(99.9) / 1e3,
+			latency.max() / 1e3, latency.mean() / 1e3, sendLag / 1e3,
+			ProcessHandle.current().info().totalCpuDuration().map(d -> d.toNanos() / 1e9).orElse(null), attacks};
+		if (!openLoop)
+			Arrays.fill(values, 11, 17, null);
+		StringBuilder out = new StringBuilder();
+		if (format.equals("csv")) {
+			out.append(String.join(",", names)).append('\n');
+			for (int i = 0; i < values.length; i++)
+				out.append(i > 0 ? "," : "").append(values[i] == null ? "" : format(values[i]));
+		} else if (format.equals("json")) {
+			out.append('{');
+			for (int i = 0; i < values.length; i++) {
+				out.append(i > 0 ? ", " : "").append('"').append(names[i]).append("\": ");
+				out.append(values[i] instanceof String ? "\"" + values[i] + "\"" : format(values[i]));
+			}
+			out.append('}');
+		} else {
+			out.append(String.format("\r\nSummary: players=%d batch=%d rejected=%d replies=%d elapsed=%.3fs moves/s=%.1f bytes/move=%.1f",
+			    players, batch, rejected, replies, seconds, moves / seconds, values[10]));
+			if (servers > 1)
+				out.append(" servers=" + servers);
+			if (attacks > 0)
+				out.append(" attacks=" + attacks);
+			if (openLoop)
+				out.append(String.format(" rate=%.0f p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus send-lag=%.1fus",
+				    rate, values[11], values[12], values[13], values[14], values[16]));
+		}
+		System.out.println(out);
+	}
+
+	/**
+	 * Numbers with a dot whatever the locale, null for a missing one.
+	 */
+	private static String format(Object value) {
+		return value instanceof Double ? String.format(Locale.ROOT, "%.3f", value) : String.valueOf(value);
+	}
+}
@@ -0,0 +1,168 @@
+package benchmarkgame;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.random.RandomGenerator;
+
+/**
+ * Index of the free positions of the game map, used to spawn players on a
+ * uniformly random free position without probing occupied ones.
+ *
+ * Positions are numbered x * height + y. One bit per position marks it
+ * occupied, and a Fenwick tree counts the free positions of each block of
+ * BLOCK_WORDS words. Picking the k-th free position walks down the tree to
+ * its block and then counts bits inside the block, so it takes O(log n)
+ * whatever the occupancy.
+ *
+ * The index is updated from Board.set, which runs under different stripes
+ * at once, so bits and counts are atomic. A reader may see a move half
+ * applied and pick a position that is no longer free; callers check the
+ * position under its stripe and pick again.
+ */
+class FreeCellIndex {
+    private static final int BLOCK_WORDS = 8;
+    private static final int BLOCK_BITS = BLOCK_WORDS * 64;
+
+    private final int cells;
+    private final AtomicLongArray occupied;
+    private final AtomicIntegerArray tree;
+    private final int blocks;
+    private final int topStep;
+    private final AtomicInteger free;
+
+    /**
+     * @param cells number of positions of the map, all free at first.
+     */
+    public FreeCellIndex(int cells) {
+        this.cells = cells;
+        this.occupied = new AtomicLongArray((cells + 63) / 64);
+        this.blocks = (cells + BLOCK_BITS - 1) / BLOCK_BITS;
+        this.tree = new AtomicIntegerArray(blocks + 1);
+        this.free = new AtomicInteger(cells);
+        // linear-time Fenwick construction from the block sizes
+        int[] t = new int[blocks + 1];
+        for (int b = 1; b <= blocks; b++) {
+            t[b] += Math.min(BLOCK_BITS, cells - (b - 1) * BLOCK_BITS);
+            int parent = b + (b & -b);
+            if (parent <= blocks)
+                t[parent] += t[b];
+        }
+        for (int b = 1; b <= blocks; b++)
+            tree.set(b, t[b]);
+        int step = 1;
+        while (step * 2 <= blocks)
+            step *= 2;
+        this.topStep = step;
+    }
+
+    /**
+     * Marks the position as taken.
+     */
+    public void occupy(int cell) {
+        int w = cell >>> 6;
+        long bit = 1L << cell, old;
+        do {
+            old = occupied.get(w);
+            if ((old & bit) != 0)
+                return;
+        } while (!occupied.compareAndSet(w, old, old | bit));
+        add(cell / BLOCK_BITS, -1);
+        free.decrementAndGet();
+    }
+
+    /**
+     * Marks the position as free.
+     */
+    public void release(int cell) {
+        int w = cell >>> 6;
+        long bit = 1L << cell, old;
+        do {
+            old = occupied.get(w);
+            if ((old & bit) == 0)
+                return;
+        } while (!occupied.compareAndSet(w, old, old & ~bit));
+        add(cell / BLOCK_BITS, 1);
+        free.incrementAndGet();
+    }
+
+    /**
+     * Returns a uniformly random free position, or -1 if there is none or
+     * the index changed under our feet.
+     */
+    public int randomFree(RandomGenerator random) {
+        int n = free.get();
+        if (n <= 0)
+            return -1;
+        return select(random.nextInt(n));
+    }
+
+    /**
+     * Returns a uniformly random free position among first (included) to
+     * end (excluded), or -1 like randomFree.
+     */
+    public int randomFree(RandomGenerator random, int first, int end) {
+        int before = freeBefore(first);
+        int n = freeBefore(end) - before;
+        if (n <= 0)
+            return -1;
+        return select(before + random.nextInt(n));
+    }
+
+    /**
+     * Number of free positions below the given one: the tree counts the
+     * whole blocks, then the words and bits of the last one are counted.
+     */
+    private int freeBefore(int cell) {
+        int block = cell / BLOCK_BITS;
+        int n = 0;
+        for (int b = block; b > 0; b -= b & -b)
+            n += tree.get(b);
+        for (int w = block * BLOCK_WORDS; w < cell >>> 6; w++)
+            n += 64 - Long.bitCount(occupied.get(w));
+        int bits = cell & 63;
+        if (bits > 0)
+            n += bits - Long.bitCount(occupied.get(cell >>> 6) & ((1L << bits) - 1));
+        return n;
+    }
+
+    /**
+     * Returns the k-th free position (0-based), or -1.
+     */
+    private int select(int k) {
+        // walk down the Fenwick tree to the block holding it
+        int block = 0;
+        for (int step = topStep; step > 0; step >>= 1) {
+            int next = block + step;
+            if (next <= blocks) {
+                int c = tree.get(next);
+                if (c <= k) {
+                    block = next;
+                    k -= c;
+                }
+            }
+        }
+        // then count the free bits of the block's words
+        int first = block * BLOCK_WORDS;
+        int last = Math.min(first + BLOCK_WORDS, occupied.length());
+        for (int w = first; w < last; w++) {
+            long freeBits = ~occupied.get(w);
+            int valid = cells - w * 64;
+            if (valid < 64)
+                freeBits &= (1L << valid) - 1;
+            int c = Long.bitCount(freeBits);
+            if (k < c) {
+                for (int i = 0; i < k; i++)
+                    freeBits &= freeBits - 1;
+                return w * 64 + Long.numberOfTrailingZeros(freeBits);
+            }
+            k -= c;
+        }
+        return -1;
+    }
+
+    private void add(int block, int delta) {
+        for (int b = block + 1; b <= blocks; b += b & -b)
+            tree.addAndGet(b, delta);
+    }
+}
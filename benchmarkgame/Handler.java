@@ -0,0 +1,905 @@
+package benchmarkgame;
+
+import benchmarkgame.gameutils.BinaryProtocol;
+import benchmarkgame.gameutils.Command;
+import benchmarkgame.gameutils.FlushPolicy;
+import benchmarkgame.gameutils.Move;
+import benchmarkgame.gameutils.Status;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Implements a runnable handler to each user.
+ */
+class Handler implements Runnable {
+    Socket client;
+    /**
+     * Place of the connection in the accept queue, given back once it is
+     * logged in or turned away; null when it has none.
+     */
+    private AcceptQueue acceptQueue;
+    /**
+     * Paces the commands of the connection, null when they are not
+     * limited.
+     */
+    private TokenBucket rateLimiter;
+    String clientID;
+    String clientPort;
+    /**
+     * Dense integer ID the engine knows the player by, -1 before login.
+     */
+    int playerID = -1;
+    Server s;
+    /**
+     * Replies not written yet, encoded in place, and how many there are.
+     */
+    protected final ReplyWriter replies = new ReplyWriter(512);
+    private int unflushed = 0;
+    /**
+     * The Command being served, by ordinal, and when it was read; -1 once
+     * it is answered.
+     */
+    private int served = -1;
+    private long servedSince;
+    private FlushPolicy flushPolicy = FlushPolicy.BATCH;
+    private int flushEvery = 1;
+    /**
+     * Output of a blocking connection, written by the connection thread
+     * and by the notice thread under outLock.
+     */
+    private OutputStream socketOut;
+    private final ReentrantLock outLock = new ReentrantLock();
+    /**
+     * Whether the connection negotiated the binary protocol.
+     */
+    protected boolean binary = false;
+    /**
+     * Whether the player asked to be told when it is pushed, and whether
+     * a notice is due; see PushNotices.
+     */
+    protected volatile boolean listening = false;
+    private final AtomicBoolean noticeDue = new AtomicBoolean();
+    /**
+     * Writes the notices of a blocking connection, and its own buffer.
+     */
+    private Thread noticeThread;
+    private volatile boolean closed = false;
+    private final ReplyWriter noticeOut = new ReplyWriter(64);
+    /**
+     * Notices are dropped rather than queued behind this many bytes of
+     * replies the player did not read yet.
+     */
+    static final int NOTICE_BACKLOG = 1 << 16;
+    /**
+     * A connection the server has no room for is closed if it says
+     * nothing for this long, or keeps talking for this long after its
+     * FULL reply.
+     */
+    static final int REJECT_MILLIS = 2000;
+    /**
+     * Pending replies are written once they reach this size, whatever the
+     * policy, so a player that never stops sending cannot grow the buffer.
+     */
+    private static final int FLUSH_BYTES = 8192;
+    /**
+     * Fixed parts of the text replies.
+     */
+    private static final byte[] MOVE_FAILED = ReplyWriter.bytes("You could not make the move, ");
+    private static final byte[] MOVE_DONE = ReplyWriter.bytes("Move successful. ");
+    private static final byte[] BATCH_DONE = ReplyWriter.bytes("Batch done. ");
+    private static final byte[] NEW_POSITION = ReplyWriter.bytes(", your new position is: (");
+    private static final byte[] SEPARATOR = ReplyWriter.bytes(", ");
+    private static final byte[] END = ReplyWriter.bytes(").\n");
+    private static final byte[] PUSHED = ReplyWriter.bytes("Pushed. ");
+    private static final byte[] NOTIFY_ON = ReplyWriter.bytes("Notifications on. ");
+    private static final byte[] NOTIFY_OFF = ReplyWriter.bytes("Notifications off. ");
+    private static final byte[] ATTACK_FAILED = ReplyWriter.bytes("You could not attack, ");
+    private static final byte[] ATTACK_DONE = ReplyWriter.bytes("Attack done. ");
+    private static final byte[] SERVER_FULL = ReplyWriter.bytes("Server full. ");
+    /**
+     * Moves of the batch being applied, allocated on the first batch.
+     */
+    int[] batchX;
+    int[] batchY;
+    private static final Move[] MOVES = Move.values();
+    private static final Command[] COMMANDS = Command.values();
+    /**
+     * Change in x and y of each Move, by ordinal.
+     */
+    private static final int[] DX = new int[MOVES.length];
+    private static final int[] DY = new int[MOVES.length];
+    static {
+        for (Move m : MOVES) {
+            int x, y;
+            switch(m) {
+                case UP:    x =  0; y =  1; break;
+                case DOWN:  x =  0; y = -1; break;
+                case RIGHT: x =  1; y =  0; break;
+                case LEFT:  x = -1; y =  0; break;
+                case UR:    x =  1; y =  1; break;
+                case UL:    x = -1; y =  1; break;
+                case DR:    x =  1; y = -1; break;
+                default:    x = -1; y = -1; break; // DL
+            }
+            DX[m.ordinal()] = x;
+            DY[m.ordinal()] = y;
+        }
+    }
+    
+    public Handler(Socket c) {
+        this.client = c;
+    }
+
+    /**
+     * @param queue: accept queue the connection holds a place in.
+     */
+    public Handler(Socket c, AcceptQueue queue) {
+        this.client = c;
+        this.acceptQueue = queue;
+    }
+
+    /**
+     * Gives back the place of the connection in the accept queue.
+     */
+    void admitted() {
+        if (acceptQueue != null)
+            acceptQueue.leave();
+        acceptQueue = null;
+    }
+
+    /**
+     * Used by handlers that do not own a blocking socket.
+     */
+    protected Handler() {
+    }
+    
+    protected void sendMessage(String message) throws IOException {
+        replies.ascii(message).put((byte) '\n');
+        replied();
+    }
+
+    /**
+     * Takes the tokens of a command of the given number of moves, one for
+     * any other command, from the rate limit of the connection.
+     * @return 0 if the command may go on, else the nanoseconds to wait
+     * before trying again.
+     */
+    protected long tokens(int moves) {
+        if (rateLimiter == null)
+            return 0;
+        long wait = rateLimiter.take(moves, System.nanoTime());
+        if (wait > 0)
+            s.metrics().throttled();
+        return wait;
+    }
+
+    /**
+     * Waits until the rate limit lets a command go on, for connections
+     * served by a thread of their own; the pending replies are written
+     * first, so the player does not wait for them too.
+     */
+    private void pace(int moves) throws IOException {
+        long wait = tokens(moves);
+        if (wait > 0)
+            endOfInput();
+        for (; wait > 0; wait = tokens(moves))
+            LockSupport.parkNanos(this, wait);
+    }
+
+    /**
+     * Number of moves of a text command, for the rate limit.
+     */
+    static int movesOf(String line) {
+        if (!line.startsWith("BATCH"))
+            return 1;
+        int n = 0;
+        for (int i = 0; i < line.length(); i++)
+            if (line.charAt(i) == ' ')
+                n++;
+        return Math.max(1, n);
+    }
+
+    /**
+     * Encodes the answer to a player the server has no room for: in
+     * binary, the handshake answer then a FULL frame.
+     */
+    protected void encodeFull() {
+        if (binary)
+            replies.put(BinaryProtocol.HELLO).put(BinaryProtocol.VERSION)
+                .put(BinaryProtocol.FULL).putInt(0).putInt(0);
+        else
+            replies.put(SERVER_FULL).ascii(clientID).put((byte) '\n');
+    }
+
+    /**
+     * Starts timing a command, until its reply.
+     */
+    private void serving(Command command) {
+        served = command.ordinal();
+        servedSince = System.nanoTime();
+    }
+
+    /**
+     * Counts a complete reply and writes the pending ones if the flush
+     * policy asks for it.
+     */
+    private void replied() throws IOException {
+        if (served >= 0) {
+            s.metrics().served(served, System.nanoTime() - servedSince);
+            served = -1;
+        }
+        unflushed++;
+        if (flushPolicy == FlushPolicy.IMMEDIATE
+                || (flushPolicy == FlushPolicy.COUNT && unflushed >= flushEvery)
+                || replies.pending() >= FLUSH_BYTES)
+            flushReplies();
+    }
+
+    /**
+     * Called when no further request is waiting: every policy writes the
+     * pending replies then, so a player never waits for its own answers.
+     */
+    void endOfInput() throws IOException {
+        if (replies.pending() > 0)
+            flushReplies();
+    }
+
+    private void flushReplies() throws IOException {
+        unflushed = 0;
+        drain();
+    }
+
+    /**
+     * Writes the pending replies to the connection.
+     */
+    protected void drain() throws IOException {
+        outLock.lock();
+        try {
+            replies.writeTo(socketOut);
+        } finally {
+            outLock.unlock();
+        }
+    }
+
+    /**
+     * Starts or stops telling the player when it is pushed, and answers.
+     */
+    void cmdNotify(boolean on) throws IOException {
+        if (on && !listening) {
+            listening = true;
+            startNotices();
+            s.notices().listen(playerID, this);
+        } else if (!on && listening) {
+            stopNotices();
+        }
+        if (binary) {
+            sendReply(BinaryProtocol.NOTIFYING, on ? 1 : 0, 0);
+        } else {
+            replies.put(on ? NOTIFY_ON : NOTIFY_OFF).ascii(clientID).put((byte) '\n');
+            replied();
+        }
+    }
+
+    /**
+     * Hits the players within the radius and answers how many there were.
+     */
+    void cmdAttack(int radius) throws IOException {
+        int hit = s.attack(playerID, radius);
+        if (binary) {
+            if (hit < 0)
+                sendReply(BinaryProtocol.INVALID, 0, 0);
+            else
+                sendReply(BinaryProtocol.ATTACKED, hit, radius);
+            return;
+        }
+        if (hit < 0) {
+            replies.put(ATTACK_FAILED).ascii(clientID).put((byte) '\n');
+        } else {
+            replies.put(ATTACK_DONE).ascii(clientID).put(SEPARATOR).number(hit)
+                .ascii(" players hit within ").number(radius).ascii(".\n");
+        }
+        replied();
+    }
+
+    private void stopNotices() {
+        s.notices().stop(playerID);
+        listening = false;
+        takeNotice();
+    }
+
+    /**
+     * Called by the mover of a push, with stripes held: flags the notice
+     * and gets it delivered, unless one is due already.
+     */
+    void pushed() {
+        if (noticeDue.getAndSet(true)) {
+            s.notices().coalesced();
+            return;
+        }
+        s.notices().queued();
+        scheduleNotice();
+    }
+
+    /**
+     * Clears the notice due, if any.
+     * @return true if it is to be written, false if there was none or the
+     * player stopped listening, which drops it.
+     */
+    protected boolean takeNotice() {
+        if (!noticeDue.getAndSet(false))
+            return false;
+        if (listening)
+            return true;
+        s.notices().dropped();
+        return false;
+    }
+
+    /**
+     * Encodes a notice of the player's position.
+     */
+    protected void encodeNotice(ReplyWriter out, long pos) {
+        if (binary) {
+            out.put(BinaryProtocol.PUSHED).putInt(Server.unpackX(pos)).putInt(Server.unpackY(pos));
+        } else {
+            out.put(PUSHED).ascii(clientID).put(NEW_POSITION)
+                .number(Server.unpackX(pos)).put(SEPARATOR)
+                .number(Server.unpackY(pos)).put(END);
+        }
+    }
+
+    /**
+     * Blocking connections write their notices from a virtual thread of
+     * their own, started by the first NOTIFY ON.
+     */
+    protected void startNotices() {
+        if (noticeThread == null) {
+            int id = playerID;
+            noticeThread = Thread.ofVirtual().name("notices-" + clientPort).start(() -> writeNotices(id));
+        }
+    }
+
+    protected void scheduleNotice() {
+        LockSupport.unpark(noticeThread);
+    }
+
+    /**
+     * Writes each notice due until the connection closes. The position is
+     * read under outLock, so a notice never overtakes a reply holding a
+     * newer position.
+     */
+    private void writeNotices(int id) {
+        while (!closed) {
+            // the locks below may consume the unpark of a notice, so only
+            // park while none is due
+            if (!takeNotice()) {
+                LockSupport.park(this);
+                continue;
+            }
+            outLock.lock();
+            try {
+                long pos = s.position(id);
+                if (pos == Server.NOT_MOVED) {
+                    s.notices().dropped();
+                    continue;
+                }
+                encodeNotice(noticeOut, pos);
+                noticeOut.writeTo(socketOut);
+                s.notices().sent();
+            } catch (IOException ex) {
+                // the connection thread sees it too and logs the player out
+                s.notices().dropped();
+                return;
+            } finally {
+                outLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Moves the player one step in the given direction.
+     * @return the new position, packed by Server.pack, or Server.NOT_MOVED.
+     */
+    long move(Move direction) {
+        return s.updatePosition(playerID, DX[direction.ordinal()], DY[direction.ordinal()]);
+    }
+
+    /**
+     * Records a move in the trace, if the server keeps one.
+     */
+    private void traceMove(int direction) {
+        TraceRecorder trace = s.trace();
+        if (trace != null)
+            trace.move(playerID, DX[direction], DY[direction]);
+    }
+
+    /**
+     * Replies a move may owe while it waits in the tick engine.
+     */
+    static final int TEXT_MOVE = 0, TEXT_BATCH = 1, BINARY_MOVE = 2, BINARY_BATCH = 3;
+
+    /**
+     * Lets a handler that cannot wait hand a move to the tick engine and
+     * give its reply later, through replyMove. Blocking handlers simply
+     * wait for the move, so they never defer.
+     * @param reply: TEXT_MOVE or BINARY_MOVE.
+     * @return true if the move was handed over.
+     */
+    protected boolean defer(int reply, int dx, int dy) {
+        return false;
+    }
+
+    /**
+     * Same as defer, for the batch held in batchX and batchY, answered
+     * later through replyBatch.
+     * @param reply: TEXT_BATCH or BINARY_BATCH.
+     */
+    protected boolean deferBatch(int reply, int n) {
+        return false;
+    }
+
+    /**
+     * Answers a move.
+     * @param ret: the new position packed by Server.pack, or Server.NOT_MOVED.
+     */
+    void replyMove(int reply, long ret) throws IOException {
+        if (reply == BINARY_MOVE) {
+            if (ret == Server.NOT_MOVED)
+                sendReply(BinaryProtocol.NOT_MOVED, 0, 0);
+            else
+                sendReply(BinaryProtocol.MOVED, Server.unpackX(ret), Server.unpackY(ret));
+            return;
+        }
+        if (ret == Server.NOT_MOVED){                   
+            replies.put(MOVE_FAILED).ascii(clientID).put((byte) '\n');
+        } else {                                
+            replies.put(MOVE_DONE).ascii(clientID).put(NEW_POSITION)
+                .number(Server.unpackX(ret)).put(SEPARATOR)
+                .number(Server.unpackY(ret)).put(END);
+        }
+        replied();
+    }
+
+    /**
+     * Answers a batch.
+     * @param moved: number of moves made.
+     * @param n: number of moves in the batch.
+     * @param pos: final position packed by Server.pack.
+     */
+    void replyBatch(int reply, int moved, int n, long pos) throws IOException {
+        if (reply == BINARY_BATCH) {
+            sendBatchReply(moved, Server.unpackX(pos), Server.unpackY(pos));
+            return;
+        }
+        replies.put(BATCH_DONE).ascii(clientID).put(SEPARATOR).number(moved)
+            .ascii(" of ").number(n).ascii(" moves made").put(NEW_POSITION)
+            .number(Server.unpackX(pos)).put(SEPARATOR)
+            .number(Server.unpackY(pos)).put(END);
+        replied();
+    }
+
+    /**
+     * Applies a batch of directions, given by their ordinals, and answers
+     * it. Any unknown direction rejects the whole batch.
+     * @throws IllegalArgumentException if a direction is unknown.
+     */
+    void moveBatch(int reply, byte[] directions, int off, int n) throws IOException {
+        if (batchX == null) {
+            batchX = new int[BinaryProtocol.MAX_BATCH];
+            batchY = new int[BinaryProtocol.MAX_BATCH];
+        }
+        for (int i = 0; i < n; i++) {
+            int m = directions[off + i];
+            if (m < 0 || m >= MOVES.length)
+                throw new IllegalArgumentException("Unknown move " + m);
+            batchX[i] = DX[m];
+            batchY[i] = DY[m];
+        }
+        TraceRecorder trace = s.trace();
+        if (trace != null)
+            trace.batch(playerID, batchX, batchY, n);
+        if (deferBatch(reply, n))
+            return;
+        int moved = s.updatePositions(playerID, batchX, batchY, n);
+        replyBatch(reply, moved, n, s.position(playerID));
+    }
+
+    public void cmdMove(String clientID, Move direction) throws IOException {
+        int d = direction.ordinal();
+        traceMove(d);
+        if (defer(TEXT_MOVE, DX[d], DY[d]))
+            return;
+        replyMove(TEXT_MOVE, move(direction));
+    }
+    
+    private void cmdMove(String clientID, String a) throws IOException {
+        //System.out.println("entrei na função!!! " + clientID);
+        cmdMove(clientID, Move.valueOf(a));
+    }
+
+    /**
+     * Executes "BATCH <move> <move> ...", answering once for the whole batch.
+     */
+    private void cmdBatch(String clientID, String[] command) throws IOException {
+        int n = command.length - 1;
+        if (n < 1 || n > BinaryProtocol.MAX_BATCH) {
+            sendMessage("Invalid batch. " + clientID);
+            return;
+        }
+        byte[] directions = new byte[n];
+        for (int i = 0; i < n; i++)
+            directions[i] = (byte) Move.valueOf(command[i + 1]).ordinal();
+        moveBatch(TEXT_BATCH, directions, 0, n);
+    }
+        
+    /**
+     * Handles clients commands like movements and attacks.
+     * @param command: Command sent by client.
+     */
+    public void handleCommand(String clientID, String[] command) throws IOException {
+        Command op = Command.valueOf(command[0]);
+        serving(op);
+        switch(op) {
+            case MOVE:
+                if (command.length < 2) {
+                    sendMessage("Invalid movement. " + clientID);
+                    break;
+                }
+                cmdMove(clientID, command[1]);
+                break;
+            case BATCH:
+                cmdBatch(clientID, command);
+                break;
+            case SHOW:
+                sendSnapshot(false);
+                break;
+            case STATS:
+                sendStats(false);
+                break;
+            case NOTIFY:
+                if (command.length < 2 || !(command[1].equals("ON") || command[1].equals("OFF")))
+                    throw new IllegalArgumentException("NOTIFY ON or NOTIFY OFF");
+                cmdNotify(command[1].equals("ON"));
+                break;
+            case ATTACK: {
+                int radius = command.length < 2 ? -1 : Integer.parseInt(command[1]);
+                if (radius < 0 || radius > BinaryProtocol.MAX_RADIUS) {
+                    sendMessage("Invalid attack. " + clientID);
+                    break;
+                }
+                cmdAttack(radius);
+                break;
+            }
+            default:
+                break;
+        }
+    }
+    
+    
+    /**
+     * Parses a single line received from the player and executes it.
+     * @param data: line sent by client, without the line terminator.
+     */
+    void handleLine(String data) throws IOException {
+        String[] command = data.split(" ");
+        try {
+            handleCommand(clientID, command);
+        } catch (IllegalArgumentException ex) {
+            sendMessage("Invalid command. " + clientID);
+        }
+    }
+
+    /**
+     * Sends a binary reply frame.
+     */
+    void sendReply(byte status, int x, int y) throws IOException {
+        replies.put(status).putInt(x).putInt(y);
+        replied();
+    }
+
+    /**
+     * Sends a binary batch reply frame.
+     */
+    void sendBatchReply(int moved, int x, int y) throws IOException {
+        replies.put(BinaryProtocol.BATCHED).put((byte) moved).putInt(x).putInt(y);
+        replied();
+    }
+
+    /**
+     * Sends a consistent view of the map: in text, a header line followed
+     * by one line per row as rendered by Server.toString; in binary, a
+     * SNAPSHOT frame followed by the player count and the bitmap.
+     */
+    void sendSnapshot(boolean binary) throws IOException {
+        Snapshot snap = s.snapshot();
+        if (binary) {
+            replies.put(BinaryProtocol.SNAPSHOT).putInt(snap.rows).putInt(snap.cols)
+                .putInt(snap.players);
+            byte[] bitmap = new byte[BinaryProtocol.bitmapSize(snap.rows, snap.cols)];
+            for (int i = 0; i < snap.taken.length; i++)
+                if (snap.taken[i])
+                    bitmap[i >> 3] |= (byte) (0x80 >>> (i & 7));
+            replies.put(bitmap);
+        } else {
+            replies.ascii("Game state: ").number(snap.players).ascii(" players, ")
+                .number(snap.rows).ascii(" rows of ").number(snap.cols)
+                .ascii(" positions follow.\n").ascii(snap.render());
+        }
+        replied();
+    }
+
+    /**
+     * Sends the server metrics, one "name value..." line each: in text,
+     * after a header line; in binary, after a STATS frame holding their
+     * size in bytes and their number of lines.
+     */
+    void sendStats(boolean binary) throws IOException {
+        List<String> lines = s.metrics().report();
+        if (binary) {
+            int size = 0;
+            for (String line : lines)
+                size += line.length() + 1;
+            replies.put(BinaryProtocol.STATS).putInt(size).putInt(lines.size());
+        } else {
+            replies.ascii("Stats: ").number(lines.size()).ascii(" lines follow.\n");
+        }
+        for (String line : lines)
+            replies.ascii(line).put((byte) '\n');
+        replied();
+    }
+
+    /**
+     * Answers the binary handshake.
+     */
+    void acceptBinary() throws IOException {
+        replies.put(BinaryProtocol.HELLO).put(BinaryProtocol.VERSION);
+        flushReplies();
+    }
+
+    /**
+     * Executes a binary BATCH request.
+     * @param directions: buffer holding the Move ordinals.
+     * @param off: offset of the first one.
+     * @param n: number of moves.
+     */
+    void handleBatch(byte[] directions, int off, int n) throws IOException {
+        serving(Command.BATCH);
+        try {
+            moveBatch(BINARY_BATCH, directions, off, n);
+        } catch (IllegalArgumentException ex) {
+            sendReply(BinaryProtocol.INVALID, 0, 0);
+        }
+    }
+
+    /**
+     * Executes a binary request frame, see {@link BinaryProtocol}.
+     * @param command: Command ordinal.
+     * @param argument: command argument, the Move ordinal for MOVE, the
+     * radius for ATTACK.
+     */
+    void handleFrame(int command, int argument) throws IOException {
+        if (command >= 0 && command < COMMANDS.length)
+            serving(COMMANDS[command]);
+        if (command == Command.MOVE.ordinal()) {
+            if (argument < 0 || argument >= MOVES.length) {
+                sendReply(BinaryProtocol.INVALID, 0, 0);
+                return;
+            }
+            traceMove(argument);
+            if (!defer(BINARY_MOVE, DX[argument], DY[argument]))
+                replyMove(BINARY_MOVE, move(MOVES[argument]));
+        } else if (command == Command.SHOW.ordinal()) {
+            sendSnapshot(true);
+        } else if (command == Command.STATS.ordinal()) {
+            sendStats(true);
+        } else if (command == Command.NOTIFY.ordinal() && (argument == 0 || argument == 1)) {
+            cmdNotify(argument == 1);
+        } else if (command == Command.ATTACK.ordinal()) {
+            cmdAttack(argument & 0xff);
+        } else {
+            sendReply(BinaryProtocol.INVALID, 0, 0);
+        }
+    }
+
+    /**
+     * Serves a connection that negotiated the binary protocol: answers the
+     * handshake and executes frames until the player leaves.
+     * @param in: connection input, past the handshake.
+     */
+    private void serveBinary(InputStream in) throws IOException {
+        binary = true;
+        acceptBinary();
+        byte[] request = new byte[BinaryProtocol.REQUEST_SIZE];
+        byte[] batch = null;
+        while (readFully(in, request)) {
+            if (request[0] == Command.BATCH.ordinal()) {
+                int n = request[1] & 0xff;
+                if (batch == null)
+                    batch = new byte[BinaryProtocol.MAX_BATCH];
+                if (!readFully(in, batch, n))
+                    break;
+                pace(n);
+                handleBatch(batch, 0, n);
+            } else {
+                pace(1);
+                handleFrame(request[0], request[1]);
+            }
+            if (in.available() == 0)
+                endOfInput();
+        }
+    }
+
+    private static boolean readFully(InputStream in, byte[] buf) throws IOException {
+        return readFully(in, buf, buf.length);
+    }
+
+    private static boolean readFully(InputStream in, byte[] buf, int length) throws IOException {
+        for (int n = 0; n < length; ) {
+            int r = in.read(buf, n, length - n);
+            if (r < 0)
+                return false;
+            n += r;
+        }
+        return true;
+    }
+
+    /**
+     * Places the player on the game map.
+     * @param clientAddress: IP address of the player.
+     * @param port: remote port of the player.
+     * @return false if there is no room left for the player.
+     */
+    boolean login(String clientAddress, int port) {
+        if (!identify(clientAddress, port))
+            return false;
+        if(s.randomPosition(playerID) == Status.FAILED) {
+            spawnFailed();
+            return false;
+        }
+        loggedIn();
+        return true;
+    }
+
+    /**
+     * First step of login: gives the player an ID.
+     * @return false if there is no ID left.
+     */
+    protected boolean identify(String clientAddress, int port) {
+        clientPort = ((Integer)port).toString();
+        clientID = clientAddress + "/" + clientPort;        
+        s = Server.getServerRef();
+        flushPolicy = s.flushPolicy();
+        flushEvery = s.flushEvery();
+        
+        playerID = s.internPlayer(clientID);
+        if (playerID < 0) {
+            s.metrics().loginRejected();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gives the ID back when there is no room on the map for the player.
+     */
+    protected void spawnFailed() {
+        s.removePlayer(playerID);
+        playerID = -1;
+        s.metrics().loginRejected();
+    }
+
+    /**
+     * Last step of login, once the player is on the map.
+     */
+    protected void loggedIn() {
+        rateLimiter = s.rateLimiter();
+        s.metrics().loggedIn();
+        TraceRecorder trace = s.trace();
+        if (trace != null)
+            trace.login(playerID, s.position(playerID));
+        
+        System.out.println("Client <" + clientID + "> logged in!");
+    }
+
+    /**
+     * Frees the player position once the connection is gone.
+     */
+    void logout() {
+        closed = true;
+        if (listening)
+            stopNotices();
+        if (noticeThread != null)
+            LockSupport.unpark(noticeThread);
+        if (playerID >= 0) {
+            TraceRecorder trace = s.trace();
+            if (trace != null)
+                trace.logout(playerID);
+            s.removePlayer(playerID);
+            s.metrics().loggedOut();
+        }
+        playerID = -1;
+    }
+    
+    /**
+     * Handle client connection while buffer is being used. Receives and 
+     * re-passes commands from players.
+     */
+    public void run() {
+        String data = null;
+        
+        boolean loggedIn = login(client.getInetAddress().getHostAddress(), client.getPort());
+        admitted();
+        if (!loggedIn) {
+            turnAway();
+            return;
+        }
+        
+        // receives messages from the player with commands to be executed on the
+        // server, like movements or attacks
+        try {
+            // the first bytes tell the binary handshake from a text command
+            socketOut = client.getOutputStream();
+            BufferedInputStream raw = new BufferedInputStream(client.getInputStream());
+            raw.mark(2);
+            if ((byte) raw.read() == BinaryProtocol.HELLO && (byte) raw.read() == BinaryProtocol.VERSION) {
+                serveBinary(raw);
+                return;
+            }
+            raw.reset();
+            BufferedReader in = new BufferedReader(new InputStreamReader(raw));
+            while ( (data = in.readLine()) != null ) {
+                pace(movesOf(data));
+                handleLine(data);
+                if (!in.ready())
+                    endOfInput();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(Handler.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            logout();
+        }
+        
+    }
+
+    /**
+     * Answers a connection the server has no room for with a FULL reply,
+     * in the protocol its first byte tells, and closes it. Its input is
+     * read and dropped for a while after the reply, so that closing does
+     * not reset the connection before the player reads it.
+     */
+    private void turnAway() {
+        try {
+            client.setSoTimeout(REJECT_MILLIS);
+            InputStream in = client.getInputStream();
+            int first = in.read();
+            if (first >= 0) {
+                binary = (byte) first == BinaryProtocol.HELLO;
+                encodeFull();
+                replies.writeTo(client.getOutputStream());
+                client.shutdownOutput();
+                byte[] rest = new byte[512];
+                long end = System.nanoTime() + REJECT_MILLIS * 1_000_000L;
+                while (System.nanoTime() < end && in.read(rest) >= 0)
+                    ;
+            }
+        } catch (IOException ex) {
+            // gone, or silent for too long
+        } finally {
+            try {
+                client.close();
+            } catch (IOException ex) {
+                // nothing left to release
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package benchmarkgame;
+
+/**
+ * Told by the simulation thread once an intent is applied.
+ */
+interface IntentListener {
+    /**
+     * @param position player position afterwards, packed by Server.pack, or
+     * Server.NOT_MOVED for a move that could not be made.
+     * @param count number of moves made.
+     */
+    void applied(long position, int count);
+}
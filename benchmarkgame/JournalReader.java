@@ -0,0 +1,194 @@
+package benchmarkgame;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Offline tool rebuilding the game map recorded by StateJournal as it was
+ * at a given time, and rendering it as the server used to write it to
+ * state.txt, e.g. "java benchmarkgame.JournalReader journal 1700000000000".
+ *
+ * Only the segment holding the time is read: it starts with a keyframe,
+ * and the records after it are applied until one is newer than the time.
+ * The server recovers a write-ahead journal the same way, at the end.
+ */
+public class JournalReader {
+    private int width;
+    private int height;
+    /**
+     * Position of each player ID, packed by Server.pack, or
+     * Server.NOT_MOVED.
+     */
+    private long[] positions = new long[0];
+    /**
+     * Timestamp of the last record applied, or -1 if none was.
+     */
+    private long time = -1;
+    /**
+     * Entries of the record being read, applied once it is whole.
+     */
+    private int[] entries = new int[3 * 1024];
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Syntax: java benchmarkgame.JournalReader <journal directory> [time in ms since the epoch]\n\n"
+                    + "Renders the recorded game map at the given time, or at the end of the journal.");
+            System.exit(1);
+        }
+        long at = args.length > 1 ? Long.parseLong(args[1]) : Long.MAX_VALUE;
+        File[] segments = segments(new File(args[0]));
+        JournalReader reader = new JournalReader();
+        if (segments.length == 0 || !reader.replay(segments, at)) {
+            System.err.println("Nothing recorded in " + args[0] + " at that time");
+            System.exit(1);
+        }
+        System.out.println("Game State at " + new Date(reader.time) + " (" + reader.time + "):");
+        System.out.println(reader.render());
+    }
+
+    /**
+     * Segments of a journal directory, oldest first.
+     */
+    static File[] segments(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(StateJournal.SUFFIX));
+        if (files == null)
+            return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Position of each player ID recorded when the map was rebuilt,
+     * packed by Server.pack, or Server.NOT_MOVED; indexed by the IDs of
+     * the server that recorded it.
+     */
+    long[] positions() {
+        return positions;
+    }
+
+    /**
+     * Rebuilds the map at time at from the newest segment started by then.
+     * @return false if nothing was recorded by then.
+     */
+    boolean replay(File[] segments, long at) throws IOException {
+        int first = -1;
+        for (int i = segments.length - 1; i >= 0 && first < 0; i--) {
+            long start = startTime(segments[i]);
+            if (start >= 0 && start <= at)
+                first = i;
+        }
+        if (first < 0)
+            return false;
+        // a segment cut short by a crash still holds its first keyframe, the
+        // following one may pick up after it
+        for (int i = first; i < segments.length; i++)
+            if (!apply(segments[i], at))
+                break;
+        return time >= 0;
+    }
+
+    /**
+     * Timestamp of the keyframe opening a segment, or -1 if it has none or
+     * a crash cut it short.
+     */
+    private static long startTime(File segment) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(segment))) {
+            if (in.readInt() != StateJournal.MAGIC)
+                return -1;
+            in.readInt();
+            in.readInt();
+            in.readByte();
+            long t = in.readLong();
+            long n = in.readInt();
+            long end = StateJournal.SEGMENT_HEADER + StateJournal.RECORD_HEADER + n * StateJournal.ENTRY_SIZE;
+            return segment.length() >= end ? t : -1;
+        } catch (EOFException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Applies the records of a segment up to time at.
+     * @return true if the whole segment was older than at.
+     */
+    private boolean apply(File segment, long at) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(segment), 1 << 16))) {
+            if (in.readInt() != StateJournal.MAGIC)
+                throw new IOException(segment + " is not a journal segment");
+            width = in.readInt();
+            height = in.readInt();
+            while (true) {
+                byte type = in.readByte();
+                if (type == StateJournal.CHANGE) {
+                    int id = in.readInt();
+                    int x = in.readInt();
+                    set(id, x, in.readInt());
+                    continue;
+                }
+                if (type != StateJournal.KEYFRAME && type != StateJournal.DELTA
+                        && type != StateJournal.TIME)
+                    return true; // zeroes past the end of a crashed log
+                long t = in.readLong();
+                if (t > at)
+                    return false;
+                if (type == StateJournal.TIME) {
+                    time = t;
+                    continue;
+                }
+                int n = in.readInt();
+                if (n < 0)
+                    return true;
+                // a record cut short by a crash is not applied at all
+                if (entries.length < 3 * n)
+                    entries = new int[3 * n];
+                for (int i = 0; i < 3 * n; i++)
+                    entries[i] = in.readInt();
+                if (type == StateJournal.KEYFRAME)
+                    Arrays.fill(positions, Server.NOT_MOVED);
+                for (int i = 0; i < n; i++)
+                    set(entries[3 * i], entries[3 * i + 1], entries[3 * i + 2]);
+                time = t;
+            }
+        } catch (EOFException ex) {
+            // end of the segment, or a record cut short by a crash
+            return true;
+        }
+    }
+
+    /**
+     * Applies an entry, x being -1 for a player that left.
+     */
+    private void set(int id, int x, int y) {
+        if (id >= positions.length) {
+            int size = Math.max(id + 1, positions.length * 2);
+            int old = positions.length;
+            positions = Arrays.copyOf(positions, size);
+            Arrays.fill(positions, old, size, Server.NOT_MOVED);
+        }
+        positions[id] = x < 0 ? Server.NOT_MOVED : Server.pack(x, y);
+    }
+
+    /**
+     * Renders the top-left corner of the rebuilt map like Server.toString.
+     */
+    String render() {
+        int rows = Math.min(height, Server.RENDER_LIMIT);
+        int cols = Math.min(width, Server.RENDER_LIMIT);
+        boolean[] taken = new boolean[rows * cols];
+        for (long pos : positions) {
+            if (pos == Server.NOT_MOVED)
+                continue;
+            int x = Server.unpackX(pos), y = Server.unpackY(pos);
+            if (x < cols && y < rows)
+                taken[y * cols + x] = true;
+        }
+        return Server.render(taken, rows, cols);
+    }
+}
@@ -0,0 +1,120 @@
+package benchmarkgame;
+
+/**
+ * Histogram of latencies in nanoseconds over a high dynamic range, in the
+ * spirit of HdrHistogram: every power of two is split in 2^SUB_BITS linear
+ * sub-buckets, so any value from 1 ns to MAX_VALUE is kept with a relative
+ * error below 2^-SUB_BITS (0.4%) in a fixed, small array. Larger values
+ * are counted as MAX_VALUE.
+ *
+ * Not thread-safe: each recording thread keeps its own and they are added
+ * together at the end, or records into a StripedHistogram.
+ */
+class LatencyHistogram {
+    private static final int SUB_BITS = 8;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    /**
+     * Largest value told apart, about 18 minutes.
+     */
+    static final long MAX_VALUE = (1L << 40) - 1;
+
+    static final int BUCKETS = (40 - SUB_BITS + 1) * SUB_COUNT;
+
+    private final long[] counts = new long[BUCKETS];
+    private long total = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        else if (value > MAX_VALUE)
+            value = MAX_VALUE;
+        counts[index(value)]++;
+        total++;
+        sum += value;
+        if (value > max)
+            max = value;
+    }
+
+    /**
+     * Adds the values recorded by another histogram.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++)
+            counts[i] += other.counts[i];
+        total += other.total;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Adds values counted elsewhere with the same buckets.
+     * @param counts number of values in each bucket.
+     * @param sum their total.
+     * @param max the largest.
+     */
+    void add(long[] counts, long sum, long max) {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.counts[i] += counts[i];
+            total += counts[i];
+        }
+        this.sum += sum;
+        this.max = Math.max(this.max, max);
+    }
+
+    public long count() {
+        return total;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        return total == 0 ? 0 : (double) sum / total;
+    }
+
+    /**
+     * Smallest value such that percentile percent of the values are not
+     * larger, up to the precision of its sub-bucket.
+     * @param percentile from 0 to 100.
+     */
+    public long valueAt(double percentile) {
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highest(i), max);
+        }
+        return max;
+    }
+
+    /**
+     * Values below SUB_COUNT get a bucket each; above, the power of two
+     * picks a row and the next SUB_BITS bits the sub-bucket. The value
+     * must be from 0 to MAX_VALUE.
+     */
+    static int index(long value) {
+        if (value < SUB_COUNT)
+            return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exp - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) - SUB_COUNT);
+    }
+
+    /**
+     * Largest value counted in bucket i.
+     */
+    private static long highest(int i) {
+        int row = i >>> SUB_BITS;
+        if (row == 0)
+            return i;
+        int shift = row - 1;
+        long low = (long) (SUB_COUNT + (i & (SUB_COUNT - 1))) << shift;
+        return low + (1L << shift) - 1;
+    }
+}
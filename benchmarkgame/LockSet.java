@@ -0,0 +1,160 @@
+package benchmarkgame;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The stripes one operation needs and the ones it currently holds.
+ *
+ * An operation declares the stripes it knows about with {@link #want}, takes
+ * them with {@link #lockWanted} and, while working, asks for more with
+ * {@link #extend}. A stripe above every held one can be taken right away;
+ * any other would break the ordering, so it is only remembered and the
+ * operation has to release everything and start over.
+ *
+ * A stripe that is free is taken without reading the clock; only a wait
+ * is timed, and the hold time of one operation in HOLD_SAMPLE.
+ */
+class LockSet {
+    static final int HOLD_SAMPLE = 64;
+
+    private final ReentrantLock[] locks;
+    private final StripedHistogram waitTimes;
+    private final StripedHistogram holdTimes;
+    private int operations = 0;
+    private long holdStart = 0;
+    private int[] wanted = new int[8];
+    private int wantedCount = 0;
+    private int[] held = new int[8];
+    private int heldCount = 0;
+    private int maxHeld = -1;
+    /**
+     * False while the operation started by tryLockWanted.
+     */
+    private boolean waiting = true;
+
+    LockSet(ReentrantLock[] locks, StripedHistogram waitTimes, StripedHistogram holdTimes) {
+        this.locks = locks;
+        this.waitTimes = waitTimes;
+        this.holdTimes = holdTimes;
+    }
+
+    /**
+     * Adds a stripe to the ones taken by the next {@link #lockWanted}.
+     */
+    public void want(int stripe) {
+        for (int i = 0; i < wantedCount; i++)
+            if (wanted[i] == stripe)
+                return;
+        if (wantedCount == wanted.length)
+            wanted = Arrays.copyOf(wanted, wantedCount * 2);
+        wanted[wantedCount++] = stripe;
+    }
+
+    /**
+     * Takes every wanted stripe in increasing order.
+     */
+    public void lockWanted() {
+        sortWanted();
+        for (int i = 0; i < wantedCount; i++)
+            acquire(wanted[i], true);
+    }
+
+    /**
+     * Takes every wanted stripe in increasing order if none is held by
+     * another thread. Until the next {@link #clear}, {@link #extend} does
+     * not wait either: a stripe held elsewhere fails it like one out of
+     * order.
+     *
+     * @return false, holding nothing, if a stripe was taken.
+     */
+    public boolean tryLockWanted() {
+        sortWanted();
+        waiting = false;
+        for (int i = 0; i < wantedCount; i++) {
+            if (!acquire(wanted[i], false)) {
+                unlockAll();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void sortWanted() {
+        // insertion sort, the set is tiny
+        for (int i = 1; i < wantedCount; i++) {
+            int v = wanted[i], j = i - 1;
+            while (j >= 0 && wanted[j] > v) {
+                wanted[j + 1] = wanted[j];
+                j--;
+            }
+            wanted[j + 1] = v;
+        }
+    }
+
+    /**
+     * Makes sure the stripe is held.
+     *
+     * @return false if it could not be taken without breaking the lock
+     * order; it is then wanted and the caller must unlock and retry.
+     */
+    public boolean extend(int stripe) {
+        if (holds(stripe))
+            return true;
+        if (stripe > maxHeld && acquire(stripe, waiting))
+            return true;
+        want(stripe);
+        return false;
+    }
+
+    /**
+     * Whether the stripe is currently held.
+     */
+    public boolean holds(int stripe) {
+        for (int i = 0; i < heldCount; i++)
+            if (held[i] == stripe)
+                return true;
+        return false;
+    }
+
+    private boolean acquire(int stripe, boolean wait) {
+        ReentrantLock lock = locks[stripe];
+        if (!lock.tryLock()) {
+            if (!wait)
+                return false;
+            long start = System.nanoTime();
+            lock.lock();
+            waitTimes.record(System.nanoTime() - start);
+        }
+        if (heldCount == 0 && ++operations % HOLD_SAMPLE == 0)
+            holdStart = System.nanoTime();
+        if (heldCount == held.length)
+            held = Arrays.copyOf(held, heldCount * 2);
+        held[heldCount++] = stripe;
+        maxHeld = stripe;
+        return true;
+    }
+
+    /**
+     * Releases every held stripe, keeping the wanted ones for a retry.
+     */
+    public void unlockAll() {
+        for (int i = heldCount - 1; i >= 0; i--)
+            locks[held[i]].unlock();
+        if (holdStart != 0) {
+            holdTimes.record(System.nanoTime() - holdStart);
+            holdStart = 0;
+        }
+        heldCount = 0;
+        maxHeld = -1;
+    }
+
+    /**
+     * Releases everything and forgets the wanted stripes.
+     */
+    public void clear() {
+        unlockAll();
+        wantedCount = 0;
+        waiting = true;
+    }
+}
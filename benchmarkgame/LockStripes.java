@@ -0,0 +1,89 @@
+package benchmarkgame;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Splits the game map into square regions, each guarded by its own lock
+ * (a stripe). Operations that touch several regions always take their
+ * stripes in increasing index order, so two movers can never wait on each
+ * other in a cycle.
+ */
+class LockStripes {
+    /**
+     * Most stripes ever created; larger maps hash their regions onto them.
+     */
+    private static final int MAX_STRIPES = 4096;
+
+    private final int regionSide;
+    private final int regionsPerColumn;
+    private final boolean hashed;
+    private final ReentrantLock[] locks;
+    private final ThreadLocal<LockSet> sets;
+    /**
+     * How long the operations going through a LockSet waited for a stripe
+     * another thread held, and held their stripes, see LockSet.
+     */
+    private final StripedHistogram waitTimes = new StripedHistogram();
+    private final StripedHistogram holdTimes = new StripedHistogram();
+
+    /**
+     * @param width number of columns of the game map.
+     * @param height number of rows of the game map.
+     * @param regionSide side of the square region guarded by each stripe.
+     */
+    public LockStripes(int width, int height, int regionSide) {
+        this.regionSide = regionSide;
+        this.regionsPerColumn = (height + regionSide - 1) / regionSide;
+        long regions = (long) ((width + regionSide - 1) / regionSide) * regionsPerColumn;
+        this.hashed = regions > MAX_STRIPES;
+        this.locks = new ReentrantLock[hashed ? MAX_STRIPES : (int) regions];
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new ReentrantLock();
+        this.sets = ThreadLocal.withInitial(() -> new LockSet(locks, waitTimes, holdTimes));
+    }
+
+    /**
+     * Returns the stripe guarding the given cell.
+     */
+    public int stripeOf(int x, int y) {
+        long region = (long) (x / regionSide) * regionsPerColumn + (y / regionSide);
+        if (!hashed)
+            return (int) region;
+        long h = region * 0x9E3779B97F4A7C15L;
+        return (int) ((h >>> 40) % MAX_STRIPES);
+    }
+
+    public int regionSide() {
+        return regionSide;
+    }
+
+    public ReentrantLock lock(int stripe) {
+        return locks[stripe];
+    }
+
+    public int size() {
+        return locks.length;
+    }
+
+    /**
+     * Returns the (reusable) set of stripes of the calling thread.
+     */
+    public LockSet set() {
+        return sets.get();
+    }
+
+    /**
+     * Nanoseconds spent waiting for a stripe, only counting the waits.
+     */
+    public LatencyHistogram waitTimes() {
+        return waitTimes.snapshot();
+    }
+
+    /**
+     * Nanoseconds from taking the first stripe to releasing them all, for
+     * one operation in HOLD_SAMPLE of each thread.
+     */
+    public LatencyHistogram holdTimes() {
+        return holdTimes.snapshot();
+    }
+}
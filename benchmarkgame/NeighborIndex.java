@@ -0,0 +1,219 @@
+package benchmarkgame;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Finds the players around a position without looking at the rest of the
+ * map, for ATTACK.
+ *
+ * The map is cut in square buckets, each listing the players standing in
+ * it. Every change of position is reported through changed, next to the
+ * snapshots and the journal, and only a player crossing into another
+ * bucket touches the lists; a step inside its bucket costs one store. A
+ * query visits the buckets overlapping the square around its circle,
+ * wrapping around the edges of the map, and measures the distance of the
+ * players they list, so it costs the buckets in range plus the players in
+ * them, whatever the area of the map. The bucket side is a power of two,
+ * doubled until the map has at most MAX_BUCKETS, so huge sparse maps stay
+ * small.
+ *
+ * Each bucket is its own monitor, held while a player is added or taken
+ * out, or while a query reads the list. Moves and queries thus only wait
+ * for each other on the same bucket, and briefly, but a query is not a
+ * consistent cut: a player crossing between buckets as it runs may be
+ * missed. A player is only counted in the bucket of its position as read
+ * by the query, so it is not counted twice.
+ */
+class NeighborIndex {
+    private static final long MAX_BUCKETS = 1 << 20;
+    private static final VarHandle BUCKETS = MethodHandles.arrayElementVarHandle(Bucket[].class);
+    private static final VarHandle POSITIONS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final int width;
+    private final int height;
+    private final int side;
+    private final int shift;
+    private final int rows;
+    /**
+     * Buckets by number, column-major like the cells, each created when a
+     * player first enters it.
+     */
+    private final Bucket[] buckets;
+    /**
+     * Position of each player packed by Server.pack, or Server.NOT_MOVED,
+     * and its slot in the list of the bucket of that position. Changes of
+     * a player are made one at a time, under the stripes, reservations or
+     * thread of its engine, so only queries read a position concurrently;
+     * slotOf is guarded by the monitor of the bucket.
+     */
+    private final long[] positions;
+    private final int[] slotOf;
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder scanned = new LongAdder();
+
+    /**
+     * @param width number of columns of the map.
+     * @param height number of rows of the map.
+     * @param maxPlayers number of player IDs.
+     * @param side smallest side of a bucket.
+     */
+    public NeighborIndex(int width, int height, int maxPlayers, int side) {
+        side = side == 1 ? 1 : Integer.highestOneBit(side - 1) * 2;
+        while ((long) ((width + side - 1) / side) * ((height + side - 1) / side) > MAX_BUCKETS)
+            side *= 2;
+        this.width = width;
+        this.height = height;
+        this.side = side;
+        this.shift = Integer.numberOfTrailingZeros(side);
+        this.rows = (height + side - 1) / side;
+        this.buckets = new Bucket[((width + side - 1) / side) * rows];
+        this.positions = new long[maxPlayers];
+        this.slotOf = new int[maxPlayers];
+        Arrays.fill(positions, Server.NOT_MOVED);
+    }
+
+    /**
+     * Records the new position of a player, packed by Server.pack, or
+     * Server.NOT_MOVED when it leaves the map.
+     */
+    public void changed(int id, long pos) {
+        int from = bucket(positions[id]);
+        POSITIONS.setOpaque(positions, id, pos);
+        int to = bucket(pos);
+        if (to == from)
+            return;
+        if (from >= 0)
+            buckets[from].remove(id, slotOf);
+        if (to >= 0)
+            bucketAt(to).add(id, slotOf);
+    }
+
+    /**
+     * Counts the players other than id within radius of (x, y), the
+     * distance being Euclidean on the torus.
+     */
+    public int count(int id, int x, int y, int radius) {
+        long r2 = (long) radius * radius;
+        int found = 0, seen = 0;
+        int spanX = (int) Math.min(2L * radius + 1, width);
+        int spanY = (int) Math.min(2L * radius + 1, height);
+        // a range wrapping around may end in the bucket it started in
+        int firstColumn = -1;
+        for (int a = x - radius, endA = a + spanX; a < endA; ) {
+            int cx = Math.floorMod(a, width);
+            int column = cx >> shift;
+            if (column == firstColumn)
+                break;
+            if (firstColumn < 0)
+                firstColumn = column;
+            a += Math.min((column + 1) * side, width) - cx;
+            int firstRow = -1;
+            for (int b = y - radius, endB = b + spanY; b < endB; ) {
+                int cy = Math.floorMod(b, height);
+                int row = cy >> shift;
+                if (row == firstRow)
+                    break;
+                if (firstRow < 0)
+                    firstRow = row;
+                int number = column * rows + row;
+                b += Math.min((row + 1) * side, height) - cy;
+                Bucket bucket = (Bucket) BUCKETS.getAcquire(buckets, number);
+                if (bucket == null)
+                    continue;
+                synchronized (bucket) {
+                    for (int i = 0; i < bucket.size; i++) {
+                        int other = bucket.ids[i];
+                        long pos = (long) POSITIONS.getOpaque(positions, other);
+                        if (other == id || pos == Server.NOT_MOVED)
+                            continue;
+                        int px = Server.unpackX(pos), py = Server.unpackY(pos);
+                        if (bucket(px, py) != number)
+                            continue;
+                        seen++;
+                        long dx = Math.abs(px - x), dy = Math.abs(py - y);
+                        dx = Math.min(dx, width - dx);
+                        dy = Math.min(dy, height - dy);
+                        if (dx * dx + dy * dy <= r2)
+                            found++;
+                    }
+                }
+            }
+        }
+        queries.increment();
+        hits.add(found);
+        scanned.add(seen);
+        return found;
+    }
+
+    /**
+     * Side of the buckets, at least the one asked for.
+     */
+    public int bucketSide() {
+        return side;
+    }
+
+    /**
+     * Queries answered, players found in range, and players looked at to
+     * find them.
+     */
+    public long queryCount() {
+        return queries.sum();
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long scannedCount() {
+        return scanned.sum();
+    }
+
+    /**
+     * Bucket of a position packed by Server.pack, -1 for Server.NOT_MOVED.
+     */
+    private int bucket(long pos) {
+        return pos == Server.NOT_MOVED ? -1 : bucket(Server.unpackX(pos), Server.unpackY(pos));
+    }
+
+    private int bucket(int x, int y) {
+        return (x >> shift) * rows + (y >> shift);
+    }
+
+    private Bucket bucketAt(int number) {
+        Bucket b = (Bucket) BUCKETS.getAcquire(buckets, number);
+        if (b != null)
+            return b;
+        Bucket fresh = new Bucket();
+        Bucket won = (Bucket) BUCKETS.compareAndExchangeRelease(buckets, number, null, fresh);
+        return won == null ? fresh : won;
+    }
+
+    /**
+     * The players of one bucket, in no particular order.
+     */
+    private static class Bucket {
+        int[] ids = new int[4];
+        int size = 0;
+
+        synchronized void add(int id, int[] slotOf) {
+            if (size == ids.length)
+                ids = Arrays.copyOf(ids, size * 2);
+            slotOf[id] = size;
+            ids[size++] = id;
+        }
+
+        /**
+         * Takes the player out, moving the last one into its slot.
+         */
+        synchronized void remove(int id, int[] slotOf) {
+            int slot = slotOf[id];
+            int last = ids[--size];
+            ids[slot] = last;
+            slotOf[last] = slot;
+        }
+    }
+}
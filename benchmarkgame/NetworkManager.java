@@ -1,18 +1,12 @@
 package benchmarkgame;
 
-import benchmarkgame.gameutils.Command;
-import benchmarkgame.gameutils.LocPair;
-import benchmarkgame.gameutils.Move;
-import benchmarkgame.gameutils.Status;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import benchmarkgame.gameutils.ServerMode;
+import benchmarkgame.gameutils.SetConfig;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.nio.channels.ServerSocketChannel;
 
 
 /**
@@ -21,8 +15,19 @@ import java.util.logging.Logger;
  */
 public class NetworkManager {
     private ServerSocket server;
+    private ServerSocketChannel channel;
     private int threadLimit = 16;
+    private ServerMode mode;
     private Server s;
+    /**
+     * CPUs the accepting thread is pinned to, and so the threads serving
+     * connections it starts, or null.
+     */
+    private String ioCpus;
+    /**
+     * Connections accepted and not logged in yet.
+     */
+    private AcceptQueue acceptQueue;
     
     
     /**
@@ -31,23 +36,73 @@ public class NetworkManager {
      * @throws Exception 
      */
     public NetworkManager(Server _s, String ipAddress) throws Exception {
+        this(_s, ipAddress, 0, ServerMode.BLOCKING, 16, null, 1024, 256);
+    }
+
+    /**
+     * Initializes server, opening either a blocking server socket or a
+     * non-blocking server channel on input IP address, depending on the mode.
+     * @param ipAddress: IP address to be used by the server.
+     * @param port: port to listen on, 0 picks any free port.
+     * @param mode: how client connections are going to be served.
+     * @param threadLimit: number of I/O threads used by the NIO mode.
+     * @param ioCpus: CPUs the I/O threads are pinned to, or null.
+     * @param backlog: connections the kernel queues until they are accepted.
+     * @param acceptQueue: connections accepted but not logged in yet.
+     * @throws Exception 
+     */
+    public NetworkManager(Server _s, String ipAddress, int port, ServerMode mode,
+            int threadLimit, String ioCpus, int backlog, int acceptQueue) throws Exception {
+        InetAddress address;
         if (ipAddress != null && !ipAddress.isEmpty()) 
-          this.server = new ServerSocket(0, 1, InetAddress.getByName(ipAddress));
+          address = InetAddress.getByName(ipAddress);
         else 
-          this.server = new ServerSocket(0, 1, InetAddress.getLocalHost());
+          address = InetAddress.getLocalHost();
+
+        if (mode == ServerMode.NIO) {
+            this.channel = ServerSocketChannel.open();
+            this.channel.bind(new InetSocketAddress(address, port), backlog);
+            this.server = this.channel.socket();
+        } else {
+            this.server = new ServerSocket(port, backlog, address);
+        }
         this.s = _s;
+        this.mode = mode;
+        this.threadLimit = threadLimit;
+        this.ioCpus = ioCpus;
+        this.acceptQueue = new AcceptQueue(acceptQueue, _s.metrics());
     }
     
     /**
-     * Listen for client connections, launching threads for each new connection
+     * Listen for client connections, either launching a platform or virtual
+     * thread for each new connection or handing them to the selector threads.
+     * A thread starts with the CPU affinity of the thread starting it, so
+     * pinning the accepting thread pins the connection threads, the
+     * selector threads and, as they are started on demand, mostly the
+     * carriers of the virtual threads too.
+     *
+     * A connection is only accepted once it has a place in the accept
+     * queue, so a burst of logins waits in the listen backlog of the
+     * kernel, not in threads or selector queues.
      * @throws Exception 
      */
     public void listen() throws Exception {
+        if (ioCpus != null)
+            SetConfig.pinThread(ioCpus);
         System.out.println("Waiting for new players ...");
+        if (mode == ServerMode.NIO) {
+            new Reactor(channel, threadLimit, acceptQueue).run();
+            return;
+        }
         while (true) {                        
+            acceptQueue.enter();
             Socket client = this.server.accept();
-            Thread t = new Thread(new Handler(client));
-            t.start();
+            if (mode == ServerMode.VIRTUAL) {
+                Thread.ofVirtual().start(new Handler(client, acceptQueue));
+            } else {
+                Thread t = new Thread(new Handler(client, acceptQueue));
+                t.start();
+            }
         }        
     }
     public InetAddress getSocketAddress() {
@@ -58,180 +113,3 @@ public class NetworkManager {
         return this.server.getLocalPort();
     }
 }
-
-/**
- * Implements a runnable handler to each user.
- */
-class Handler implements Runnable {
-    Socket client;
-    String clientID;
-    Server s;
-    
-    public Handler(Socket c) {
-        this.client = c;
-    }
-    
-    private void sendMessage(String message) throws IOException {
-        PrintWriter out = new PrintWriter(client.getOutputStream(), true);
-        out.println(message);
-        out.flush();
-        return;
-    }
-
-    public void cmdMove(String clientID, Move direction) throws IOException {
-        
-        LocPair ret, currentPos, initialPos;
-        String serverMessage;
-        
-        currentPos = s.getCurrentPosition(clientID);
-        initialPos = new LocPair(-2, -2);
-        initialPos.x = currentPos.x;
-        initialPos.y = currentPos.y;
-
-        switch(direction) {
-            case UP:
-                ret = s.updatePosition(clientID, 0, 1);
-                if (ret == initialPos){                   
-                    serverMessage = "You could not make the move, " + clientID; 
-                    sendMessage(serverMessage);
-                } else {                                
-                    serverMessage = "Move successful. " + clientID + ", your new position is: (" + ret.x + ", " + ret.y + ").";
-                    sendMessage(serverMessage);         
-                }
-                break;
-            case DOWN:
-                ret = s.updatePosition(clientID, 0, -1);
-                if (ret == initialPos){                   
-                    serverMessage = "You could not make the move, " + clientID; 
-                    sendMessage(serverMessage);
-                } else {                                
-                    serverMessage = "Move successful. " + clientID + ", your new position is: (" + ret.x + ", " + ret.y + ").";
-                    sendMessage(serverMessage);         
-                }
-                break;
-            case RIGHT:
-                ret = s.updatePosition(clientID, 1, 0);
-                if (ret == initialPos){                   
-                    serverMessage = "You could not make the move, " + clientID; 
-                    sendMessage(serverMessage);
-                } else {                                
-                    serverMessage = "Move successful. " + clientID + ", your new position is: (" + ret.x + ", " + ret.y + ").";
-                    sendMessage(serverMessage);         
-                }
-                break;
-            case LEFT:
-                ret = s.updatePosition(clientID, -1, 0);
-                if (ret == initialPos){                   
-                    serverMessage = "You could not make the move, " + clientID; 
-                    sendMessage(serverMessage);
-                } else {                                
-                    serverMessage = "Move successful. " + clientID + ", your new position is: (" + ret.x + ", " + ret.y + ").";
-                    sendMessage(serverMessage);         
-                }
-                break;
-            case UR:
-                ret = s.updatePosition(clientID, 1, 1);
-                if (ret == initialPos){                   
-                    serverMessage = "You could not make the move, " + clientID; 
-                    sendMessage(serverMessage);
-                } else {                                
-                    serverMessage = "Move successful. " + clientID + ", your new position is: (" + ret.x + ", " + ret.y + ").";
-                    sendMessage(serverMessage);         
-                }
-                break;
-            case UL:
-                ret = s.updatePosition(clientID, -1, 1);
-                if (ret != initialPos){                   
-                    serverMessage = "Move successful. " + clientID + ", your new position is: (" + ret.x + ", " + ret.y + ").";
-                    sendMessage(serverMessage);
-                } else {                                
-                    serverMessage = "You could not make the move, " + clientID; 
-                    sendMessage(serverMessage);         
-                }
-                break;
-            case DR:
-                ret = s.updatePosition(clientID, 1, -1);
-                if (ret == initialPos){                   
-                    serverMessage = "You could not make the move, " + clientID; 
-                    sendMessage(serverMessage);
-                } else {                                
-                    serverMessage = "Move successful. " + clientID + ", your new position is: (" + ret.x + ", " + ret.y + ").";
-                    sendMessage(serverMessage);         
-                }
-                break;
-            case DL:
-                ret = s.updatePosition(clientID, -1, -1);
-                if (ret == initialPos){                   
-                    serverMessage = "You could not make the move, " + clientID; 
-                    sendMessage(serverMessage);
-                } else {                                
-                    serverMessage = "Move successful. " + clientID + ", your new position is: (" + ret.x + ", " + ret.y + ").";
-                    sendMessage(serverMessage);         
-                }
-                break;
-            default:
-                serverMessage = "Invalid movement. " + clientID;
-                sendMessage(serverMessage);
-                break;
-        }
-    }
-    
-    private void cmdMove(String clientID, String a) throws IOException {
-        //System.out.println("entrei na função!!! " + clientID);
-        cmdMove(clientID, Move.valueOf(a));
-    }
-        
-    /**
-     * Handles clients commands like movements and attacks.
-     * @param command: Command sent by client.
-     */
-    public void handleCommand(String clientID, String[] command) throws IOException {
-        String op = command[0];
-        switch(Command.valueOf(op)) {
-            case MOVE:
-                cmdMove(clientID, command[1]);
-                break;
-            case SHOW:
-                System.out.println(s.toString());
-                System.exit(0);
-                break;
-            default:
-                break;
-        }
-    }
-    
-    
-    /**
-     * Handle client connection while buffer is being used. Receives and 
-     * re-passes commands from players.
-     */
-    public void run() {
-        String data = null;
-        String clientAddress = client.getInetAddress().getHostAddress();
-        String clientPort = ((Integer)client.getPort()).toString();
-        clientID = clientAddress + "/" + clientPort;        
-        s = Server.getServerRef();
-        
-        if(s.randomPosition(clientID) == Status.FAILED) {
-            // not using this thread.
-            return;
-        }
-        
-        System.out.println("Client <" + clientID + "> logged in!");
-        
-        // receives messages from the player with commands to be executed on the
-        // server, like movements or attacks
-        try {
-            BufferedReader in = new BufferedReader(
-                new InputStreamReader(client.getInputStream()));
-            while ( (data = in.readLine()) != null ) {
-                String[] command = data.split(" ");
-                System.out.println("\r\nMessage from " + clientPort + ": " + data + " -- " + command[0]);
-                handleCommand(clientID, command);
-            }
-        } catch (IOException ex) {
-            Logger.getLogger(Handler.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        
-    }
-}
\ No newline at end of file
@@ -0,0 +1,331 @@
+package benchmarkgame;
+
+import benchmarkgame.gameutils.BinaryProtocol;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Driver mode simulating many players from a few threads: each loop owns a
+ * selector and a share of the players, each one a non-blocking channel
+ * with its own schedule and its own reply count.
+ *
+ * In closed loop a player keeps its channel full with commands until all
+ * are sent. In open loop (interval > 0) its command k is due at
+ * start + offset + k * interval; the loop keeps its players ordered by
+ * their next due time and selects only until the first one, and latency
+ * is counted from the due time like in the threaded Driver.
+ *
+ * Results are kept per loop and read by the Driver once the thread ended.
+ */
+class PlayerLoop implements Runnable {
+    private static final long POLL_NANOS = 50_000;
+    private final Selector selector;
+    private final List<SimulatedPlayer> players = new ArrayList<SimulatedPlayer>();
+    private final PriorityQueue<SimulatedPlayer> schedule = new PriorityQueue<SimulatedPlayer>(
+            (a, b) -> Long.compare(a.nextDue, b.nextDue));
+    private final Random random = new Random();
+    private final boolean binary;
+    private final int batchSize;
+    private final int movesPerPlayer;
+    private final int repliesPerPlayer;
+    private final long interval;
+    private final int commandSize;
+    private final int attackPercent;
+    private final int radius;
+    private long start;
+    private int active;
+
+    final LatencyHistogram latency = new LatencyHistogram();
+    long sendLag = 0;
+    long replies = 0;
+    long moves = 0;
+    long bytes = 0;
+    long attacks = 0;
+    int rejected = 0;
+
+    /**
+     * @param binary whether players speak the binary protocol.
+     * @param batchSize most moves per command.
+     * @param movesPerPlayer moves each player makes.
+     * @param interval nanoseconds between the commands of a player, 0 for
+     * closed loop.
+     * @param attackPercent percentage of the commands sent as ATTACK.
+     * @param radius radius of the attacks.
+     * @throws IOException
+     */
+    public PlayerLoop(boolean binary, int batchSize, int movesPerPlayer, long interval,
+            int attackPercent, int radius) throws IOException {
+        this.selector = Selector.open();
+        this.binary = binary;
+        this.batchSize = batchSize;
+        this.movesPerPlayer = movesPerPlayer;
+        this.repliesPerPlayer = (movesPerPlayer + batchSize - 1) / batchSize;
+        this.interval = interval;
+        this.commandSize = Clients.maxCommandSize(batchSize);
+        this.attackPercent = attackPercent;
+        this.radius = radius;
+    }
+
+    /**
+     * Adds a connected player, before the loop starts.
+     * @param channel connection to the server.
+     * @param offset delay of its schedule after the common start.
+     */
+    public void add(SocketChannel channel, long offset) {
+        players.add(new SimulatedPlayer(channel, offset));
+    }
+
+    /**
+     * Sets the time the first commands of the open loop are due.
+     */
+    public void start(long start) {
+        this.start = start;
+    }
+
+    public void run() {
+        try {
+            active = players.size();
+            for (SimulatedPlayer p : players) {
+                p.channel.configureBlocking(false);
+                p.key = p.channel.register(selector, SelectionKey.OP_READ, p);
+                if (binary) {
+                    p.out.put(BinaryProtocol.HELLO).put(BinaryProtocol.VERSION);
+                    p.bytesSent += 2;
+                }
+                if (interval > 0) {
+                    p.nextDue = start + p.offset;
+                    schedule.add(p);
+                } else {
+                    fill(p);
+                }
+                try {
+                    flush(p);
+                } catch (IOException ex) {
+                    finish(p);
+                }
+            }
+            while (active > 0) {
+                select();
+                sendDue();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    SimulatedPlayer p = (SimulatedPlayer) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable())
+                            onReadable(p);
+                        if (key.isValid() && key.isWritable()) {
+                            fill(p);
+                            flush(p);
+                        }
+                    } catch (IOException ex) {
+                        finish(p);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+            selector.close();
+        } catch (IOException ex) {
+            System.err.println("IO exception!");
+        }
+    }
+
+    /**
+     * Waits for I/O, or only until the next command is due. The selector
+     * counts in milliseconds, so shorter waits poll it and park for at most
+     * POLL_NANOS in between, which bounds how late a reply is seen.
+     */
+    private void select() throws IOException {
+        SimulatedPlayer next = schedule.peek();
+        if (next == null) {
+            selector.select();
+            return;
+        }
+        long wait = next.nextDue - System.nanoTime();
+        if (wait >= 1_000_000) {
+            selector.select(wait / 1_000_000);
+            return;
+        }
+        if (selector.selectNow() == 0 && wait > 0)
+            LockSupport.parkNanos(Math.min(wait, POLL_NANOS));
+    }
+
+    /**
+     * Sends every command whose due time passed.
+     */
+    private void sendDue() {
+        long now = System.nanoTime();
+        SimulatedPlayer p;
+        while ((p = schedule.peek()) != null && p.nextDue <= now) {
+            schedule.poll();
+            if (!p.channel.isOpen())
+                continue;
+            sendLag = Math.max(sendLag, now - p.nextDue);
+            encode(p);
+            try {
+                flush(p);
+            } catch (IOException ex) {
+                finish(p);
+                continue;
+            }
+            if (p.sent < repliesPerPlayer) {
+                p.nextDue += interval;
+                schedule.add(p);
+            }
+        }
+    }
+
+    /**
+     * Closed loop: queues commands while the buffer has room.
+     */
+    private void fill(SimulatedPlayer p) {
+        while (interval == 0 && p.sent < repliesPerPlayer && p.out.remaining() >= commandSize)
+            encode(p);
+    }
+
+    private void encode(SimulatedPlayer p) {
+        if (p.out.remaining() < commandSize) {
+            // open loop against a server that does not read: keep the backlog
+            ByteBuffer bigger = ByteBuffer.allocate(p.out.capacity() * 2);
+            p.out.flip();
+            bigger.put(p.out);
+            p.out = bigger;
+        }
+        if (Clients.attacks(random, attackPercent)) {
+            p.bytesSent += Clients.encodeAttack(p.out, binary, radius);
+            attacks++;
+        } else {
+            int n = Math.min(batchSize, movesPerPlayer - p.sent * batchSize);
+            p.bytesSent += Clients.encode(p.out, binary, n, batchSize, random);
+        }
+        p.sent++;
+    }
+
+    private void flush(SimulatedPlayer p) throws IOException {
+        p.out.flip();
+        p.channel.write(p.out);
+        if (p.out.hasRemaining())
+            p.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        else
+            p.key.interestOps(SelectionKey.OP_READ);
+        p.out.compact();
+    }
+
+    /**
+     * Counts the complete replies read, recording their latency in open
+     * loop.
+     */
+    private void onReadable(SimulatedPlayer p) throws IOException {
+        int n = p.channel.read(p.in);
+        if (n < 0) {
+            finish(p);
+            return;
+        }
+        p.bytesReceived += n;
+        long now = System.nanoTime();
+        ByteBuffer in = p.in;
+        in.flip();
+        if (binary && !p.accepted) {
+            if (in.remaining() >= 2) {
+                in.position(in.position() + 2);
+                p.accepted = true;
+            }
+        }
+        while (p.accepted || !binary) {
+            int size;
+            if (binary) {
+                if (!in.hasRemaining())
+                    break;
+                size = in.get(in.position()) == BinaryProtocol.BATCHED
+                    ? BinaryProtocol.BATCH_REPLY_SIZE : BinaryProtocol.REPLY_SIZE;
+                if (in.remaining() < size)
+                    break;
+            } else {
+                size = 0;
+                for (int i = in.position(); i < in.limit() && size == 0; i++)
+                    if (in.get(i) == '\n')
+                        size = i - in.position() + 1;
+                if (size == 0)
+                    break;
+            }
+            if (full(in, size)) {
+                // the server closes the connection, p counts as rejected
+                finish(p);
+                return;
+            }
+            in.position(in.position() + size);
+            if (interval > 0)
+                latency.record(now - (start + p.offset + p.received * interval));
+            p.received++;
+        }
+        in.compact();
+        if (p.received >= repliesPerPlayer)
+            finish(p);
+        else if (!binary && !in.hasRemaining())
+            throw new IOException("Reply line too long");
+    }
+
+    /**
+     * Whether the reply of the given size at the position of in says the
+     * server has no room for the player.
+     */
+    private boolean full(ByteBuffer in, int size) {
+        int at = in.position();
+        if (binary)
+            return in.get(at) == BinaryProtocol.FULL;
+        if (size <= Clients.FULL.length)
+            return false;
+        for (int i = 0; i < Clients.FULL.length; i++)
+            if (in.get(at + i) != Clients.FULL[i])
+                return false;
+        return true;
+    }
+
+    private void finish(SimulatedPlayer p) {
+        if (!p.channel.isOpen())
+            return;
+        p.key.cancel();
+        try {
+            p.channel.close();
+        } catch (IOException ex) {
+            // already gone
+        }
+        active--;
+        if (p.received == 0 && movesPerPlayer > 0)
+            rejected++;
+        replies += p.received;
+        moves += Math.min((long) p.received * batchSize, movesPerPlayer);
+        bytes += p.bytesSent + p.bytesReceived;
+    }
+}
+
+/**
+ * State of one player of a PlayerLoop.
+ */
+class SimulatedPlayer {
+    final SocketChannel channel;
+    final long offset;
+    SelectionKey key;
+    ByteBuffer out = ByteBuffer.allocate(8192);
+    final ByteBuffer in = ByteBuffer.allocate(8192);
+    /**
+     * Whether the binary handshake was answered.
+     */
+    boolean accepted = false;
+    int sent = 0;
+    int received = 0;
+    long nextDue;
+    long bytesSent = 0;
+    long bytesReceived = 0;
+
+    SimulatedPlayer(SocketChannel channel, long offset) {
+        this.channel = channel;
+        this.offset = offset;
+    }
+}
@@ -0,0 +1,90 @@
+package benchmarkgame;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tells players that asked for it (NOTIFY ON) when the move of another
+ * player pushed them, so they need not poll for their position.
+ *
+ * The mover only flags the pushed player's connection, which owns the
+ * delivery: a connection has at most one notice due, and it carries the
+ * player's position when it is written, not when it was pushed. Pushes
+ * made before the connection got to it are coalesced into that notice, so
+ * a slow player costs no memory and never makes a mover wait.
+ */
+class PushNotices {
+    /**
+     * The connection of each player ID that listens, else null.
+     */
+    private final AtomicReferenceArray<Handler> listeners;
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param maxPlayers number of player IDs.
+     */
+    public PushNotices(int maxPlayers) {
+        this.listeners = new AtomicReferenceArray<Handler>(maxPlayers);
+    }
+
+    public void listen(int id, Handler handler) {
+        listeners.set(id, handler);
+    }
+
+    public void stop(int id) {
+        listeners.set(id, null);
+    }
+
+    /**
+     * Called by the mover, with the stripes of the player held, once the
+     * player was pushed to its new position.
+     */
+    public void pushed(int id) {
+        Handler handler = listeners.get(id);
+        if (handler != null)
+            handler.pushed();
+    }
+
+    void queued() {
+        queued.increment();
+    }
+
+    void sent() {
+        sent.increment();
+    }
+
+    void coalesced() {
+        coalesced.increment();
+    }
+
+    /**
+     * Counts a notice due that will not be written: the player stopped
+     * listening or left, or its connection is too far behind.
+     */
+    void dropped() {
+        dropped.increment();
+    }
+
+    /**
+     * Notices due and not written yet, at most one per connection; the
+     * counters are read one after the other, so it is approximate.
+     */
+    public long pending() {
+        return Math.max(0, queued.sum() - sent.sum() - dropped.sum());
+    }
+
+    public long sentCount() {
+        return sent.sum();
+    }
+
+    public long coalescedCount() {
+        return coalesced.sum();
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+}
@@ -0,0 +1,216 @@
+package benchmarkgame;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resolves the "A pushes B" rule of a move in two steps: it first walks
+ * the displacement chain iteratively, without touching the map, and only
+ * if the whole chain can be carried out it commits every step at once.
+ *
+ * A chain never grows past maxDepth pushed players. Each pushed player goes
+ * to one of the eight positions around the one it is pushed from, never to
+ * the position of its pusher nor to any position of a player already in
+ * the chain, so the chain cannot come back on itself. On a sharded map it
+ * never goes to the columns of another shard either. The choice is a hash
+ * of the seed and of the positions involved instead of a retry loop over a
+ * Random: the same map and the same moves always give the same chains.
+ */
+class PushResolver {
+    /**
+     * Outcomes of resolve.
+     */
+    static final int MOVED = 0, BLOCKED = 1, RETRY = 2;
+
+    /**
+     * The eight positions around a pushed player, by direction index.
+     */
+    static final int[] DX = {-1, -1, -1,  0, 0,  1, 1, 1};
+    static final int[] DY = {-1,  0,  1, -1, 1, -1, 0, 1};
+
+    private final Board map;
+    private final int[] posX;
+    private final int[] posY;
+    private final LockStripes stripes;
+    private final int maxDepth;
+    private final long seed;
+    private final StateJournal journal;
+    private final BoardSnapshots snapshots;
+    private final NeighborIndex neighbors;
+    private final PushNotices notices;
+    private final Shards shards;
+    /**
+     * Committed moves by number of players pushed, and moves refused
+     * because their chain was too long or had nowhere to go.
+     */
+    private final LongAdder[] chainLengths;
+    private final LongAdder blocked = new LongAdder();
+
+    /**
+     * @param map the game map.
+     * @param posX current column of each player.
+     * @param posY current row of each player.
+     * @param stripes locks of the map regions.
+     * @param maxDepth most players a single move may push.
+     * @param seed seed of the push destinations.
+     * @param journal told about every player moved, or null.
+     * @param snapshots told about every player moved.
+     * @param neighbors told about every player moved.
+     * @param notices told about every player pushed.
+     * @param shards owners of the columns of a sharded map, or null.
+     */
+    public PushResolver(Board map, int[] posX, int[] posY, LockStripes stripes,
+            int maxDepth, long seed, StateJournal journal, BoardSnapshots snapshots,
+            NeighborIndex neighbors, PushNotices notices, Shards shards) {
+        this.map = map;
+        this.posX = posX;
+        this.posY = posY;
+        this.stripes = stripes;
+        this.maxDepth = maxDepth;
+        this.seed = seed;
+        this.journal = journal;
+        this.snapshots = snapshots;
+        this.neighbors = neighbors;
+        this.notices = notices;
+        this.shards = shards;
+        this.chainLengths = new LongAdder[maxDepth + 1];
+        for (int i = 0; i <= maxDepth; i++)
+            chainLengths[i] = new LongAdder();
+    }
+
+    /**
+     * Works out the chain of players displaced when the player moves by
+     * (dx, dy). The caller holds the stripes of the player's position and of
+     * its target; the stripe of every further position is taken through
+     * locks, or locks is null when the caller owns the whole map.
+     *
+     * @param chain filled with the players to move and their destinations.
+     * @return MOVED if the chain can be committed, BLOCKED if the move is
+     * not possible, RETRY if a stripe has to be taken out of order.
+     */
+    public int resolve(int id, int dx, int dy, LockSet locks, Chain chain) {
+        int member = id;
+        int x = posX[id], y = posY[id];
+        int tx = wrap(x + dx, map.width), ty = wrap(y + dy, map.height);
+        chain.length = 0;
+        while (true) {
+            chain.add(member, tx, ty);
+            int other = map.get(tx, ty);
+            if (other == Board.FREE)
+                return MOVED;
+            if (chain.length > maxDepth || chain.contains(other)) {
+                blocked.increment();
+                return BLOCKED;
+            }
+            int dest = destination(other, tx, ty, x, y, chain);
+            if (dest < 0) {
+                blocked.increment();
+                return BLOCKED;
+            }
+            int ox = wrap(tx + DX[dest], map.width), oy = wrap(ty + DY[dest], map.height);
+            if (locks != null && !locks.extend(stripes.stripeOf(ox, oy)))
+                return RETRY;
+            member = other;
+            x = tx;
+            y = ty;
+            tx = ox;
+            ty = oy;
+        }
+    }
+
+    /**
+     * Moves every player of a resolved chain, the last one first, so each
+     * one steps into a position its successor has just left. The whole
+     * chain belongs to a single snapshot epoch. The pushed players are
+     * told once all of them moved.
+     */
+    public void commit(Chain chain) {
+        int mover = chain.ids[0];
+        int startX = posX[mover], startY = posY[mover];
+        long epoch = snapshots.enter(mover);
+        try {
+            for (int i = chain.length - 1; i >= 0; i--) {
+                int id = chain.ids[i];
+                map.set(chain.toX[i], chain.toY[i], id);
+                posX[id] = chain.toX[i];
+                posY[id] = chain.toY[i];
+                long pos = Server.pack(chain.toX[i], chain.toY[i]);
+                snapshots.changed(epoch, id, pos);
+                neighbors.changed(id, pos);
+                if (journal != null)
+                    journal.changed(id, pos);
+            }
+            map.set(startX, startY, Board.FREE);
+        } finally {
+            snapshots.exit(epoch, mover);
+        }
+        for (int i = 1; i < chain.length; i++)
+            notices.pushed(chain.ids[i]);
+        chainLengths[chain.length - 1].increment();
+    }
+
+    /**
+     * Picks where a pushed player goes among the positions around (x, y),
+     * skipping its pusher's position (px, py), every position of the chain
+     * and those of other shards.
+     *
+     * @return an index into DX/DY, or -1 if every neighbour is taken.
+     */
+    private int destination(int id, int x, int y, int px, int py, Chain chain) {
+        int start = firstDirection(seed, id, x, y, px, py);
+        for (int k = 0; k < 8; k++) {
+            int d = (start + k) & 7;
+            int nx = wrap(x + DX[d], map.width), ny = wrap(y + DY[d], map.height);
+            if ((nx == px && ny == py) || (shards != null && !shards.owns(nx)))
+                continue;
+            boolean taken = false;
+            for (int i = 0; i < chain.length && !taken; i++) {
+                int m = chain.ids[i];
+                taken = posX[m] == nx && posY[m] == ny;
+            }
+            if (!taken)
+                return d;
+        }
+        return -1;
+    }
+
+    /**
+     * The direction a player pushed from (x, y) by a player at (px, py)
+     * tries first; the others follow in index order.
+     */
+    static int firstDirection(long seed, int id, int x, int y, int px, int py) {
+        long h = mix(seed ^ ((long) id << 40) ^ ((long) x << 20) ^ y ^ ((long) px << 52) ^ ((long) py << 32));
+        return (int) (h >>> 61);
+    }
+
+    /**
+     * Number of committed moves by number of players pushed, from 0 to
+     * maxDepth.
+     */
+    public long[] chainLengths() {
+        long[] out = new long[chainLengths.length];
+        for (int i = 0; i < out.length; i++)
+            out[i] = chainLengths[i].sum();
+        return out;
+    }
+
+    /**
+     * Number of moves refused because of their push chain.
+     */
+    public long blockedMoves() {
+        return blocked.sum();
+    }
+
+    static int wrap(int c, int size) {
+        if (c >= size)
+            return c - size;
+        if (c < 0)
+            return c + size;
+        return c;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
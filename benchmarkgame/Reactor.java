@@ -0,0 +1,629 @@
+package benchmarkgame;
+
+import benchmarkgame.gameutils.BinaryProtocol;
+import benchmarkgame.gameutils.Command;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Implements the non-blocking server mode: the calling thread accepts new
+ * connections and hands them, round-robin, to a fixed set of event loops.
+ * Each event loop owns a selector and serves all of its connections.
+ */
+class Reactor {
+    private ServerSocketChannel acceptor;
+    private EventLoop[] loops;
+    private AcceptQueue acceptQueue;
+
+    /**
+     * @param acceptor bound server channel.
+     * @param threads number of event loop threads to launch.
+     * @param acceptQueue places of the connections not logged in yet.
+     * @throws IOException
+     */
+    public Reactor(ServerSocketChannel acceptor, int threads, AcceptQueue acceptQueue) throws IOException {
+        this.acceptor = acceptor;
+        this.acceptQueue = acceptQueue;
+        this.loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop();
+            Thread t = new Thread(loops[i], "reactor-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Accepts connections forever, distributing them among the event loops.
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        int next = 0;
+        while (true) {
+            acceptQueue.enter();
+            SocketChannel client = acceptor.accept();
+            client.configureBlocking(false);
+            client.socket().setTcpNoDelay(true);
+            loops[next].register(client);
+            next = (next + 1) % loops.length;
+        }
+    }
+}
+
+/**
+ * A single selector thread multiplexing many player connections.
+ */
+class EventLoop implements Runnable {
+    private Selector selector;
+    private Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+    /**
+     * Handlers whose move the tick engine applied, linked through
+     * nextCompleted so that telling the loop does not allocate.
+     */
+    private final AtomicReference<ChannelHandler> completed = new AtomicReference<ChannelHandler>();
+    /**
+     * Handlers with a push notice due, linked through nextNoticed.
+     */
+    private final AtomicReference<ChannelHandler> noticed = new AtomicReference<ChannelHandler>();
+    /**
+     * Handlers waiting for a time, the earliest first: throttled ones
+     * read again, turned away ones are closed. Only used by the loop.
+     */
+    private final PriorityQueue<ChannelHandler> timers =
+        new PriorityQueue<ChannelHandler>(Comparator.comparingLong((ChannelHandler h) -> h.wakeAt));
+
+    public EventLoop() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Queues a freshly accepted connection to be served by this loop.
+     * @param client non-blocking connection to the player.
+     */
+    public void register(SocketChannel client) {
+        pending.add(client);
+        selector.wakeup();
+    }
+
+    /**
+     * Queues a handler whose move was applied, from the simulation thread.
+     * Only the first handler queued since the last drain wakes the loop up.
+     */
+    void completed(ChannelHandler handler) {
+        ChannelHandler head;
+        do {
+            head = completed.get();
+            handler.nextCompleted = head;
+        } while (!completed.compareAndSet(head, handler));
+        if (head == null)
+            selector.wakeup();
+    }
+
+    /**
+     * Queues a handler with a push notice due, from the mover's thread.
+     */
+    void noticed(ChannelHandler handler) {
+        ChannelHandler head;
+        do {
+            head = noticed.get();
+            handler.nextNoticed = head;
+        } while (!noticed.compareAndSet(head, handler));
+        if (head == null)
+            selector.wakeup();
+    }
+
+    /**
+     * Wakes a handler up at the given System.nanoTime, from the loop.
+     */
+    void schedule(ChannelHandler handler, long at) {
+        handler.wakeAt = at;
+        timers.add(handler);
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                if (timers.isEmpty())
+                    selector.select();
+                else
+                    selector.select(Math.max(1, (timers.peek().wakeAt - System.nanoTime() + 999_999) / 1_000_000));
+                registerPending();
+                wakeTimers();
+                resumeCompleted();
+                deliverNoticed();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    ChannelHandler handler = (ChannelHandler) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable())
+                            handler.onReadable();
+                        if (key.isValid() && key.isWritable())
+                            handler.onWritable();
+                    } catch (IOException ex) {
+                        handler.close();
+                    }
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(EventLoop.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    private void resumeCompleted() {
+        ChannelHandler handler = completed.getAndSet(null);
+        while (handler != null) {
+            ChannelHandler next = handler.nextCompleted;
+            handler.nextCompleted = null;
+            try {
+                handler.resume();
+            } catch (IOException ex) {
+                handler.close();
+            }
+            handler = next;
+        }
+    }
+
+    private void wakeTimers() {
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().wakeAt <= now) {
+            ChannelHandler handler = timers.poll();
+            try {
+                handler.wake();
+            } catch (IOException ex) {
+                handler.close();
+            }
+        }
+    }
+
+    private void deliverNoticed() {
+        ChannelHandler handler = noticed.getAndSet(null);
+        while (handler != null) {
+            ChannelHandler next = handler.nextNoticed;
+            handler.nextNoticed = null;
+            try {
+                handler.deliverNotice();
+            } catch (IOException ex) {
+                handler.close();
+            }
+            handler = next;
+        }
+    }
+
+    private void registerPending() throws IOException {
+        SocketChannel client;
+        while ((client = pending.poll()) != null) {
+            ChannelHandler handler = new ChannelHandler(client);
+            handler.loop = this;
+            try {
+                handler.key = client.register(selector, 0, handler);
+            } catch (ClosedChannelException ex) {
+                handler.admitted();
+                continue;
+            }
+            handler.open(client.socket().getInetAddress().getHostAddress(), client.socket().getPort());
+        }
+    }
+}
+
+/**
+ * Handler of a non-blocking connection. Bytes are read into a per-connection
+ * buffer and split into lines or binary frames, so both protocols are the
+ * same ones served by the blocking mode; replies are queued in a
+ * per-connection output buffer and written whenever the channel accepts
+ * them.
+ *
+ * With the tick engine a move cannot be waited for on the loop thread: it
+ * is published as an intent, the connection stops reading until the
+ * engine applies it, and the loop then writes the reply and goes on with
+ * the input buffered meanwhile. The spawn of a player logging in is
+ * published the same way, and its connection reads nothing until the
+ * engine placed it.
+ *
+ * Push notices are written by the loop too, between events, right after
+ * the replies already pending.
+ *
+ * The same pause holds the input while the rate limit of the connection
+ * asks it to wait, until a timer of the loop wakes it, and while more
+ * than OUTPUT_LIMIT bytes of replies wait for the player to read them,
+ * until it read half of them: a player sending faster than it reads, or
+ * than the server answers, fills its own socket buffers and TCP slows it
+ * down, instead of the server queueing its commands or replies.
+ *
+ * A connection the server has no room for is served only to answer its
+ * first bytes with a FULL reply; it is closed once the player closes it
+ * too, or REJECT_MILLIS after it was accepted.
+ */
+class ChannelHandler extends Handler implements IntentListener {
+    /**
+     * Longest command line accepted from a player.
+     */
+    private static final int MAX_LINE = 4096;
+    /**
+     * What a connection owes once its spawn is applied: the end of login.
+     */
+    private static final int LOGIN = -1;
+    /**
+     * Input is paused while this many bytes of replies are not written.
+     */
+    static final int OUTPUT_LIMIT = 1 << 16;
+
+    SocketChannel channel;
+    SelectionKey key;
+    private ByteBuffer in = ByteBuffer.allocate(512);
+    /**
+     * Whether the first bytes were seen.
+     */
+    private boolean negotiated = false;
+    EventLoop loop;
+    /**
+     * The move handed to the tick engine, if any: the reply it owes, the
+     * size of its batch, and what the engine answered.
+     */
+    private boolean awaiting = false;
+    private int owed;
+    private int owedMoves;
+    private long result;
+    private int moved;
+    ChannelHandler nextCompleted;
+    ChannelHandler nextNoticed;
+    /**
+     * Whether the input waits for the rate limit, until wakeAt, and
+     * whether it waits for the player to read its replies.
+     */
+    private boolean throttled = false;
+    private boolean outputFull = false;
+    long wakeAt;
+    /**
+     * Whether the server had no room for the player, and whether it was
+     * told so.
+     */
+    boolean turnedAway = false;
+    private boolean refused = false;
+
+    public ChannelHandler(SocketChannel c) {
+        this.channel = c;
+    }
+
+    /**
+     * Logs the player in, on the loop thread, with the channel registered
+     * for nothing yet. With the tick engine the login ends in resume, once
+     * the engine placed the player.
+     */
+    void open(String address, int port) {
+        if (Server.getServerRef().tickEngine() == null)
+            turnedAway = !login(address, port);
+        else if (!identify(address, port))
+            turnedAway = true;
+        else if (s.submitSpawn(this, playerID)) {
+            owed = LOGIN;
+            awaiting = true;
+            return;
+        } else {
+            spawnFailed();
+            turnedAway = true;
+        }
+        opened();
+    }
+
+    /**
+     * Starts reading once the login is over; one the server has no room
+     * for gets until REJECT_MILLIS to speak.
+     */
+    private void opened() {
+        admitted();
+        key.interestOps(SelectionKey.OP_READ);
+        if (turnedAway)
+            loop.schedule(this, System.nanoTime() + REJECT_MILLIS * 1_000_000L);
+    }
+
+    /**
+     * Reads whatever is available, handles every complete line or frame and
+     * flushes the replies.
+     * @throws IOException
+     */
+    void onReadable() throws IOException {
+        int n = channel.read(in);
+        if (n < 0) {
+            close();
+            return;
+        }
+        if (turnedAway) {
+            refuse();
+            return;
+        }
+        handleInput();
+        if (!in.hasRemaining() && !paused()) {
+            if (in.capacity() >= MAX_LINE)
+                throw new IOException("Line too long from " + clientID);
+            ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+        }
+        endOfInput();
+    }
+
+    private void handleInput() throws IOException {
+        in.flip();
+        if (negotiated || negotiate()) {
+            if (binary)
+                handleFrames();
+            else
+                handleLines();
+        }
+        in.compact();
+        if (paused())
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        else
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    /**
+     * Whether the input must wait: for the tick engine, the rate limit or
+     * the player to read its replies. Notices the replies piling up.
+     */
+    private boolean paused() {
+        if (!outputFull && replies.pending() >= OUTPUT_LIMIT) {
+            outputFull = true;
+            s.metrics().readPaused();
+        }
+        return awaiting || throttled || outputFull;
+    }
+
+    /**
+     * Pauses the input until the rate limit lets a command go on.
+     * @return true if the command must wait.
+     */
+    private boolean throttle(int moves) throws IOException {
+        long wait = tokens(moves);
+        if (wait == 0)
+            return false;
+        throttled = true;
+        loop.schedule(this, System.nanoTime() + wait);
+        return true;
+    }
+
+    /**
+     * Called by the loop at wakeAt: the command waiting for the rate limit
+     * goes on, or a player turned away that is still there is closed.
+     */
+    void wake() throws IOException {
+        if (!channel.isOpen())
+            return;
+        if (turnedAway) {
+            close();
+            return;
+        }
+        throttled = false;
+        handleInput();
+        endOfInput();
+    }
+
+    /**
+     * Handles the input held while the player had too many replies to
+     * read, once it read half of them.
+     */
+    private void resumeIfDrained() throws IOException {
+        if (!outputFull || replies.pending() > OUTPUT_LIMIT / 2)
+            return;
+        outputFull = false;
+        if (!paused()) {
+            handleInput();
+            endOfInput();
+        }
+    }
+
+    /**
+     * Answers the first bytes of a player turned away with a FULL reply
+     * and drops the rest of its input until it closes.
+     */
+    private void refuse() throws IOException {
+        in.flip();
+        if (!refused && in.hasRemaining()) {
+            refused = true;
+            binary = in.get(in.position()) == BinaryProtocol.HELLO;
+            encodeFull();
+            drain();
+            if (replies.pending() == 0)
+                channel.shutdownOutput();
+        }
+        in.clear();
+    }
+
+    @Override
+    protected boolean defer(int reply, int dx, int dy) {
+        TickEngine engine = s.tickEngine();
+        if (engine == null)
+            return false;
+        owed = reply;
+        awaiting = true;
+        engine.submitMove(this, playerID, dx, dy);
+        return true;
+    }
+
+    @Override
+    protected boolean deferBatch(int reply, int n) {
+        TickEngine engine = s.tickEngine();
+        if (engine == null)
+            return false;
+        owed = reply;
+        owedMoves = n;
+        awaiting = true;
+        engine.submitBatch(this, playerID, batchX, batchY, n);
+        return true;
+    }
+
+    /**
+     * Called by the simulation thread; the reply is written by the loop.
+     */
+    public void applied(long position, int count) {
+        result = position;
+        moved = count;
+        loop.completed(this);
+    }
+
+    /**
+     * Writes the reply of the move the engine applied and handles the input
+     * that arrived meanwhile, or ends the login once the player is placed.
+     * @throws IOException
+     */
+    void resume() throws IOException {
+        if (!channel.isOpen())
+            return;
+        awaiting = false;
+        if (owed == LOGIN) {
+            loggedIn();
+            opened();
+            return;
+        }
+        if (owed == TEXT_BATCH || owed == BINARY_BATCH)
+            replyBatch(owed, moved, owedMoves, result);
+        else
+            replyMove(owed, result);
+        if (!paused())
+            handleInput();
+        endOfInput();
+    }
+
+    @Override
+    protected void startNotices() {
+    }
+
+    @Override
+    protected void scheduleNotice() {
+        loop.noticed(this);
+    }
+
+    /**
+     * Writes the notice due, on the loop thread. A player that does not
+     * read its replies gets no more notices, it will learn its position
+     * from the next reply.
+     */
+    void deliverNotice() throws IOException {
+        if (!channel.isOpen() || !takeNotice())
+            return;
+        long pos = s.position(playerID);
+        if (pos == Server.NOT_MOVED || replies.pending() >= NOTICE_BACKLOG) {
+            s.notices().dropped();
+            return;
+        }
+        encodeNotice(replies, pos);
+        s.notices().sent();
+        drain();
+        resumeIfDrained();
+    }
+
+    /**
+     * Picks the protocol from the first bytes of the connection, answering
+     * the binary handshake.
+     * @return false until enough bytes arrived to tell.
+     */
+    private boolean negotiate() throws IOException {
+        int p = in.position();
+        if (in.remaining() == 0)
+            return false;
+        if (in.get(p) == BinaryProtocol.HELLO) {
+            if (in.remaining() < 2)
+                return false;
+            if (in.get(p + 1) == BinaryProtocol.VERSION) {
+                in.position(p + 2);
+                binary = true;
+                acceptBinary();
+            }
+        }
+        negotiated = true;
+        return true;
+    }
+
+    private void handleLines() throws IOException {
+        int start = in.position();
+        for (int i = start; i < in.limit() && !paused(); i++) {
+            if (in.get(i) != '\n')
+                continue;
+            int end = i;
+            if (end > start && in.get(end - 1) == '\r')
+                end--;
+            String line = new String(in.array(), start, end - start, StandardCharsets.ISO_8859_1);
+            if (throttle(movesOf(line)))
+                break;
+            handleLine(line);
+            start = i + 1;
+        }
+        in.position(start);
+    }
+
+    private void handleFrames() throws IOException {
+        while (in.remaining() >= BinaryProtocol.REQUEST_SIZE && !paused()) {
+            int p = in.position();
+            if (in.get(p) != Command.BATCH.ordinal()) {
+                if (throttle(1))
+                    return;
+                handleFrame(in.get(), in.get());
+                continue;
+            }
+            // a batch is handled once all of its moves arrived
+            int n = in.get(p + 1) & 0xff;
+            if (in.remaining() < BinaryProtocol.REQUEST_SIZE + n || throttle(n))
+                return;
+            handleBatch(in.array(), p + BinaryProtocol.REQUEST_SIZE, n);
+            in.position(p + BinaryProtocol.REQUEST_SIZE + n);
+        }
+    }
+
+    /**
+     * Continues writing the pending replies.
+     * @throws IOException
+     */
+    void onWritable() throws IOException {
+        drain();
+        if (turnedAway && replies.pending() == 0)
+            channel.shutdownOutput();
+        resumeIfDrained();
+    }
+
+    /**
+     * Writes as much as the channel takes, waiting for it to become
+     * writable again if some replies are left.
+     */
+    @Override
+    protected void drain() throws IOException {
+        ByteBuffer out = replies.buffer();
+        out.flip();
+        channel.write(out);
+        if (out.hasRemaining())
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        else
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        out.compact();
+    }
+
+    /**
+     * Closes the connection and releases the player position.
+     */
+    void close() {
+        if (key != null)
+            key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // already gone
+        }
+        logout();
+    }
+}
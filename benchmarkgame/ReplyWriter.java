@@ -0,0 +1,122 @@
+package benchmarkgame;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Per-connection buffer the replies are encoded into, reused for the whole
+ * life of the connection. Text is written as ISO-8859-1 bytes and numbers
+ * as their digits, so building a reply allocates nothing; the buffer only
+ * grows when a burst of replies does not fit.
+ *
+ * The buffer stays in write mode: its position is the end of the pending
+ * bytes.
+ */
+class ReplyWriter {
+    private ByteBuffer buf;
+    private final byte[] digits = new byte[11];
+
+    /**
+     * @param capacity initial size of the buffer.
+     */
+    public ReplyWriter(int capacity) {
+        this.buf = ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Encodes a string known to be text in the protocol's charset.
+     */
+    public static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    public ReplyWriter put(byte b) {
+        ensure(1);
+        buf.put(b);
+        return this;
+    }
+
+    public ReplyWriter put(byte[] b) {
+        ensure(b.length);
+        buf.put(b);
+        return this;
+    }
+
+    /**
+     * Appends the characters of s, each truncated to a byte.
+     */
+    public ReplyWriter ascii(String s) {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++)
+            buf.put((byte) s.charAt(i));
+        return this;
+    }
+
+    /**
+     * Appends the decimal digits of v.
+     */
+    public ReplyWriter number(int v) {
+        long n = v;
+        if (n < 0) {
+            put((byte) '-');
+            n = -n;
+        }
+        int i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' + n % 10);
+            n /= 10;
+        } while (n > 0);
+        ensure(digits.length - i);
+        buf.put(digits, i, digits.length - i);
+        return this;
+    }
+
+    /**
+     * Appends a big-endian int.
+     */
+    public ReplyWriter putInt(int v) {
+        ensure(4);
+        buf.putInt(v);
+        return this;
+    }
+
+    /**
+     * Number of bytes waiting to be written.
+     */
+    public int pending() {
+        return buf.position();
+    }
+
+    /**
+     * The underlying buffer, in write mode, for channels to drain: flip it,
+     * write it and compact it. Growing replaces it, so fetch it each time.
+     */
+    public ByteBuffer buffer() {
+        return buf;
+    }
+
+    /**
+     * Writes every pending byte to a blocking stream, as a single write.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (buf.position() == 0)
+            return;
+        out.write(buf.array(), 0, buf.position());
+        buf.clear();
+    }
+
+    private void ensure(int length) {
+        if (buf.remaining() >= length)
+            return;
+        int capacity = buf.capacity();
+        while (capacity - buf.position() < length)
+            capacity *= 2;
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        buf.flip();
+        bigger.put(buf);
+        buf = bigger;
+    }
+}
@@ -7,19 +7,20 @@ import java.io.InputStreamReader;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import benchmarkgame.gameutils.Command;
-import benchmarkgame.gameutils.LocPair;
+import benchmarkgame.gameutils.EngineMode;
+import benchmarkgame.gameutils.FlushPolicy;
 import benchmarkgame.gameutils.Move;
-import benchmarkgame.gameutils.PositionState;
+import benchmarkgame.gameutils.SetConfig;
 import benchmarkgame.gameutils.Status;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
-import java.util.Random;
+import java.io.File;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -33,17 +34,112 @@ public class Server {
     /**
      * Maximum number of players may be connected to the server.
      */
-    private final int maxPlayers  = 30;
+    private final int maxPlayers;
     /**
-     * Fixed game map size.
+     * Game map size.
      */
-    private final int boardSide   = maxPlayers / 2;
-    private String[][] MAP = new String[boardSide][boardSide];
-    private Map<String, LocPair> currentPosition; 
+    private final int width;
+    private final int height;
+    /**
+     * Marks the free positions of the game map.
+     */
+    private static final int FREE = Board.FREE;
+    /**
+     * Returned by updatePosition when the player could not move.
+     */
+    public static final long NOT_MOVED = -1L;
+    /**
+     * Largest number of rows and columns rendered by toString.
+     */
+    static final int RENDER_LIMIT = 120;
+    /**
+     * The game map, holding the ID of the player in each position or FREE.
+     */
+    private final Board MAP;
+    /**
+     * Current position of each player ID, -1 while it is not on the map.
+     */
+    private final int[] posX;
+    private final int[] posY;
+    /**
+     * Guard MAP and the positions, one ReentrantLock per region so movers 
+     * in distant parts of the map do not wait on each other.
+     */
+    private final LockStripes stripes;
+    private final ThreadLocal<Chain> chains = ThreadLocal.withInitial(Chain::new);
+    /**
+     * Works out and applies the push chain of each move.
+     */
+    private final PushResolver pushes;
+    /**
+     * When connections write their replies, see ServerConfig.
+     */
+    private final FlushPolicy flushPolicy;
+    private final int flushEvery;
+    /**
+     * Moves per second of each connection, 0 for no limit, and its burst.
+     */
+    private final int rateLimit;
+    private final int rateBurst;
+    /**
+     * The single-writer engine when --engine=tick, else null and moves take
+     * the stripes themselves.
+     */
+    private final TickEngine engine;
+    /**
+     * The lock-free engine when --engine=cas, else null; it keeps a map of
+     * its own.
+     */
+    private final CasEngine cas;
+    /**
+     * Consistent views of the map for SHOW and toString.
+     */
+    private final BoardSnapshots snapshots;
+    /**
+     * The players of each part of the map, for ATTACK.
+     */
+    private final NeighborIndex neighbors;
+    /**
+     * Records the game state on disk, or null when --journal=off.
+     */
+    private final StateJournal journal;
+    /**
+     * Records the commands of the players when --trace is given, else
+     * null.
+     */
+    private final TraceRecorder trace;
+    /**
+     * Connections to tell when their player is pushed.
+     */
+    private final PushNotices notices;
+    /**
+     * Counters and timings for STATS and JMX.
+     */
+    private final ServerMetrics metrics;
+    /**
+     * The servers sharing the map when --shards is given, else null and
+     * this server owns the whole map.
+     */
+    private final Shards shards;
+    /**
+     * Player names and the IDs not in use, guarded by idLock.
+     */
+    private final String[] names;
+    private final int[] freeIds;
+    private int freeIdCount = 0;
+    private final ReentrantLock idLock = new ReentrantLock();
     private NetworkManager nm;
     private static Server ref = null;
-    private int nextFreePos = 0;
-    Random randomNumber = new Random();
+    /**
+     * Number of occupied positions.
+     */
+    private AtomicInteger occupied = new AtomicInteger();
+    /**
+     * Players put back from a write-ahead journal at start-up, and how
+     * long reading it and placing them took.
+     */
+    private int recovered = 0;
+    private long recoveryNanos = 0;
 
     /**
      * Returns reference to the server single instance.
@@ -55,21 +151,83 @@ public class Server {
     
     /**
      * Constructor: Initializes server by stablishing a connection with the network,
-     * initializing the currentPosition and ref variables and initializing the map 
+     * initializing the player IDs and ref variables and initializing the map 
      * of the game with all positions being free, that is, without players.
      *
-     * @param ipAddr IP address of the server
+     * @param config start-up options of the server
+     * @param listen false to leave the network and the single instance
+     * alone, see offline
      * @throws Exception
      */
-    private Server(String ipAddr) throws Exception {
-        nm = new NetworkManager(this, ipAddr);
-        currentPosition = new HashMap<String, LocPair>();
-        ref = this;
-        for(int i = 0 ; i < boardSide; i++) {
-            for(int j = 0 ; j < boardSide; j++) {
-                MAP[i][j] = "free";
-            }
+    private Server(ServerConfig config, boolean listen) throws Exception {
+        width = config.boardWidth();
+        height = config.boardHeight();
+        if (width < 3 || height < 3)
+            throw new IllegalArgumentException("The game map must be at least 3x3");
+        shards = config.shards == null ? null
+            : new Shards(Shards.parse(config.shards), config.shard, width,
+                    (int) Math.min(config.maxPlayers, (long) width * height));
+        if (shards != null && config.engine != EngineMode.LOCKS)
+            throw new IllegalArgumentException("Shards need --engine=locks");
+        // players only ever stand in the columns of their shard
+        long cells = shards == null ? (long) width * height
+            : (long) (shards.endX() - shards.firstX()) * height;
+        maxPlayers = (int) Math.min(config.maxPlayers, cells);
+        stripes = new LockStripes(width, height, config.regionSide);
+        MAP = new Board(width, height, stripes, maxPlayers);
+        posX = new int[maxPlayers];
+        posY = new int[maxPlayers];
+        names = new String[maxPlayers];
+        freeIds = new int[maxPlayers];
+        flushPolicy = config.flushPolicy;
+        flushEvery = config.flushEvery;
+        rateLimit = config.rateLimit;
+        rateBurst = config.rateBurst;
+        File journalDir = config.journal == null ? null : shards == null ? new File(config.journal)
+            : new File(config.journal, "shard-" + config.shard);
+        journal = journalDir == null ? null
+            : new StateJournal(this, journalDir, width, height, maxPlayers,
+                    config.journalInterval, config.keyframeInterval,
+                    config.segmentSize * 1024L * 1024L, config.segmentsKept, config.journalSync);
+        trace = config.trace == null ? null
+            : new TraceRecorder(new File(shards == null ? config.trace : config.trace + "." + config.shard),
+                    config, width, height, maxPlayers);
+        snapshots = new BoardSnapshots(width, height, maxPlayers);
+        neighbors = new NeighborIndex(width, height, maxPlayers, config.bucketSide);
+        metrics = new ServerMetrics(this);
+        notices = new PushNotices(maxPlayers);
+        pushes = new PushResolver(MAP, posX, posY, stripes,
+                config.maxPushDepth, config.pushSeed, journal, snapshots, neighbors, notices, shards);
+        engine = config.engine == EngineMode.TICK
+            ? new TickEngine(this, MAP, posX, posY, pushes, config.tickRate, config.pushSeed,
+                    journal, snapshots, neighbors)
+            : null;
+        cas = config.engine == EngineMode.CAS
+            ? new CasEngine(width, height, maxPlayers, config.maxPushDepth, config.pushSeed,
+                    journal, snapshots, neighbors, notices)
+            : null;
+
+        if (listen) {
+            nm = new NetworkManager(this, config.ipAddress, config.port,
+                    config.mode, config.threadLimit, config.ioCpus, config.backlog, config.acceptQueue);
+            ref = this;
+            metrics.register();
+            if (shards != null)
+                shards.start(this);
         }
+        Arrays.fill(posX, -1);
+        Arrays.fill(posY, -1);
+        for (int id = freeIds.length - 1; id >= 0; id--) {
+            freeIds[freeIdCount++] = id;
+        }
+        if (journal != null && journal.writeAhead())
+            recover(journalDir, config.recoveryGrace);
+        if (engine != null)
+            engine.start(config.engineCpus);
+        if (journal != null)
+            journal.start();
+        if (trace != null)
+            trace.start();
     }
     
     /**
@@ -79,10 +237,33 @@ public class Server {
      * @throws Exception 
      */
     public static Server v(String ipAddr) throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.ipAddress = ipAddr;
+        return v(config);
+    }
+
+    /**
+     * Returns a reference to the server or creates a new one and returns.
+     * @param config start-up options of the server
+     * @return Reference to the server single instance
+     * @throws Exception 
+     */
+    public static Server v(ServerConfig config) throws Exception {
         if (ref != null)
             return ref;
         
-        return new Server(ipAddr);
+        return new Server(config, true);
+    }
+
+    /**
+     * Creates a server that opens no socket and is not the single instance,
+     * so the engine can be driven directly, e.g. by the benchmarks.
+     * @param config options of the game map and engine
+     * @return a new server
+     * @throws Exception 
+     */
+    static Server offline(ServerConfig config) throws Exception {
+        return new Server(config, false);
     }
     
     /**
@@ -97,192 +278,761 @@ public class Server {
         nm.listen();
     }
     
+    /**
+     * Gives the player a dense integer ID, used everywhere in the engine 
+     * instead of its name. IDs of players that left are handed out again.
+     *
+     * @param clientID New player name
+     * @return the player ID, or -1 if the server is full
+     */
+    public int internPlayer(String clientID) {
+        idLock.lock();
+        try {
+            if (freeIdCount == 0)
+                return -1;
+            int id = freeIds[--freeIdCount];
+            names[id] = clientID;
+            return id;
+        } finally {
+            idLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the name the player logged in with.
+     */
+    public String playerName(int id) {
+        return names[id];
+    }
+
+    /**
+     * The tick engine applying the moves, or null if they take the stripes
+     * themselves.
+     */
+    public TickEngine tickEngine() {
+        return engine;
+    }
+
+    public ServerMetrics metrics() {
+        return metrics;
+    }
+
+    public PushNotices notices() {
+        return notices;
+    }
+
+    /**
+     * The servers sharing the map, or null if this one owns it all.
+     */
+    public Shards shards() {
+        return shards;
+    }
+
+    public FlushPolicy flushPolicy() {
+        return flushPolicy;
+    }
+
+    public int flushEvery() {
+        return flushEvery;
+    }
+
+    /**
+     * A pace for the moves of a new connection, or null if they are not
+     * limited.
+     */
+    public TokenBucket rateLimiter() {
+        return rateLimit > 0 ? new TokenBucket(rateLimit, rateBurst) : null;
+    }
+
     /**
      * Chooses a random initial position for a new player.
      *
-     * @param clientID New player ID
+     * @param id New player ID
      * @return Status Enum status describing the success or fail of operation
      */
-    public Status randomPosition(String clientID) {
+    public Status randomPosition(int id) {
         
         int x, y;
-        LocPair pos;
 
-        if (nextFreePos >= (boardSide*boardSide)) {
+        if (placed(id)) {
+            return Status.OK;
+        }
+
+        // reserves a cell before looking for it, so the search always ends
+        if (!reserveRoom())
             return Status.FAILED;
+        if (engine != null)
+            return engine.spawn(id);
+        if (cas != null) {
+            cas.spawn(id);
+            return Status.OK;
         }
         
-        if (! currentPosition.containsKey(clientID)) {
-            synchronized(MAP) {
-                do {
-                	x = randomNumber.nextInt(boardSide); 
-                	y = randomNumber.nextInt(boardSide);
-                } while(MAP[x][y] != "free"); //finds a initial position for the player that is free
-                pos = new LocPair(x,y);
-                currentPosition.put(clientID, pos); //stores the player current position
-                MAP[x][y] = clientID; //updates the game map
-                nextFreePos++;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (true) {
+            // a uniformly random free position, taken again only if another
+            // thread got it first
+            long pos = shards == null ? MAP.randomFree(random)
+                : MAP.randomFree(random, shards.firstX(), shards.endX());
+            if (pos < 0)
+                continue;
+            x = unpackX(pos);
+            y = unpackY(pos);
+            if (occupy(id, x, y)) //finds a initial position for the player that is free
+                return Status.OK;
+        }
+    }
+
+    /**
+     * Same as randomPosition with the tick engine, without waiting for the
+     * tick that places the player: the listener is told then.
+     * @return false if there is no room left, the listener is not told.
+     */
+    boolean submitSpawn(IntentListener listener, int id) {
+        if (!reserveRoom())
+            return false;
+        engine.submitSpawn(listener, id);
+        return true;
+    }
+
+    private boolean reserveRoom() {
+        if (occupied.incrementAndGet() > maxPlayers) {
+            occupied.decrementAndGet();
+            metrics.spawnFailed();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Places a new player at a given position, so a map can be laid out
+     * exactly, e.g. by the benchmarks or when recovering it. Not for the
+     * tick engine once it runs.
+     *
+     * @param id New player ID
+     * @return false if the position is taken or the map is full
+     */
+    boolean place(int id, int x, int y) {
+        if (placed(id) || x < 0 || x >= width || y < 0 || y >= height)
+            return false;
+        if (occupied.incrementAndGet() > maxPlayers) {
+            occupied.decrementAndGet();
+            return false;
+        }
+        if (engine != null ? engine.restore(id, x, y) : cas != null ? cas.place(id, x, y) : occupy(id, x, y))
+            return true;
+        occupied.decrementAndGet();
+        return false;
+    }
+
+    /**
+     * Whether the player is on the map already.
+     */
+    private boolean placed(int id) {
+        return cas != null ? cas.position(id) != NOT_MOVED : posX[id] >= 0;
+    }
+
+    /**
+     * Puts the players of a write-ahead journal back where they last
+     * stood, before any connection comes in. Their connections are gone,
+     * so they get new IDs and stay on the map, pushed around like the
+     * others, for graceSeconds, or for good if 0.
+     */
+    private void recover(File dir, int graceSeconds) throws IOException {
+        long start = System.nanoTime();
+        JournalReader reader = new JournalReader();
+        File[] segments = JournalReader.segments(dir);
+        if (segments.length == 0 || !reader.replay(segments, Long.MAX_VALUE))
+            return;
+        long[] positions = reader.positions();
+        int[] ids = new int[maxPlayers];
+        int lost = 0;
+        for (int old = 0; old < positions.length; old++) {
+            if (positions[old] == NOT_MOVED)
+                continue;
+            int id = internPlayer("recovered/" + old);
+            if (id >= 0 && place(id, unpackX(positions[old]), unpackY(positions[old]))) {
+                ids[recovered++] = id;
+            } else {
+                if (id >= 0)
+                    releasePlayer(id, false);
+                lost++;
             }
         }
-        
-        return Status.OK;
+        recoveryNanos = System.nanoTime() - start;
+        System.out.println("Recovered " + recovered + " players from " + dir + " in "
+                + recoveryNanos / 1_000_000 + " ms"
+                + (lost > 0 ? ", " + lost + " did not fit the map" : ""));
+        if (recovered == 0 || graceSeconds == 0)
+            return;
+        int n = recovered;
+        Thread grace = new Thread(() -> {
+            try {
+                Thread.sleep(graceSeconds * 1000L);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            for (int i = 0; i < n; i++)
+                removePlayer(ids[i]);
+        }, "recovery-grace");
+        grace.setDaemon(true);
+        grace.start();
+    }
+
+    /**
+     * Players put back from the journal at start-up.
+     */
+    public int recoveredPlayers() {
+        return recovered;
+    }
+
+    /**
+     * Time reading the journal and putting the players back took at
+     * start-up, in nanoseconds.
+     */
+    public long recoveryNanos() {
+        return recoveryNanos;
+    }
+
+    /**
+     * Where the commands of the players are recorded, or null.
+     */
+    public TraceRecorder trace() {
+        return trace;
+    }
+
+    /**
+     * The state journal, or null when --journal=off.
+     */
+    public StateJournal journal() {
+        return journal;
+    }
+
+    /**
+     * Puts a player whose room is reserved on a position, if it is free.
+     */
+    private boolean occupy(int id, int x, int y) {
+        ReentrantLock lock = stripes.lock(stripes.stripeOf(x, y));
+        lock.lock();
+        try {
+            if (MAP.get(x, y) != FREE)
+                return false;
+            long epoch = snapshots.enter(id);
+            MAP.set(x, y, id); //updates the game map
+            snapshots.changed(epoch, id, pack(x, y));
+            neighbors.changed(id, pack(x, y));
+            snapshots.exit(epoch, id);
+            posX[id] = x; //stores the player current position
+            posY[id] = y;
+            if (journal != null)
+                journal.changed(id, pack(x, y));
+            if (shards != null)
+                shards.arrived(id, shards.index(), id);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Removes a player from the game map, releasing its position and its ID.
+     *
+     * @param id Player identification.
+     */
+    public void removePlayer(int id) {
+        if (engine != null) {
+            engine.remove(id);
+            return;
+        }
+        if (cas != null) {
+            releasePlayer(id, cas.remove(id));
+            return;
+        }
+        if (shards != null && shards.away(id)) {
+            shards.remove(id);
+            releasePlayer(id, false);
+            return;
+        }
+        while (posX[id] >= 0) {
+            int x = posX[id], y = posY[id];
+            ReentrantLock lock = stripes.lock(stripes.stripeOf(x, y));
+            lock.lock();
+            try {
+                // the player may have been pushed before we got the stripe
+                if (MAP.get(x, y) == id) {
+                    long epoch = snapshots.enter(id);
+                    MAP.set(x, y, FREE);
+                    snapshots.changed(epoch, id, NOT_MOVED);
+                    neighbors.changed(id, NOT_MOVED);
+                    snapshots.exit(epoch, id);
+                    posX[id] = -1;
+                    posY[id] = -1;
+                    occupied.decrementAndGet();
+                    if (journal != null)
+                        journal.changed(id, NOT_MOVED);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        releasePlayer(id, false);
+    }
+
+    /**
+     * Hands the ID of a player that left back, and its room on the map if
+     * it still held one.
+     */
+    void releasePlayer(int id, boolean placed) {
+        if (placed)
+            occupied.decrementAndGet();
+        idLock.lock();
+        try {
+            names[id] = null;
+            freeIds[freeIdCount++] = id;
+        } finally {
+            idLock.unlock();
+        }
     }
     
     /**
      * Updates the player position in the game map.
      *
-     * @param clientID Player identification.
+     * Only the stripes of the cells involved are locked: the mover's cell and
+     * the target cell up front, then the destination of every pushed player
+     * as the resolver walks the push chain. When a destination falls in a
+     * stripe that cannot be taken in order, every stripe is released and the
+     * move starts over with that stripe among the wanted ones. Nothing is
+     * written before the whole chain is known, so a restart has nothing to
+     * undo.
+     *
+     * The whole path works on primitives and per-thread scratch space, so a
+     * move does not allocate.
+     *
+     * A move into the columns of another shard is handed over to it, and
+     * the moves of a player away from home are forwarded to its shard, see
+     * Shards.
+     *
+     * @param id Player identification.
      * @param x Change in the direction x.
      * @param y Change in the direction y.
-     * @return LocPair, the coordinate of the current position of the client in the game map.
+     * @return the new position of the player, packed by {@link #pack}, or
+     * NOT_MOVED if the move was not possible.
      */
-    public LocPair updatePosition(String clientID, int x, int y) {
-        int[] displacement = {-1, 0, 1}; 
-        LocPair ret, wantedPos, otherClientNextPos, change;
-        LocPair current_pos = currentPosition.get(clientID);
-        String otherClientID;
-
-        wantedPos = new LocPair(-2, -2);
-        change = new LocPair(-2, -2);
-        otherClientNextPos = new LocPair(-2, -2);
+    public long updatePosition(int id, int x, int y) {
+        if (engine != null)
+            return engine.move(id, x, y);
+        if (cas != null)
+            return cas.move(id, x, y);
+        if (shards != null && shards.away(id))
+            return shards.move(id, x, y);
+        LockSet locks = stripes.set();
+        Chain chain = chains.get();
+        try {
+            if (step(id, x, y, locks, chain) == PushResolver.BLOCKED)
+                return NOT_MOVED;
+            // where the mover went, also when it was handed over
+            return pack(chain.toX[0], chain.toY[0]);
+        } finally {
+            locks.clear();
+        }
+    }
 
-        // checking future position
-        x += current_pos.x;
-        y += current_pos.y;
-        
-        //making the matrix become "circular"
-        if (x >= boardSide){
-        	x -= boardSide;
-        } else if (x < 0) {
-        	x += boardSide; 
+    /**
+     * Applies a batch of moves of one player, in order, with the same push
+     * rules as updatePosition. Stripes taken by a move are kept for the
+     * following ones, so a player moving around one region locks it once
+     * for the whole batch; they are only released when a move needs a
+     * stripe that cannot be taken in order.
+     *
+     * @param id Player identification.
+     * @param dx Change in the direction x of each move.
+     * @param dy Change in the direction y of each move.
+     * @param n Number of moves.
+     * @return the number of moves that were made.
+     */
+    public int updatePositions(int id, int[] dx, int[] dy, int n) {
+        if (engine != null)
+            return engine.moveBatch(id, dx, dy, n);
+        if (cas != null)
+            return cas.moveBatch(id, dx, dy, n);
+        if (shards == null)
+            return unpackX(applyBatch(id, dx, dy, 0, n));
+        // the rest of the batch follows the player when it is handed over
+        int moved = 0;
+        for (int done = 0; done < n; ) {
+            long r = shards.away(id) ? shards.moveBatch(id, dx, dy, done, n)
+                : applyBatch(id, dx, dy, done, n);
+            if (r < 0)
+                break;
+            moved += unpackX(r);
+            done = unpackY(r);
         }
+        return moved;
+    }
 
-        if (y >= boardSide){
-        	y -= boardSide;
-        } else if (y < 0) {
-        	y += boardSide;
+    /**
+     * Applies the moves from to n of a batch on this map, until they are
+     * done or the player is handed over to another shard.
+     *
+     * @return the number of moves made and the index of the first move not
+     * applied, packed by {@link #pack}.
+     */
+    long applyBatch(int id, int[] dx, int[] dy, int from, int n) {
+        LockSet locks = stripes.set();
+        Chain chain = chains.get();
+        int moved = 0, i = from;
+        try {
+            for (; i < n && posX[id] >= 0; i++)
+                if (step(id, dx[i], dy[i], locks, chain) == PushResolver.MOVED)
+                    moved++;
+        } finally {
+            locks.clear();
         }
+        return pack(moved, i);
+    }
 
-        //updating the game map if the position is free
-        synchronized (MAP) {
-            switch(MAP[x][y]) {
-                case "free":
-                    // update game map
-                    MAP[x][y] = clientID;
-                    MAP[current_pos.x][current_pos.y] = "free";
-
-                    // update hashmap pos reference
-                    current_pos.x = x;
-                    current_pos.y = y;
-                    return current_pos;
-                
+    /**
+     * Makes a single move, leaving its stripes held.
+     *
+     * @return PushResolver.MOVED or PushResolver.BLOCKED.
+     */
+    private int step(int id, int x, int y, LockSet locks, Chain chain) {
+        boolean fresh = true;
+        int busy = 0;
+        while (true) {
+            int cx = posX[id], cy = posY[id];
+            int tx = wrapX(cx + x);
+            int from = stripes.stripeOf(cx, cy);
+            int to = stripes.stripeOf(tx, wrapY(cy + y));
+            if (!locks.holds(from) || !locks.holds(to)) {
+                // the previous move of a batch leaves its stripes behind,
+                // a retry keeps the ones it found it wants
+                if (fresh)
+                    locks.clear();
+                else
+                    locks.unlockAll();
+                locks.want(from);
+                locks.want(to);
+                locks.lockWanted();
+            }
+            fresh = false;
+
+            // pushed by someone else since we read the position
+            if (MAP.get(cx, cy) != id) {
+                locks.unlockAll();
+                continue;
+            }
+
+            if (shards != null && !shards.owns(tx)) {
+                int handed = handoff(id, cx, cy, x, y, chain);
+                if (handed != PushResolver.RETRY)
+                    return handed;
+                locks.unlockAll();
+                if (!shards.backoff(++busy))
+                    return PushResolver.BLOCKED;
+                continue;
+            }
+
+            switch (pushes.resolve(id, x, y, locks, chain)) {
+                case PushResolver.MOVED:
+                    pushes.commit(chain);
+                    return PushResolver.MOVED;
+                case PushResolver.BLOCKED:
+                    return PushResolver.BLOCKED;
                 default:
-                    wantedPos.x = x;
-                    wantedPos.y = y;
-    
-                    otherClientID = MAP[x][y]; //gets the ID of the player who is occupying 
-                                               //the place for which the first wanted to move
-                    otherClientNextPos.x = x;
-                    otherClientNextPos.y = y;
-                
-                    //finds a new position to the other client
-                    while(otherClientNextPos.compare(wantedPos) || otherClientNextPos.compare(current_pos)){
-                        change.x = displacement[randomNumber.nextInt(3)];
-                        change.y = displacement[randomNumber.nextInt(3)];
-                        otherClientNextPos.x = wantedPos.x + change.x;
-                        otherClientNextPos.y = wantedPos.y + change.y;
-                    }
+                    locks.unlockAll();
+            }
+        }
+    }
 
-                    //moves the other client
-                    ret = updatePosition(otherClientID, change.x, change.y);
+    /**
+     * Hands a move into the columns of another shard over to it, see
+     * Shards. The caller holds the stripe of the mover's position, so it
+     * is not pushed meanwhile; once the other shard took it in, the mover
+     * leaves this map.
+     *
+     * @return PushResolver.MOVED, BLOCKED, or RETRY if the other shard was
+     * busy.
+     */
+    private int handoff(int id, int cx, int cy, int dx, int dy, Chain chain) {
+        int tx = wrapX(cx + dx), ty = wrapY(cy + dy);
+        int shard = shards.ownerOf(tx);
+        int remote = shards.admit(shard, id, String.valueOf(names[id]), cx, cy, dx, dy);
+        if (remote == Shards.BUSY)
+            return PushResolver.RETRY;
+        if (remote < 0)
+            return PushResolver.BLOCKED;
+        long epoch = snapshots.enter(id);
+        MAP.set(cx, cy, FREE);
+        snapshots.changed(epoch, id, NOT_MOVED);
+        neighbors.changed(id, NOT_MOVED);
+        snapshots.exit(epoch, id);
+        posX[id] = -1;
+        posY[id] = -1;
+        occupied.decrementAndGet();
+        if (journal != null)
+            journal.changed(id, NOT_MOVED);
+        shards.left(id, shard, remote);
+        chain.length = 0;
+        chain.add(id, tx, ty);
+        return PushResolver.MOVED;
+    }
 
-                    if (otherClientNextPos.x >= boardSide){
-                        otherClientNextPos.x -= boardSide;
-                    } else if (otherClientNextPos.x < 0) {
-                        otherClientNextPos.x += boardSide; 
+    /**
+     * Takes in a player another shard hands over, moving by (dx, dy) from
+     * (fromX, fromY) into the columns of this one, with the usual push
+     * rules. The other shard waits meanwhile with stripes held, so no
+     * stripe is waited for here: a taken one answers Shards.BUSY.
+     *
+     * @param homeShard the shard the player is connected to.
+     * @param homeId the ID of the player there.
+     * @return the ID of the player here, Shards.BLOCKED or Shards.BUSY.
+     */
+    int admit(String name, int homeShard, int homeId, int fromX, int fromY, int dx, int dy) {
+        boolean home = homeShard == shards.index();
+        int id = home ? homeId : internPlayer(name);
+        if (id < 0)
+            return Shards.BLOCKED;
+        int outcome = PushResolver.BLOCKED;
+        if (occupied.incrementAndGet() <= maxPlayers) {
+            LockSet locks = stripes.set();
+            Chain chain = chains.get();
+            try {
+                locks.want(stripes.stripeOf(fromX, fromY));
+                locks.want(stripes.stripeOf(wrapX(fromX + dx), wrapY(fromY + dy)));
+                if (!locks.tryLockWanted()) {
+                    outcome = PushResolver.RETRY;
+                } else {
+                    // the mover starts from the edge of the other shard,
+                    // where this map is always free
+                    posX[id] = fromX;
+                    posY[id] = fromY;
+                    outcome = pushes.resolve(id, dx, dy, locks, chain);
+                    if (outcome == PushResolver.MOVED) {
+                        pushes.commit(chain);
+                        shards.arrived(id, homeShard, homeId);
+                    } else {
+                        posX[id] = -1;
+                        posY[id] = -1;
                     }
+                }
+            } finally {
+                locks.clear();
+            }
+        }
+        if (outcome == PushResolver.MOVED)
+            return id;
+        occupied.decrementAndGet();
+        if (!home)
+            releasePlayer(id, false);
+        return outcome == PushResolver.RETRY ? Shards.BUSY : Shards.BLOCKED;
+    }
 
-                    if (otherClientNextPos.y >= boardSide){
-                        otherClientNextPos.y -= boardSide;
-                    } else if (otherClientNextPos.y < 0) {
-                        otherClientNextPos.y += boardSide;
-                    }
-                    
-                    //if it works, I know that the wanted position is now available 
-                    //and the client can move to the wanted position
-                    if(ret.compare(otherClientNextPos)){
-                        // update game map
-                        MAP[x][y] = clientID;
-                        MAP[current_pos.x][current_pos.y] = "free";
-
-                        // update hashmap pos reference
-                        current_pos.x = x;
-                        current_pos.y = y;
-                        return current_pos; 
-                    }
+    /**
+     * Returns the current position of the player, packed by {@link #pack},
+     * read under its stripe so both coordinates belong together.
+     */
+    public long position(int id) {
+        if (shards != null && shards.away(id))
+            return shards.position(id);
+        return localPosition(id);
+    }
 
-                    return current_pos; // if it not works,  
-                                        // the client's original position is returned
+    /**
+     * Same as position, on this server's map only: NOT_MOVED for a player
+     * away on another shard.
+     */
+    long localPosition(int id) {
+        if (engine != null)
+            return engine.position(id);
+        if (cas != null)
+            return cas.position(id);
+        while (true) {
+            int x = posX[id], y = posY[id];
+            if (x < 0)
+                return NOT_MOVED;
+            ReentrantLock lock = stripes.lock(stripes.stripeOf(x, y));
+            lock.lock();
+            try {
+                if (MAP.get(x, y) == id)
+                    return pack(x, y);
+            } finally {
+                lock.unlock();
             }
         }
     }
+
+    /**
+     * Number of committed moves by number of players they pushed, from 0 to
+     * the configured push depth.
+     */
+    public long[] pushChainLengths() {
+        return cas != null ? cas.chainLengths() : pushes.chainLengths();
+    }
+
+    /**
+     * Number of moves refused because their push chain was too long or had
+     * nowhere to go.
+     */
+    public long blockedMoves() {
+        return cas != null ? cas.blockedMoves() : pushes.blockedMoves();
+    }
+
+    /**
+     * The lock-free engine, or null if another one applies the moves.
+     */
+    CasEngine casEngine() {
+        return cas;
+    }
+
+    /**
+     * Returns the player in the position, Board.FREE, or below it for a
+     * cell the cas engine is changing. Read without any stripe, so only
+     * exact while nobody moves.
+     */
+    int playerAt(int x, int y) {
+        return cas != null ? cas.get(x, y) : MAP.get(x, y);
+    }
+
+    /**
+     * Nanoseconds moves waited for a stripe held by another thread.
+     */
+    public LatencyHistogram lockWaitTimes() {
+        return stripes.waitTimes();
+    }
+
+    /**
+     * Nanoseconds moves held their stripes, sampled.
+     */
+    public LatencyHistogram lockHoldTimes() {
+        return stripes.holdTimes();
+    }
+
+    /**
+     * Wrap coordinates around the board edges.
+     */
+    private int wrapX(int x) {
+        if (x >= width)
+            return x - width;
+        if (x < 0)
+            return x + width;
+        return x;
+    }
+
+    private int wrapY(int y) {
+        if (y >= height)
+            return y - height;
+        if (y < 0)
+            return y + height;
+        return y;
+    }
+
+    /**
+     * Packs a position in a single long, so it can be returned without
+     * allocating a LocPair.
+     */
+    public static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    public static int unpackX(long pos) {
+        return (int) (pos >> 32);
+    }
+
+    public static int unpackY(long pos) {
+        return (int) pos;
+    }
     
     /**
-     * Returns the current position of the requested client.
-     *
-     * @param clientID Player identification.
-     * @return LocPair, a reference to the coordinate of the current position of the customer in the game map
+     * Approximate memory used by the game map and the per-player arrays, 
+     * not counting the player names.
      */
-    public LocPair getCurrentPosition(String clientID){
-        return currentPosition.get(clientID);
+    public long footprintBytes() {
+        return MAP.footprintBytes() + 16L * maxPlayers
+            + (cas != null ? cas.footprintBytes() : 0);
     }
 
+    /**
+     * Takes a consistent view of the game map, without making any mover
+     * wait.
+     */
+    public Snapshot snapshot() {
+        return snapshots.take();
+    }
+
+    /**
+     * Hits every other player within the radius of the player, counting
+     * the players of this server's map only.
+     * @return the number of players hit, or -1 if the player is not on the
+     * map.
+     */
+    public int attack(int id, int radius) {
+        long pos = localPosition(id);
+        if (pos == NOT_MOVED)
+            return -1;
+        return neighbors.count(id, unpackX(pos), unpackY(pos), radius);
+    }
+
+    public NeighborIndex neighbors() {
+        return neighbors;
+    }
+
+    /**
+     * Renders the game map, or its top-left RENDER_LIMIT x RENDER_LIMIT 
+     * corner on larger maps, as it was at a single point in time.
+     */
     @Override
     public String toString(){
-        String out = "";
-        for(int i = 0 ; i < boardSide; i++) {
-            for(int j = 0 ; j < boardSide; j++) {
-                if(MAP[j][i] == "free")
-                    out += "0 ";
-                else
-                    out += "X ";
-                //out += MAP[i][j] + "\t";
-            }
-            out += "\n";
+        return snapshot().render();
+    }
+
+    /**
+     * Renders rows x cols positions, given row by row, as lines of "0 " for
+     * the free ones and "X " for the taken ones.
+     */
+    static String render(boolean[] taken, int rows, int cols) {
+        StringBuilder out = new StringBuilder(rows * (2 * cols + 1));
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++)
+                out.append(taken[i * cols + j] ? "X " : "0 ");
+            out.append('\n');
         }
-        return out;
+        return out.toString();
+    }
+
+    /**
+     * Stops recording the game state and the trace, writing what is left.
+     */
+    public void closeJournal() {
+        if (journal != null)
+            journal.close();
+        if (trace != null)
+            trace.close();
     }
     
     public static void main(String[] args) throws Exception {
         
-        final Server app = Server.v(args[0]); // the function initializes the server 
+        ServerConfig config;
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage() + "\n\n" + ServerConfig.usage());
+            System.exit(1);
+            return;
+        }
+        // before the server starts its threads, so that they inherit it
+        if (config.cpus != null)
+            SetConfig.setAffinity(config.cpus);
+
+        final Server app = Server.v(config); // the function initializes the server 
         									  // and returns a reference to the server,
         									  // which is stored in "app".
         									  // if there is no instance of the server class, 
         									  // the function calls the class constructor to create it
 
-        //creating a thread by implementing its run method 
-        //thread function: create a file that stores the game state every second
-        Thread printer = new Thread() {              
-                public void run(){
-                    BufferedWriter writer = null;
-                    try {
-                        writer = new BufferedWriter(new FileWriter("state.txt"));
-                        writer.write("Game State:\n");
-                        while(true) {                        
-                            writer.write(app.toString());
-                            writer.write("\n\n");
-                            Thread.sleep(500);
-                        }
-                        
-                    } catch (Exception e) {
-                        // do something
-                    }
-                    // writer.close();
-                }
-            };
-        
-        printer.start();
+        // the state is recorded by the journal, the commands by the trace;
+        // write their tails on exit
+        Runtime.getRuntime().addShutdownHook(new Thread(app::closeJournal));
         
         app.init();
     }
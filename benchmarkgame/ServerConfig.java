@@ -0,0 +1,341 @@
+package benchmarkgame;
+
+import benchmarkgame.gameutils.EngineMode;
+import benchmarkgame.gameutils.FlushPolicy;
+import benchmarkgame.gameutils.ServerMode;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Properties;
+
+/**
+ * Holds the start-up options of the game server.
+ *
+ * The first positional argument is the IP address the server binds to, the
+ * remaining ones are optional "--name=value" pairs, e.g.
+ * "java Server 127.0.0.1 --mode=nio --threads=4 --port=41317".
+ * "--config=file" reads the same options, without dashes, from a properties
+ * file; options given after it override the file.
+ */
+public class ServerConfig {
+    /**
+     * IP address the server binds to, or null to use the local host.
+     */
+    public String ipAddress = null;
+    /**
+     * Port the server listens on, 0 picks an ephemeral one.
+     */
+    public int port = 0;
+    /**
+     * How client connections are served.
+     */
+    public ServerMode mode = ServerMode.BLOCKING;
+    /**
+     * Maximum number of I/O threads the network manager may launch.
+     */
+    public int threadLimit = 16;
+    /**
+     * Connections the kernel queues until they are accepted, and
+     * connections accepted but not logged in yet; the server stops
+     * accepting while the latter are all taken.
+     */
+    public int backlog = 1024;
+    public int acceptQueue = 256;
+    /**
+     * Moves per second each connection may make, 0 for no limit, and how
+     * many it may make at once after a pause.
+     */
+    public int rateLimit = 0;
+    public int rateBurst = 64;
+    /**
+     * Maximum number of players may be connected to the server.
+     */
+    public int maxPlayers = 30;
+    /**
+     * Size of the game map, 0 derives a square map from maxPlayers.
+     */
+    public int width = 0;
+    public int height = 0;
+    /**
+     * Side of the square map regions that are locked and stored together.
+     */
+    public int regionSide = 4;
+    /**
+     * Most players a single move may push along its chain.
+     */
+    public int maxPushDepth = 8;
+    /**
+     * Smallest side of the buckets ATTACK finds the players around in.
+     */
+    public int bucketSide = 16;
+    /**
+     * Seed of the push destinations; the same seed and the same moves
+     * always give the same game.
+     */
+    public long pushSeed = System.nanoTime();
+    /**
+     * When replies are written, and every how many replies for COUNT.
+     */
+    public FlushPolicy flushPolicy = FlushPolicy.BATCH;
+    public int flushEvery = 1;
+    /**
+     * How moves are applied, and the tick rate of the tick engine (ticks
+     * per second, 0 for back to back ticks).
+     */
+    public EngineMode engine = EngineMode.LOCKS;
+    public int tickRate = 0;
+    /**
+     * Directory of the state journal, or null not to record the state;
+     * milliseconds between deltas and between keyframes, size of a
+     * segment in megabytes and number of segments kept.
+     */
+    public String journal = "journal";
+    public int journalInterval = 100;
+    public int keyframeInterval = 10000;
+    public int segmentSize = 16;
+    public int segmentsKept = 8;
+    /**
+     * Milliseconds between syncs of a write-ahead journal, which logs every
+     * change and is recovered at start-up, or 0 to record the state every
+     * journalInterval only; seconds the recovered players stay on the map,
+     * 0 for good.
+     */
+    public int journalSync = 0;
+    public int recoveryGrace = 60;
+    /**
+     * File the commands of the players are recorded in for TraceReplay,
+     * or null.
+     */
+    public String trace = null;
+    /**
+     * Link address (host:port) of every shard sharing the map, comma
+     * separated, or null when this server owns the whole map; and which
+     * of them this server is.
+     */
+    public String shards = null;
+    public int shard = 0;
+    /**
+     * CPUs, as taskset -c lists them, the whole server is pinned to; those
+     * the threads serving connections are pinned to; and those the tick
+     * engine thread is pinned to. null leaves the affinity alone.
+     */
+    public String cpus = null;
+    public String ioCpus = null;
+    public String engineCpus = null;
+
+    /**
+     * Builds a configuration from the command line arguments of the server.
+     *
+     * @param args command line arguments
+     * @return the parsed configuration
+     * @throws IllegalArgumentException if an option is unknown or malformed
+     */
+    public static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                if (i != 0)
+                    throw new IllegalArgumentException("Unexpected argument: " + arg);
+                config.ipAddress = arg;
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            if (eq < 0)
+                throw new IllegalArgumentException("Option must be --name=value: " + arg);
+            config.set(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return config;
+    }
+
+    /**
+     * Sets a single option by name.
+     *
+     * @param name option name, without the leading dashes
+     * @param value option value
+     */
+    void set(String name, String value) {
+        switch (name) {
+            case "port":
+                port = Integer.parseInt(value);
+                break;
+            case "mode":
+                mode = ServerMode.valueOf(value.toUpperCase());
+                break;
+            case "threads":
+                threadLimit = positive(name, value);
+                break;
+            case "backlog":
+                backlog = positive(name, value);
+                break;
+            case "accept-queue":
+                acceptQueue = positive(name, value);
+                break;
+            case "rate-limit":
+                rateLimit = value.equalsIgnoreCase("off") ? 0 : positive(name, value);
+                break;
+            case "rate-burst":
+                rateBurst = positive(name, value);
+                break;
+            case "max-players":
+                maxPlayers = positive(name, value);
+                break;
+            case "width":
+                width = positive(name, value);
+                break;
+            case "height":
+                height = positive(name, value);
+                break;
+            case "region":
+                regionSide = positive(name, value);
+                break;
+            case "max-push":
+                maxPushDepth = positive(name, value);
+                break;
+            case "bucket":
+                bucketSide = positive(name, value);
+                break;
+            case "push-seed":
+                pushSeed = Long.parseLong(value);
+                break;
+            case "flush":
+                if (value.equalsIgnoreCase("immediate")) {
+                    flushPolicy = FlushPolicy.IMMEDIATE;
+                } else if (value.equalsIgnoreCase("batch")) {
+                    flushPolicy = FlushPolicy.BATCH;
+                } else {
+                    flushPolicy = FlushPolicy.COUNT;
+                    flushEvery = positive(name, value);
+                }
+                break;
+            case "engine":
+                engine = EngineMode.valueOf(value.toUpperCase());
+                break;
+            case "tick-rate":
+                tickRate = Integer.parseInt(value);
+                if (tickRate < 0)
+                    throw new IllegalArgumentException(name + " cannot be negative");
+                break;
+            case "journal":
+                journal = value.equalsIgnoreCase("off") ? null : value;
+                break;
+            case "journal-interval":
+                journalInterval = positive(name, value);
+                break;
+            case "keyframe-interval":
+                keyframeInterval = positive(name, value);
+                break;
+            case "segment-size":
+                segmentSize = positive(name, value);
+                break;
+            case "segments":
+                segmentsKept = positive(name, value);
+                break;
+            case "journal-sync":
+                journalSync = value.equalsIgnoreCase("off") ? 0 : positive(name, value);
+                break;
+            case "recovery-grace":
+                recoveryGrace = Integer.parseInt(value);
+                if (recoveryGrace < 0)
+                    throw new IllegalArgumentException(name + " cannot be negative");
+                break;
+            case "trace":
+                trace = value.equalsIgnoreCase("off") ? null : value;
+                break;
+            case "shards":
+                shards = value;
+                break;
+            case "shard":
+                shard = Integer.parseInt(value);
+                break;
+            case "cpus":
+                cpus = value;
+                break;
+            case "io-cpus":
+                ioCpus = value;
+                break;
+            case "engine-cpus":
+                engineCpus = value;
+                break;
+            case "config":
+                load(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: --" + name);
+        }
+    }
+
+    private static int positive(String name, String value) {
+        int v = Integer.parseInt(value);
+        if (v < 1)
+            throw new IllegalArgumentException(name + " must be positive");
+        return v;
+    }
+
+    /**
+     * Reads options from a properties file, e.g. "width = 100000".
+     *
+     * @param path file to read
+     */
+    void load(String path) {
+        Properties props = new Properties();
+        try (Reader in = new FileReader(path)) {
+            props.load(in);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read " + path + ": " + e.getMessage());
+        }
+        for (String name : props.stringPropertyNames())
+            set(name, props.getProperty(name).trim());
+    }
+
+    /**
+     * Number of columns of the game map.
+     */
+    public int boardWidth() {
+        return width > 0 ? width : Math.max(3, maxPlayers / 2);
+    }
+
+    /**
+     * Number of rows of the game map.
+     */
+    public int boardHeight() {
+        return height > 0 ? height : boardWidth();
+    }
+
+    /**
+     * Returns the usage message printed when the arguments are not valid.
+     */
+    public static String usage() {
+        return "Syntax: java benchmarkgame.Server <ip> [options]\n\n"
+             + "\t--mode=blocking|virtual|nio\n\t                      connection handling strategy (default blocking)\n"
+             + "\t--threads=N           I/O threads used by the nio mode (default 16)\n"
+             + "\t--port=N              listening port (default: any free port)\n"
+             + "\t--backlog=N           connections the kernel queues until accepted (default 1024)\n"
+             + "\t--accept-queue=N      connections accepted but not logged in yet (default 256)\n"
+             + "\t--rate-limit=N|off    moves per second of each connection (default off)\n"
+             + "\t--rate-burst=N        moves a connection may make at once (default 64)\n"
+             + "\t--max-players=N       most players on the map at once (default 30)\n"
+             + "\t--width=N --height=N  map size (default: max-players/2 square)\n"
+             + "\t--region=N            side of the locked and stored map regions (default 4)\n"
+             + "\t--max-push=N          most players pushed by one move (default 8)\n"
+             + "\t--bucket=N            side of the buckets ATTACK looks for players in (default 16)\n"
+             + "\t--push-seed=N         seed of the push destinations (default: random)\n"
+             + "\t--flush=immediate|batch|N\n\t                      write replies each time, when input runs dry, or every N (default batch)\n"
+             + "\t--engine=locks|tick|cas\n\t                      striped locks, one simulation thread fed by a ring, or compare-and-set on cells (default locks)\n"
+             + "\t--tick-rate=N         ticks per second of the tick engine, 0 back to back (default 0)\n"
+             + "\t--journal=DIR|off     directory where the game state is recorded (default journal)\n"
+             + "\t--journal-interval=MS time between recorded moves (default 100)\n"
+             + "\t--keyframe-interval=MS\n\t                      time between full recorded states (default 10000)\n"
+             + "\t--segment-size=MB     size of a journal segment (default 16)\n"
+             + "\t--segments=N          journal segments kept on disk (default 8)\n"
+             + "\t--journal-sync=MS|off log every change, synced to disk every MS, and recover\n\t                      the map from it at start-up (default off)\n"
+             + "\t--recovery-grace=S    time recovered players stay on the map, 0 for good (default 60)\n"
+             + "\t--trace=FILE|off      file the moves of the players are recorded in (default off)\n"
+             + "\t--shards=HOST:PORT,...\n\t                      link addresses of the servers sharing the map by columns\n"
+             + "\t--shard=N             which of the shards this server is (default 0)\n"
+             + "\t--cpus=LIST           CPUs the server is pinned to, e.g. 0-3,6 (default: any)\n"
+             + "\t--io-cpus=LIST        CPUs of the threads serving connections (default: any)\n"
+             + "\t--engine-cpus=LIST    CPUs of the tick engine thread (default: any)\n"
+             + "\t--config=FILE         properties file with any of the options above";
+    }
+}
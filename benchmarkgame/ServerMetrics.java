@@ -0,0 +1,330 @@
+package benchmarkgame;
+
+import benchmarkgame.gameutils.Command;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.ObjectName;
+
+/**
+ * What the server has been doing, for the STATS command and JMX.
+ *
+ * Counters bumped by every connection are LongAdders and times are
+ * recorded into StripedHistograms, so recording never makes threads wait
+ * for each other. Moves, rejected moves and push chains are the counters
+ * of the PushResolver, lock times those of the LockStripes, push notices
+ * those of PushNotices, handoffs those of Shards, conflicts those of the
+ * CasEngine, syncs those of the StateJournal and attacks those of the
+ * NeighborIndex; this class only reads them.
+ */
+class ServerMetrics implements ServerMetricsMBean {
+    static final String NAME = "benchmarkgame:type=Server";
+    /**
+     * Shortest period moves per second are averaged over.
+     */
+    private static final long RATE_WINDOW = 1_000_000_000L;
+    private static final Command[] COMMANDS = Command.values();
+
+    private final Server server;
+    private final long start = System.nanoTime();
+    private final LongAdder connected = new LongAdder();
+    private final LongAdder spawnFailures = new LongAdder();
+    private final LongAdder rejectedLogins = new LongAdder();
+    private final LongAdder acceptQueueWaits = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder readPauses = new LongAdder();
+    /**
+     * Service time of each Command, by ordinal.
+     */
+    private final StripedHistogram[] serviceTimes = new StripedHistogram[COMMANDS.length];
+    /**
+     * Moves made up to windowStart, and the rate of the last window that
+     * ended, or -1 while none did.
+     */
+    private long windowStart = start;
+    private long windowMoves = 0;
+    private double rate = -1;
+
+    public ServerMetrics(Server server) {
+        this.server = server;
+        for (int i = 0; i < serviceTimes.length; i++)
+            serviceTimes[i] = new StripedHistogram();
+    }
+
+    /**
+     * Makes the metrics visible through JMX; the server runs on if it
+     * cannot.
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(NAME));
+        } catch (Exception ex) {
+            Logger.getLogger(ServerMetrics.class.getName()).log(Level.WARNING, "Metrics not registered with JMX", ex);
+        }
+    }
+
+    public void loggedIn() {
+        connected.increment();
+    }
+
+    public void loggedOut() {
+        connected.decrement();
+    }
+
+    public void spawnFailed() {
+        spawnFailures.increment();
+    }
+
+    public void loginRejected() {
+        rejectedLogins.increment();
+    }
+
+    public void acceptQueueFull() {
+        acceptQueueWaits.increment();
+    }
+
+    public void throttled() {
+        throttled.increment();
+    }
+
+    public void readPaused() {
+        readPauses.increment();
+    }
+
+    /**
+     * Records how long a command took to serve.
+     * @param command Command ordinal.
+     */
+    public void served(int command, long nanos) {
+        serviceTimes[command].record(nanos);
+    }
+
+    public double getUptimeSeconds() {
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    public long getConnectedPlayers() {
+        return connected.sum();
+    }
+
+    public long getSpawnFailures() {
+        return spawnFailures.sum();
+    }
+
+    public long getRejectedLogins() {
+        return rejectedLogins.sum();
+    }
+
+    public long getAcceptQueueWaits() {
+        return acceptQueueWaits.sum();
+    }
+
+    public long getThrottledCommands() {
+        return throttled.sum();
+    }
+
+    public long getReadPauses() {
+        return readPauses.sum();
+    }
+
+    public long getMoves() {
+        long moves = 0;
+        for (long n : server.pushChainLengths())
+            moves += n;
+        return moves;
+    }
+
+    /**
+     * Moves per second over the last window of at least RATE_WINDOW
+     * between two reads, or since the start until one ended.
+     */
+    public synchronized double getMovesPerSecond() {
+        long now = System.nanoTime();
+        long moves = getMoves();
+        if (now - windowStart >= RATE_WINDOW) {
+            rate = (moves - windowMoves) * 1e9 / (now - windowStart);
+            windowStart = now;
+            windowMoves = moves;
+        }
+        return rate >= 0 ? rate : moves * 1e9 / Math.max(1, now - start);
+    }
+
+    public long getRejectedMoves() {
+        return server.blockedMoves();
+    }
+
+    public long[] getPushChainLengths() {
+        return server.pushChainLengths();
+    }
+
+    public long getLockWaits() {
+        return server.lockWaitTimes().count();
+    }
+
+    public double getLockWaitP99Micros() {
+        return server.lockWaitTimes().valueAt(99) / 1e3;
+    }
+
+    public double getLockHoldP99Micros() {
+        return server.lockHoldTimes().valueAt(99) / 1e3;
+    }
+
+    public long getNoticesPending() {
+        return server.notices().pending();
+    }
+
+    public long getNoticesSent() {
+        return server.notices().sentCount();
+    }
+
+    public long getNoticesCoalesced() {
+        return server.notices().coalescedCount();
+    }
+
+    public long getNoticesDropped() {
+        return server.notices().droppedCount();
+    }
+
+    public long getMoveConflicts() {
+        CasEngine cas = server.casEngine();
+        return cas == null ? 0 : cas.conflicts();
+    }
+
+    public long getJournalRecords() {
+        StateJournal journal = server.journal();
+        return journal == null ? 0 : journal.recordCount();
+    }
+
+    public long getJournalDropped() {
+        StateJournal journal = server.journal();
+        return journal == null ? 0 : journal.droppedCount();
+    }
+
+    public long getJournalSyncs() {
+        StateJournal journal = server.journal();
+        return journal == null ? 0 : journal.syncCount();
+    }
+
+    public double getJournalSyncP99Micros() {
+        StateJournal journal = server.journal();
+        return journal == null ? 0 : journal.syncTimes().valueAt(99) / 1e3;
+    }
+
+    public long getRecoveredPlayers() {
+        return server.recoveredPlayers();
+    }
+
+    public double getRecoveryMillis() {
+        return server.recoveryNanos() / 1e6;
+    }
+
+    public long getHandoffs() {
+        Shards shards = server.shards();
+        return shards == null ? 0 : shards.handoffCount();
+    }
+
+    public long getPlayersAdmitted() {
+        Shards shards = server.shards();
+        return shards == null ? 0 : shards.admittedCount();
+    }
+
+    public long getHandoffsBusy() {
+        Shards shards = server.shards();
+        return shards == null ? 0 : shards.busyCount();
+    }
+
+    public long getForwardedRequests() {
+        Shards shards = server.shards();
+        return shards == null ? 0 : shards.forwardedCount();
+    }
+
+    public long getAttacks() {
+        return server.neighbors().queryCount();
+    }
+
+    public long getPlayersHit() {
+        return server.neighbors().hitCount();
+    }
+
+    public long getPlayersScanned() {
+        return server.neighbors().scannedCount();
+    }
+
+    public double serviceTimeMicros(String command, double percentile) {
+        return serviceTimes[Command.valueOf(command.toUpperCase()).ordinal()]
+            .snapshot().valueAt(percentile) / 1e3;
+    }
+
+    public String getReport() {
+        StringBuilder out = new StringBuilder();
+        for (String line : report())
+            out.append(line).append('\n');
+        return out.toString();
+    }
+
+    /**
+     * Every metric, one "name value..." line each. Times are in
+     * microseconds; only the commands served so far are listed.
+     */
+    public List<String> report() {
+        List<String> lines = new ArrayList<String>();
+        lines.add("uptime_s " + format(getUptimeSeconds()));
+        lines.add("players " + getConnectedPlayers());
+        lines.add("spawn_failures " + getSpawnFailures());
+        lines.add("admission rejected=" + getRejectedLogins() + " accept_waits=" + getAcceptQueueWaits()
+            + " throttled=" + getThrottledCommands() + " read_pauses=" + getReadPauses());
+        lines.add("moves " + getMoves());
+        lines.add("moves_per_s " + format(getMovesPerSecond()));
+        lines.add("moves_rejected " + getRejectedMoves());
+        StringBuilder chains = new StringBuilder("push_chains");
+        for (long n : getPushChainLengths())
+            chains.append(' ').append(n);
+        lines.add(chains.toString());
+        lines.add("notices pending=" + getNoticesPending() + " sent=" + getNoticesSent()
+            + " coalesced=" + getNoticesCoalesced() + " dropped=" + getNoticesDropped());
+        Shards shards = server.shards();
+        if (shards != null)
+            lines.add("shard " + shards.index() + " of=" + shards.count()
+                + " handoffs=" + getHandoffs() + " admitted=" + getPlayersAdmitted()
+                + " busy=" + getHandoffsBusy() + " forwarded=" + getForwardedRequests());
+        if (server.casEngine() != null)
+            lines.add("cas_conflicts " + getMoveConflicts());
+        if (getAttacks() > 0)
+            lines.add("attacks count=" + getAttacks() + " hit=" + getPlayersHit()
+                + " scanned=" + getPlayersScanned() + " bucket=" + server.neighbors().bucketSide());
+        StateJournal journal = server.journal();
+        if (journal != null && journal.writeAhead()) {
+            lines.add("journal records=" + getJournalRecords() + " dropped=" + getJournalDropped()
+                + " bytes=" + journal.bytesWritten()
+                + " syncs=" + getJournalSyncs() + " recovered=" + getRecoveredPlayers()
+                + " recovery_ms=" + format(getRecoveryMillis()));
+            lines.add("journal_sync_us " + times(journal.syncTimes()));
+        }
+        lines.add("lock_wait_us " + times(server.lockWaitTimes()));
+        lines.add("lock_hold_us " + times(server.lockHoldTimes()));
+        for (Command c : COMMANDS) {
+            LatencyHistogram h = serviceTimes[c.ordinal()].snapshot();
+            if (h.count() > 0)
+                lines.add("service_us " + c + " " + times(h));
+        }
+        return lines;
+    }
+
+    private static String times(LatencyHistogram h) {
+        return "count=" + h.count() + " p50=" + micros(h.valueAt(50))
+            + " p99=" + micros(h.valueAt(99)) + " p99.9=" + micros(h.valueAt(99.9))
+            + " max=" + micros(h.max()) + " mean=" + micros(h.mean());
+    }
+
+    private static String micros(double nanos) {
+        return format(nanos / 1e3);
+    }
+
+    private static String format(double v) {
+        return String.format(Locale.ROOT, "%.1f", v);
+    }
+}
@@ -0,0 +1,132 @@
+package benchmarkgame;
+
+/**
+ * The server's metrics as seen through JMX, under ServerMetrics.NAME; see
+ * ServerMetrics. Times are in microseconds.
+ */
+public interface ServerMetricsMBean {
+    public double getUptimeSeconds();
+
+    public long getConnectedPlayers();
+
+    public long getSpawnFailures();
+
+    /**
+     * Connections turned away for lack of room, with a FULL reply.
+     */
+    public long getRejectedLogins();
+
+    /**
+     * Times the server stopped accepting because the connections accepted
+     * and not logged in yet filled the accept queue.
+     */
+    public long getAcceptQueueWaits();
+
+    /**
+     * Commands that waited for the rate limit of their connection.
+     */
+    public long getThrottledCommands();
+
+    /**
+     * Times a connection stopped being read because the player did not
+     * read its replies.
+     */
+    public long getReadPauses();
+
+    public long getMoves();
+
+    public double getMovesPerSecond();
+
+    public long getRejectedMoves();
+
+    /**
+     * Committed moves by number of players they pushed.
+     */
+    public long[] getPushChainLengths();
+
+    public long getLockWaits();
+
+    public double getLockWaitP99Micros();
+
+    public double getLockHoldP99Micros();
+
+    /**
+     * Push notices due and not written yet, at most one per connection.
+     */
+    public long getNoticesPending();
+
+    public long getNoticesSent();
+
+    /**
+     * Pushes folded into a notice that was already due.
+     */
+    public long getNoticesCoalesced();
+
+    public long getNoticesDropped();
+
+    /**
+     * Move attempts of the cas engine started over because another move
+     * held a cell; 0 with the other engines.
+     */
+    public long getMoveConflicts();
+
+    /**
+     * Changes logged by a write-ahead journal, the ones it dropped while
+     * the disk did not keep up, and the syncs that wrote them to disk; 0
+     * without one.
+     */
+    public long getJournalRecords();
+
+    public long getJournalDropped();
+
+    public long getJournalSyncs();
+
+    public double getJournalSyncP99Micros();
+
+    /**
+     * Players put back from the journal at start-up, and the time it took.
+     */
+    public long getRecoveredPlayers();
+
+    public double getRecoveryMillis();
+
+    /**
+     * Moves handed over to another shard, and players taken in from one;
+     * all 0 when the map is not sharded.
+     */
+    public long getHandoffs();
+
+    public long getPlayersAdmitted();
+
+    /**
+     * Handoffs tried again because the other shard had a stripe taken.
+     */
+    public long getHandoffsBusy();
+
+    /**
+     * Requests of players away from home sent to their shard.
+     */
+    public long getForwardedRequests();
+
+    /**
+     * ATTACK commands answered, players they hit, and players looked at
+     * to find them.
+     */
+    public long getAttacks();
+
+    public long getPlayersHit();
+
+    public long getPlayersScanned();
+
+    /**
+     * Time from reading a command to its reply being ready.
+     * @param command a Command name, e.g. "MOVE".
+     * @param percentile from 0 to 100.
+     */
+    public double serviceTimeMicros(String command, double percentile);
+
+    /**
+     * Every metric, as the STATS command replies them.
+     */
+    public String getReport();
+}
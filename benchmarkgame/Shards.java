@@ -0,0 +1,554 @@
+package benchmarkgame;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Splits the game map between several server processes, each one owning a
+ * band of columns: shard i of n owns the columns from i * width / n to
+ * (i + 1) * width / n. Every shard keeps a map of the whole world, in
+ * global coordinates, but only ever has players in its own columns; the
+ * chunks of the others are never allocated.
+ *
+ * Shards talk over links, plain TCP connections to the address of each
+ * shard in --shards, opened when first needed and kept for reuse. A link
+ * carries one request at a time and its answer; a thread that finds no
+ * idle link opens another one, so a request never waits for a link.
+ *
+ * Handoff. A move whose target lies in another shard's columns is handed
+ * over to that shard, the only kind of move that crosses an edge: pushed
+ * players never leave their shard, a destination in another shard is
+ * skipped like a taken one. The origin holds the stripes of the mover's
+ * position and sends ADMIT; the target takes the stripes of the target
+ * position and of its push chain without waiting, applies the move with
+ * the usual push rules and answers the player's ID there. The move is
+ * committed there; the origin then removes the player from its own map
+ * before releasing its stripes. A target that finds a stripe taken
+ * answers BUSY and the origin releases its stripes and tries again after
+ * a random pause, at most RETRIES times: as only the origin ever waits,
+ * two shards handing players to each other cannot deadlock.
+ *
+ * Routing. A player keeps its connection, and its ID, on the shard it
+ * logged in to, its home. When it leaves, the home records the shard and
+ * the ID it has there, and forwards its moves and position reads there
+ * with MOVE, BATCH and POSITION; the answers tell the home where the
+ * player is afterwards, as a forwarded move may hand it over again. A
+ * player coming back home gets its own ID back. The players a shard holds
+ * for other homes are guests; they have no connection and are only moved
+ * by their home, so they are not told when pushed.
+ *
+ * Links are expected to be reliable, as between processes of one machine:
+ * a link that fails is closed and the request fails, refusing the move,
+ * although the other shard may have applied it.
+ */
+class Shards {
+    /**
+     * Requests sent over a link.
+     */
+    static final byte ADMIT = 0, MOVE = 1, BATCH = 2, POSITION = 3, REMOVE = 4;
+    /**
+     * Answers of ADMIT besides an ID.
+     */
+    static final int BLOCKED = -1, BUSY = -2;
+    /**
+     * Times a handoff is tried while the target answers BUSY.
+     */
+    static final int RETRIES = 16;
+    private static final int CONNECT_TRIES = 50;
+    private static final Logger LOG = Logger.getLogger(Shards.class.getName());
+    private static final VarHandle PAIRS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final int index;
+    private final InetSocketAddress[] addresses;
+    private final int width;
+    private final int firstX;
+    private final int endX;
+    /**
+     * For every player ID: the shard holding the player and its ID there,
+     * and the player's home shard and its ID there, each pair packed by
+     * pair so it is read whole. Only the thread moving a player changes its
+     * route, but the next request about a guest is generally served by
+     * another link thread, and a home reads the routes of its players from
+     * the journal and notice threads too; the only order between them is
+     * the round trip through another process. Both are thus written with
+     * release and read with acquire semantics, so a thread reading a route
+     * also sees what was done to the player before it was written.
+     */
+    private final long[] routes;
+    private final long[] homes;
+    private final ConcurrentLinkedQueue<Link>[] idle;
+    private final LongAdder handoffs = new LongAdder();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder busy = new LongAdder();
+    private final LongAdder forwarded = new LongAdder();
+    private Server server;
+
+    /**
+     * @param addresses link address of every shard.
+     * @param index the shard of this process.
+     * @param width number of columns of the whole map.
+     * @param maxPlayers number of player IDs.
+     */
+    @SuppressWarnings("unchecked")
+    public Shards(InetSocketAddress[] addresses, int index, int width, int maxPlayers) {
+        if (index < 0 || index >= addresses.length)
+            throw new IllegalArgumentException("--shard must be below the number of --shards");
+        if (width < addresses.length)
+            throw new IllegalArgumentException("The map needs a column per shard");
+        this.index = index;
+        this.addresses = addresses;
+        this.width = width;
+        this.firstX = firstColumn(index);
+        this.endX = firstColumn(index + 1);
+        this.routes = new long[maxPlayers];
+        this.homes = new long[maxPlayers];
+        // a free ID is here, so that a player failing to spawn is not away
+        Arrays.fill(routes, pair(index, 0));
+        this.idle = (ConcurrentLinkedQueue<Link>[]) new ConcurrentLinkedQueue<?>[addresses.length];
+        for (int i = 0; i < idle.length; i++)
+            idle[i] = new ConcurrentLinkedQueue<Link>();
+    }
+
+    private int firstColumn(int shard) {
+        return (int) ((long) shard * width / addresses.length);
+    }
+
+    public int index() {
+        return index;
+    }
+
+    public int count() {
+        return addresses.length;
+    }
+
+    /**
+     * First column of this shard, and the one past its last.
+     */
+    public int firstX() {
+        return firstX;
+    }
+
+    public int endX() {
+        return endX;
+    }
+
+    public boolean owns(int x) {
+        return x >= firstX && x < endX;
+    }
+
+    public int ownerOf(int x) {
+        int shard = (int) ((long) x * addresses.length / width);
+        // the bands are rounded down, so the guess may be one short
+        while (shard + 1 < addresses.length && firstColumn(shard + 1) <= x)
+            shard++;
+        return shard;
+    }
+
+    /**
+     * Accepts the links of the other shards, each one served by a virtual
+     * thread of its own.
+     */
+    public void start(Server server) throws IOException {
+        this.server = server;
+        ServerSocket links = new ServerSocket();
+        links.bind(addresses[index], addresses.length * 64);
+        Thread accept = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = links.accept();
+                    Thread.ofVirtual().name("shard-link").start(() -> serve(socket));
+                } catch (IOException ex) {
+                    LOG.log(Level.SEVERE, "Shard links no longer accepted", ex);
+                    return;
+                }
+            }
+        }, "shard-links");
+        accept.setDaemon(true);
+        accept.start();
+    }
+
+    /**
+     * Records that the player with this ID arrived on this shard, and
+     * where its home is.
+     */
+    public void arrived(int id, int home, int idAtHome) {
+        PAIRS.setRelease(homes, id, pair(home, idAtHome));
+        setRoute(id, index, id);
+    }
+
+    /**
+     * Records that the player left for another shard, under another ID.
+     */
+    public void left(int id, int shard, int remoteId) {
+        setRoute(id, shard, remoteId);
+    }
+
+    /**
+     * Whether the player of this home ID is held by another shard.
+     */
+    public boolean away(int id) {
+        return shardOf(routeOf(id)) != index;
+    }
+
+    private long routeOf(int id) {
+        return (long) PAIRS.getAcquire(routes, id);
+    }
+
+    private void setRoute(int id, int shard, int remoteId) {
+        PAIRS.setRelease(routes, id, pair(shard, remoteId));
+    }
+
+    /**
+     * Packs a shard and an ID there in a long.
+     */
+    private static long pair(int shard, int id) {
+        return ((long) shard << 32) | (id & 0xffffffffL);
+    }
+
+    private static int shardOf(long pair) {
+        return (int) (pair >> 32);
+    }
+
+    private static int idOf(long pair) {
+        return (int) pair;
+    }
+
+    /**
+     * Waits a random while before a handoff is tried again.
+     *
+     * @param attempt number of handoffs tried so far.
+     * @return false once RETRIES were tried.
+     */
+    public boolean backoff(int attempt) {
+        busy.increment();
+        if (attempt >= RETRIES)
+            return false;
+        LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(1_000L << Math.min(attempt, 8)));
+        return true;
+    }
+
+    /**
+     * Asks the shard owning the column the player moves to for taking it
+     * in, see the handoff above.
+     *
+     * @return the player's ID there, BLOCKED or BUSY.
+     */
+    public int admit(int shard, int id, String name, int fromX, int fromY, int dx, int dy) {
+        Link link = link(shard);
+        if (link == null)
+            return BLOCKED;
+        try {
+            link.out.writeByte(ADMIT);
+            link.out.writeUTF(name);
+            long home = (long) PAIRS.getAcquire(homes, id);
+            link.out.writeInt(shardOf(home));
+            link.out.writeInt(idOf(home));
+            link.out.writeInt(fromX);
+            link.out.writeInt(fromY);
+            link.out.writeInt(dx);
+            link.out.writeInt(dy);
+            link.out.flush();
+            int remote = link.in.readInt();
+            release(shard, link);
+            if (remote >= 0)
+                handoffs.increment();
+            return remote;
+        } catch (IOException ex) {
+            return failed(link, ex);
+        }
+    }
+
+    /**
+     * Moves a player that is away from home, where it is.
+     *
+     * @return its new position packed by Server.pack, or Server.NOT_MOVED.
+     */
+    public long move(int id, int dx, int dy) {
+        long route = routeOf(id);
+        int shard = shardOf(route);
+        Link link = link(shard);
+        if (link == null)
+            return Server.NOT_MOVED;
+        forwarded.increment();
+        try {
+            link.out.writeByte(MOVE);
+            link.out.writeInt(idOf(route));
+            link.out.writeInt(dx);
+            link.out.writeInt(dy);
+            link.out.flush();
+            long pos = link.in.readLong();
+            int at = link.in.readInt();
+            setRoute(id, at, link.in.readInt());
+            release(shard, link);
+            return pos;
+        } catch (IOException ex) {
+            failed(link, ex);
+            return Server.NOT_MOVED;
+        }
+    }
+
+    /**
+     * Applies moves from to n of a batch to a player that is away from
+     * home, until they are done or it is handed over again.
+     *
+     * @return the number of moves made and the index of the first move not
+     * applied, packed by Server.pack, or -1 if the link failed.
+     */
+    public long moveBatch(int id, int[] dx, int[] dy, int from, int n) {
+        long route = routeOf(id);
+        int shard = shardOf(route);
+        Link link = link(shard);
+        if (link == null)
+            return -1;
+        forwarded.increment();
+        try {
+            link.out.writeByte(BATCH);
+            link.out.writeInt(idOf(route));
+            link.out.writeByte(n - from);
+            for (int i = from; i < n; i++) {
+                link.out.writeByte(dx[i]);
+                link.out.writeByte(dy[i]);
+            }
+            link.out.flush();
+            long done = link.in.readLong();
+            int at = link.in.readInt();
+            setRoute(id, at, link.in.readInt());
+            release(shard, link);
+            return Server.pack(Server.unpackX(done), from + Server.unpackY(done));
+        } catch (IOException ex) {
+            failed(link, ex);
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the position of a player that is away from home.
+     */
+    public long position(int id) {
+        long route = routeOf(id);
+        int shard = shardOf(route);
+        Link link = link(shard);
+        if (link == null)
+            return Server.NOT_MOVED;
+        try {
+            link.out.writeByte(POSITION);
+            link.out.writeInt(idOf(route));
+            link.out.flush();
+            long pos = link.in.readLong();
+            release(shard, link);
+            return pos;
+        } catch (IOException ex) {
+            failed(link, ex);
+            return Server.NOT_MOVED;
+        }
+    }
+
+    /**
+     * Removes a player that is away from home from the map of its shard.
+     */
+    public void remove(int id) {
+        long route = routeOf(id);
+        int shard = shardOf(route);
+        Link link = link(shard);
+        if (link == null)
+            return;
+        try {
+            link.out.writeByte(REMOVE);
+            link.out.writeInt(idOf(route));
+            link.out.flush();
+            link.in.readByte();
+            release(shard, link);
+        } catch (IOException ex) {
+            failed(link, ex);
+        }
+        setRoute(id, index, id);
+    }
+
+    /**
+     * Serves the requests of another shard until it closes the link.
+     */
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            Link link = new Link(s);
+            DataInputStream in = link.in;
+            DataOutputStream out = link.out;
+            byte[] moves = new byte[2 * 255];
+            int[] dx = new int[255], dy = new int[255];
+            while (true) {
+                int op = in.read();
+                if (op < 0)
+                    return;
+                switch (op) {
+                    case ADMIT: {
+                        String name = in.readUTF();
+                        int home = in.readInt(), idAtHome = in.readInt();
+                        int fromX = in.readInt(), fromY = in.readInt();
+                        int mx = in.readInt(), my = in.readInt();
+                        int id = server.admit(name, home, idAtHome, fromX, fromY, mx, my);
+                        if (id >= 0)
+                            admitted.increment();
+                        out.writeInt(id);
+                        break;
+                    }
+                    case MOVE: {
+                        int id = in.readInt();
+                        int mx = in.readInt(), my = in.readInt();
+                        long pos = server.updatePosition(id, mx, my);
+                        out.writeLong(pos);
+                        route(out, id);
+                        break;
+                    }
+                    case BATCH: {
+                        int id = in.readInt();
+                        int n = in.readUnsignedByte();
+                        in.readFully(moves, 0, 2 * n);
+                        for (int i = 0; i < n; i++) {
+                            dx[i] = moves[2 * i];
+                            dy[i] = moves[2 * i + 1];
+                        }
+                        out.writeLong(server.applyBatch(id, dx, dy, 0, n));
+                        route(out, id);
+                        break;
+                    }
+                    case POSITION:
+                        out.writeLong(server.position(in.readInt()));
+                        break;
+                    case REMOVE:
+                        server.removePlayer(in.readInt());
+                        out.writeByte(0);
+                        break;
+                    default:
+                        throw new IOException("Unknown shard request " + op);
+                }
+                out.flush();
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Shard link closed", ex);
+        }
+    }
+
+    /**
+     * Answers where a guest is after a forwarded move, and gives its ID
+     * back if it was handed over to another shard.
+     */
+    private void route(DataOutputStream out, int id) throws IOException {
+        long route = routeOf(id);
+        out.writeInt(shardOf(route));
+        out.writeInt(idOf(route));
+        if (shardOf(route) != index) {
+            setRoute(id, index, id);
+            server.releasePlayer(id, false);
+        }
+    }
+
+    /**
+     * Takes an idle link to the shard or opens one, trying again while
+     * the shard is not listening yet.
+     *
+     * @return the link, or null if the shard could not be reached.
+     */
+    private Link link(int shard) {
+        Link link = idle[shard].poll();
+        if (link != null)
+            return link;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                Socket socket = new Socket();
+                socket.connect(addresses[shard]);
+                return new Link(socket);
+            } catch (ConnectException ex) {
+                if (attempt == CONNECT_TRIES) {
+                    LOG.log(Level.SEVERE, "Shard " + shard + " unreachable at " + addresses[shard], ex);
+                    return null;
+                }
+                LockSupport.parkNanos(100_000_000L);
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, "Shard " + shard + " unreachable at " + addresses[shard], ex);
+                return null;
+            }
+        }
+    }
+
+    private void release(int shard, Link link) {
+        idle[shard].offer(link);
+    }
+
+    private int failed(Link link, IOException ex) {
+        LOG.log(Level.WARNING, "Shard link failed", ex);
+        try {
+            link.socket.close();
+        } catch (IOException closing) {
+            // already broken
+        }
+        return BLOCKED;
+    }
+
+    /**
+     * Moves handed over to other shards and taken in from them, handoffs
+     * tried again because the target was busy, and requests forwarded to
+     * the shard of a player away from home.
+     */
+    public long handoffCount() {
+        return handoffs.sum();
+    }
+
+    public long admittedCount() {
+        return admitted.sum();
+    }
+
+    public long busyCount() {
+        return busy.sum();
+    }
+
+    public long forwardedCount() {
+        return forwarded.sum();
+    }
+
+    /**
+     * Parses --shards, a comma separated list of host:port.
+     */
+    static InetSocketAddress[] parse(String list) {
+        String[] parts = list.split(",");
+        InetSocketAddress[] out = new InetSocketAddress[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            int colon = parts[i].lastIndexOf(':');
+            if (colon < 0)
+                throw new IllegalArgumentException("Shard address must be host:port: " + parts[i]);
+            out[i] = new InetSocketAddress(parts[i].substring(0, colon),
+                    Integer.parseInt(parts[i].substring(colon + 1)));
+        }
+        return out;
+    }
+}
+
+/**
+ * One connection between two shards.
+ */
+class Link {
+    final Socket socket;
+    final DataInputStream in;
+    final DataOutputStream out;
+
+    Link(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+}
@@ -0,0 +1,38 @@
+package benchmarkgame;
+
+/**
+ * A consistent view of the map: how many players were on it and which
+ * positions of its top-left corner were taken.
+ */
+class Snapshot {
+    final long epoch;
+    final long time;
+    final int width;
+    final int height;
+    final int players;
+    final int rows;
+    final int cols;
+    /**
+     * Whether each position of the rows x cols corner is taken, row by row.
+     */
+    final boolean[] taken;
+
+    Snapshot(long epoch, long time, int width, int height, int players,
+            int rows, int cols, boolean[] taken) {
+        this.epoch = epoch;
+        this.time = time;
+        this.width = width;
+        this.height = height;
+        this.players = players;
+        this.rows = rows;
+        this.cols = cols;
+        this.taken = taken;
+    }
+
+    /**
+     * Renders the corner like Server.toString.
+     */
+    public String render() {
+        return Server.render(taken, rows, cols);
+    }
+}
@@ -0,0 +1,503 @@
+package benchmarkgame;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the game state on disk as a binary log, for JournalReader to
+ * replay offline; it replaces rendering the whole map as text every half
+ * second.
+ *
+ * Moves only flag the players they changed. Every interval a recording
+ * thread writes a delta holding the position of each flagged player, and
+ * every keyframe interval a keyframe holding the position of every player
+ * on the map. The log is split in segments of about segmentSize bytes,
+ * each one starting with a keyframe, so the oldest segments can be deleted
+ * and any segment can be replayed on its own.
+ *
+ * Each segment starts with MAGIC, the map width and height as ints; then
+ * come records made of a type byte (KEYFRAME or DELTA), a timestamp in
+ * milliseconds since the epoch, a number of entries and that many
+ * (player ID, x, y) ints, x being -1 for a player that left. A delta
+ * coalesces every move a player made during the interval, and each entry
+ * is a consistent position of its player, but the entries of a record are
+ * not read at the same instant.
+ *
+ * Write-ahead, when syncMillis is positive, every change is appended to
+ * the log as a CHANGE record, a type byte and a single entry, by the
+ * thread making it and while the players it changes are still its own.
+ * The threads append to a few striped buffers, the stripe picked by
+ * thread, so moves on different stripes of the map or reservations of
+ * the cas engine do not meet here either; each change only takes the next
+ * number of a shared sequence, and conflicting changes, made one after
+ * the other, get their numbers in the order they were made. A push chain
+ * is logged last player first, so any prefix of it leaves one player per
+ * position. Every syncMillis the recording thread gathers the changes
+ * numbered since the last sync from every stripe, puts them back in
+ * sequence order and writes them in one go, after a TIME record (a type
+ * byte and a timestamp) no older than any of them, and forces them to
+ * disk: one fsync commits the moves of every connection together, and
+ * moves never wait for it, so a crash loses at most the last syncMillis.
+ * The stripes hold at most MAX_APPENDED bytes together; should the disk
+ * stall long enough to fill one, changes are dropped and counted instead,
+ * what was appended is discarded at the next sync, and the log starts
+ * over from a keyframe read afterwards, so the map is only recorded by
+ * keyframes while the disk cannot keep up. Every keyframe
+ * interval, or once a segment is full, a checkpoint starts a new segment
+ * with a keyframe, read after the switch: replaying the changes that
+ * follow it over it gives the last logged position of every player, so
+ * the older segments can go. The server recovers the map from the last
+ * segment whose keyframe is whole.
+ */
+class StateJournal implements Runnable {
+    static final int MAGIC = 0x42474a31; // "BGJ1"
+    static final byte KEYFRAME = 1, DELTA = 2, TIME = 3, CHANGE = 4;
+    static final int SEGMENT_HEADER = 4 + 4 + 4;
+    static final int ENTRY_SIZE = 12;
+    static final int RECORD_HEADER = 1 + 8 + 4;
+    static final int CHANGE_SIZE = 1 + ENTRY_SIZE;
+    static final String SUFFIX = ".journal";
+    private static final VarHandle DIRTY = MethodHandles.arrayElementVarHandle(byte[].class);
+    /**
+     * A change as appended: its sequence number then its CHANGE record.
+     */
+    private static final int APPENDED_SIZE = 8 + CHANGE_SIZE;
+    /**
+     * Most bytes appended to all the stripes together between two syncs.
+     */
+    private static final int MAX_APPENDED = 1 << 26;
+    private static final int MAX_STRIPES = 64;
+
+    private final Server server;
+    private final File dir;
+    private final int width;
+    private final int height;
+    private final long intervalMillis;
+    private final long keyframeMillis;
+    private final long segmentSize;
+    private final int segmentsKept;
+    /**
+     * Milliseconds between syncs of a write-ahead log, or 0 when only the
+     * positions of the flagged players are recorded every interval.
+     */
+    private final long syncMillis;
+    /**
+     * Write-ahead, the changes appended since the last sync, and the
+     * limit of each stripe.
+     */
+    private Stripe[] stripes;
+    private int stripeLimit;
+    /**
+     * Next sequence number, and the first one the next sync writes; only
+     * the recording thread and start use synced.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+    private long synced = 0;
+    /**
+     * Set, under the lock of a stripe, once a change could not be
+     * appended; cleared by the recording thread with every stripe locked.
+     */
+    private volatile boolean overflowed = false;
+    private volatile boolean woken = false;
+    /**
+     * The changes of a sync in sequence order, as written.
+     */
+    private ByteBuffer syncing;
+    private final ByteBuffer stamp = ByteBuffer.allocate(1 + 8);
+    private final LongAdder records = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile long syncs = 0;
+    private volatile long bytesWritten = 0;
+    private final StripedHistogram syncTimes = new StripedHistogram();
+    /**
+     * One flag per player ID, set by moves and cleared by the recording
+     * thread.
+     */
+    private final byte[] dirty;
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16);
+    private int[] ids = new int[1024];
+    private long[] positions = new long[1024];
+    private FileChannel segment;
+    private long segmentBytes;
+    private int segmentNumber = 0;
+    private long lastKeyframe;
+    private volatile boolean running = true;
+    private Thread thread;
+
+    /**
+     * @param server the server, for the positions of the players.
+     * @param dir directory of the segments, created if needed.
+     * @param width map width.
+     * @param height map height.
+     * @param maxPlayers number of player IDs.
+     * @param intervalMillis time between deltas.
+     * @param keyframeMillis time between keyframes.
+     * @param segmentSize bytes after which a new segment is started.
+     * @param segmentsKept number of segments left on disk.
+     * @param syncMillis time between syncs of a write-ahead log, or 0 to
+     * record the flagged players every interval.
+     */
+    public StateJournal(Server server, File dir, int width, int height, int maxPlayers,
+            long intervalMillis, long keyframeMillis, long segmentSize, int segmentsKept,
+            long syncMillis) {
+        this.server = server;
+        this.dir = dir;
+        this.width = width;
+        this.height = height;
+        this.intervalMillis = intervalMillis;
+        this.keyframeMillis = keyframeMillis;
+        this.segmentSize = segmentSize;
+        this.segmentsKept = segmentsKept;
+        this.syncMillis = syncMillis;
+        this.dirty = new byte[maxPlayers];
+        if (syncMillis > 0) {
+            int count = 1;
+            while (count < 4 * Runtime.getRuntime().availableProcessors() && count < MAX_STRIPES)
+                count *= 2;
+            stripes = new Stripe[count];
+            for (int i = 0; i < count; i++)
+                stripes[i] = new Stripe();
+            stripeLimit = MAX_APPENDED / count;
+            syncing = ByteBuffer.allocate(1 << 16);
+        }
+    }
+
+    /**
+     * Whether every change is logged, and the map can be recovered.
+     */
+    public boolean writeAhead() {
+        return syncMillis > 0;
+    }
+
+    /**
+     * Flags a player whose position changed, or logs its new position;
+     * called by whoever changed it, once the new position is stored and
+     * before the player may change again.
+     * @param pos the new position, packed by Server.pack, or
+     * Server.NOT_MOVED if the player left.
+     */
+    public void changed(int id, long pos) {
+        if (syncMillis == 0) {
+            DIRTY.setRelease(dirty, id, (byte) 1);
+            return;
+        }
+        Stripe stripe = lockStripe();
+        try {
+            ByteBuffer appended = stripe.appended;
+            if (appended.remaining() < APPENDED_SIZE && !overflowed) {
+                if (appended.capacity() < stripeLimit)
+                    appended = stripe.appended = ByteBuffer.allocate(
+                            Math.min(appended.capacity() * 2, stripeLimit)).put(appended.flip());
+                else {
+                    overflowed = true;
+                    wake();
+                }
+            }
+            if (overflowed) {
+                // the keyframe ending the overflow is read once discard took this lock
+                dropped.increment();
+                return;
+            }
+            appended.putLong(sequence.getAndIncrement()).put(CHANGE).putInt(id);
+            if (pos == Server.NOT_MOVED)
+                appended.putInt(-1).putInt(-1);
+            else
+                appended.putInt(Server.unpackX(pos)).putInt(Server.unpackY(pos));
+            if (appended.position() >= stripeLimit / 2)
+                wake();
+        } finally {
+            stripe.lock.unlock();
+        }
+        records.increment();
+    }
+
+    /**
+     * Locks the stripe of the calling thread, or the next one if another
+     * thread holds it.
+     */
+    private Stripe lockStripe() {
+        int mask = stripes.length - 1;
+        int i = (int) (Thread.currentThread().threadId() * 0x9e3779b97f4a7c15L >>> 40) & mask;
+        Stripe stripe = stripes[i];
+        if (stripe.lock.tryLock())
+            return stripe;
+        Stripe next = stripes[(i + 1) & mask];
+        if (next.lock.tryLock())
+            return next;
+        stripe.lock.lock();
+        return stripe;
+    }
+
+    private void wake() {
+        if (!woken) {
+            woken = true;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Changes logged so far, and changes dropped because the disk did not
+     * keep up.
+     */
+    public long recordCount() {
+        return records.sum();
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    public long syncCount() {
+        return syncs;
+    }
+
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Time each sync took to write and force the log.
+     */
+    public LatencyHistogram syncTimes() {
+        return syncTimes.snapshot();
+    }
+
+    /**
+     * Opens the first segment and starts the recording thread.
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create " + dir);
+        File[] old = JournalReader.segments(dir);
+        if (old.length > 0) {
+            String name = old[old.length - 1].getName();
+            segmentNumber = Integer.parseInt(name.substring(0, name.length() - SUFFIX.length())) + 1;
+        }
+        if (syncMillis > 0) {
+            // what was logged before, e.g. the recovered players, is in the
+            // first keyframe
+            discard();
+            dropped.reset();
+        }
+        rotate();
+        thread = new Thread(this, "state-journal");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the recording thread, writing a last delta.
+     */
+    public void close() {
+        running = false;
+        if (thread == null)
+            return;
+        // not interrupt: it would close the channel in the middle of a write
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run() {
+        try {
+            while (running) {
+                LockSupport.parkNanos(this, (syncMillis > 0 ? syncMillis : intervalMillis) * 1_000_000L);
+                long now = System.currentTimeMillis();
+                if (syncMillis > 0) {
+                    if (!sync() || segmentBytes >= segmentSize || now - lastKeyframe >= keyframeMillis)
+                        rotate();
+                } else if (segmentBytes >= segmentSize)
+                    rotate();
+                else if (now - lastKeyframe >= keyframeMillis)
+                    writeKeyframe(now);
+                else
+                    writeDelta(now);
+            }
+            segment.close();
+        } catch (IOException ex) {
+            Logger.getLogger(StateJournal.class.getName()).log(Level.SEVERE, "State journal stopped", ex);
+        }
+    }
+
+    /**
+     * Starts a new segment with a keyframe and deletes the oldest ones.
+     * Write-ahead, the deltas appended since the last sync follow the
+     * keyframe, and it is on disk before anything is deleted.
+     */
+    private void rotate() throws IOException {
+        if (segment != null)
+            segment.close();
+        File file = new File(dir, String.format("%08d", segmentNumber++) + SUFFIX);
+        segment = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        segmentBytes = 0;
+        buf.clear();
+        buf.putInt(MAGIC).putInt(width).putInt(height);
+        writeKeyframe(System.currentTimeMillis());
+        if (syncMillis > 0)
+            segment.force(false);
+        File[] all = JournalReader.segments(dir);
+        for (int i = 0; i < all.length - segmentsKept; i++)
+            all[i].delete();
+    }
+
+    private void writeKeyframe(long now) throws IOException {
+        int n = 0;
+        for (int id = 0; id < dirty.length; id++) {
+            // a change after the flag is cleared is flagged again
+            DIRTY.getAndSet(dirty, id, (byte) 0);
+            long pos = server.localPosition(id);
+            if (pos != Server.NOT_MOVED)
+                n = add(n, id, pos);
+        }
+        lastKeyframe = now;
+        write(KEYFRAME, now, n);
+    }
+
+    private void writeDelta(long now) throws IOException {
+        int n = 0;
+        for (int id = 0; id < dirty.length; id++) {
+            // getAndSet orders the read of the position after the move
+            // that set the flag
+            if ((byte) DIRTY.getOpaque(dirty, id) != 0
+                    && (byte) DIRTY.getAndSet(dirty, id, (byte) 0) != 0)
+                n = add(n, id, server.localPosition(id));
+        }
+        if (n > 0)
+            write(DELTA, now, n);
+    }
+
+    private int add(int n, int id, long pos) {
+        if (n == ids.length) {
+            ids = Arrays.copyOf(ids, n * 2);
+            positions = Arrays.copyOf(positions, n * 2);
+        }
+        ids[n] = id;
+        positions[n] = pos;
+        return n + 1;
+    }
+
+    private void write(byte type, long time, int n) throws IOException {
+        if (buf.remaining() < RECORD_HEADER)
+            flush();
+        buf.put(type).putLong(time).putInt(n);
+        for (int i = 0; i < n; i++) {
+            if (buf.remaining() < ENTRY_SIZE)
+                flush();
+            long pos = positions[i];
+            buf.putInt(ids[i]);
+            if (pos == Server.NOT_MOVED)
+                buf.putInt(-1).putInt(-1);
+            else
+                buf.putInt(Server.unpackX(pos)).putInt(Server.unpackY(pos));
+        }
+        flush();
+    }
+
+    /**
+     * Writes the changes numbered since the last sync, in sequence order,
+     * and forces them to disk: the group commit of the changes made
+     * meanwhile.
+     * @return false if changes were dropped instead; nothing was written
+     * and the log must start over from a keyframe.
+     */
+    private boolean sync() throws IOException {
+        woken = false;
+        if (overflowed) {
+            discard();
+            return false;
+        }
+        // every number below the cut belongs to a change already appended
+        // once the lock of its stripe is taken; the ones above wait
+        long cut = sequence.get();
+        int size = (int) (cut - synced) * CHANGE_SIZE;
+        if (syncing.capacity() < size)
+            syncing = ByteBuffer.allocate(Math.max(size, syncing.capacity() * 2));
+        syncing.clear().limit(size);
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                ByteBuffer appended = stripe.appended.flip();
+                while (appended.hasRemaining()) {
+                    long number = appended.getLong(appended.position());
+                    if (number >= cut)
+                        break;
+                    syncing.put((int) (number - synced) * CHANGE_SIZE, appended,
+                            appended.position() + 8, CHANGE_SIZE);
+                    appended.position(appended.position() + APPENDED_SIZE);
+                }
+                appended.compact();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        synced = cut;
+        if (syncing.hasRemaining()) {
+            long start = System.nanoTime();
+            stamp.clear();
+            stamp.put(TIME).putLong(System.currentTimeMillis()).flip();
+            ByteBuffer[] batch = { stamp, syncing };
+            long written = 0;
+            while (syncing.hasRemaining())
+                written += segment.write(batch);
+            segment.force(false);
+            syncTimes.record(System.nanoTime() - start);
+            segmentBytes += written;
+            bytesWritten += written;
+            syncs++;
+        }
+        return true;
+    }
+
+    /**
+     * Forgets every change appended so far, with every stripe locked so
+     * that what is read from the map afterwards is newer than all of them,
+     * and lets changes be appended again.
+     */
+    private void discard() {
+        for (Stripe stripe : stripes)
+            stripe.lock.lock();
+        try {
+            for (Stripe stripe : stripes)
+                stripe.appended.clear();
+            synced = sequence.get();
+            overflowed = false;
+            woken = false;
+        } finally {
+            for (Stripe stripe : stripes)
+                stripe.lock.unlock();
+        }
+    }
+
+    private void flush() throws IOException {
+        buf.flip();
+        while (buf.hasRemaining())
+            segmentBytes += segment.write(buf);
+        buf.clear();
+    }
+
+    /**
+     * Changes appended by the threads of one stripe, each after its
+     * sequence number, in sequence order.
+     */
+    private static class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        ByteBuffer appended = ByteBuffer.allocate(1 << 12);
+    }
+}
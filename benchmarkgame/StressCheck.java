@@ -0,0 +1,254 @@
+package benchmarkgame;
+
+import benchmarkgame.gameutils.EngineMode;
+import benchmarkgame.gameutils.Status;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+/**
+ * Offline tool checking that an engine keeps the map consistent while many
+ * threads move players at once, and measuring it, e.g.
+ * "java benchmarkgame.StressCheck --engine=cas --workers=4".
+ *
+ * Each worker owns a share of the players, as a connection owns its
+ * player, and moves them at random as fast as it can with single moves and
+ * batches, now and then logging one out and a new one in. A reader takes
+ * snapshots all along, each of which must count every player but those a
+ * worker is logging out and in. After each round the workers stop and the
+ * whole map is checked: every player logged in stands on exactly one
+ * position, the one the engine gives for it; no other player is on the
+ * map, no cell is left reserved, and a snapshot counts every player.
+ *
+ * The other options are those of the server; the map is small and dense by
+ * default so that pushes and conflicts are frequent. Exits with status 1
+ * if a check failed.
+ */
+public class StressCheck {
+    private static final int MAX_REPORTED = 10;
+
+    private final Server server;
+    private final int width;
+    private final int height;
+    private final int maxPlayers;
+    private final List<String> violations = new ArrayList<String>();
+    private volatile boolean running;
+
+    StressCheck(ServerConfig config) throws Exception {
+        this.server = Server.offline(config);
+        this.width = config.boardWidth();
+        this.height = config.boardHeight();
+        this.maxPlayers = config.maxPlayers;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int workerCount = 4, rounds = 5, players = 0;
+        double seconds = 1;
+        ServerConfig config = new ServerConfig();
+        config.width = 32;
+        config.height = 32;
+        config.maxPlayers = 32 * 32 * 6 / 10;
+        config.journal = null;
+        try {
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (!arg.startsWith("--") || eq < 0)
+                    throw new IllegalArgumentException("Option must be --name=value: " + arg);
+                String name = arg.substring(2, eq), value = arg.substring(eq + 1);
+                if (name.equals("workers"))
+                    workerCount = Integer.parseInt(value);
+                else if (name.equals("rounds"))
+                    rounds = Integer.parseInt(value);
+                else if (name.equals("seconds"))
+                    seconds = Double.parseDouble(value);
+                else if (name.equals("players"))
+                    players = Integer.parseInt(value);
+                else
+                    config.set(name, value);
+            }
+            if (config.engine == EngineMode.TICK)
+                throw new IllegalArgumentException("The tick engine applies every move on one thread, check locks or cas");
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage() + "\n\nSyntax: java benchmarkgame.StressCheck [--workers=N] [--rounds=N]"
+                    + " [--seconds=S] [--players=N] [server options]\n\n" + ServerConfig.usage());
+            System.exit(1);
+            return;
+        }
+        if (players <= 0 || players > config.maxPlayers)
+            players = config.maxPlayers;
+
+        StressCheck check = new StressCheck(config);
+        boolean ok = check.run(workerCount, players, rounds, (long) (seconds * 1e9));
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Logs the players in, then runs the rounds.
+     * @return true if every check passed.
+     */
+    boolean run(int workerCount, int players, int rounds, long roundNanos) throws InterruptedException {
+        Worker[] workers = new Worker[workerCount];
+        for (int w = 0; w < workerCount; w++) {
+            int n = players / workerCount + (w < players % workerCount ? 1 : 0);
+            workers[w] = new Worker(w, n);
+            for (int i = 0; i < n; i++)
+                workers[w].ids[i] = spawn("stress-" + w + "-" + i);
+        }
+        int live = players;
+        long totalMoves = 0, totalNanos = 0;
+        for (int round = 1; round <= rounds && violations.isEmpty(); round++) {
+            running = true;
+            Thread[] threads = new Thread[workerCount];
+            for (int w = 0; w < workerCount; w++) {
+                threads[w] = new Thread(workers[w], "stress-" + w);
+                threads[w].start();
+            }
+            Thread reader = new Thread(() -> readSnapshots(live, workerCount), "stress-snapshots");
+            reader.start();
+            long start = System.nanoTime();
+            Thread.sleep(roundNanos / 1_000_000, (int) (roundNanos % 1_000_000));
+            running = false;
+            for (Thread t : threads)
+                t.join();
+            reader.join();
+            long nanos = System.nanoTime() - start;
+
+            long moves = 0;
+            for (Worker w : workers) {
+                moves += w.moves;
+                w.moves = 0;
+            }
+            totalMoves += moves;
+            totalNanos += nanos;
+            checkMap(workers, live);
+            System.out.println(String.format(Locale.ROOT, "round %d: %d moves, %.0f moves/s, %s",
+                    round, moves, moves * 1e9 / nanos, violations.isEmpty() ? "consistent" : "INCONSISTENT"));
+        }
+
+        long[] chains = server.pushChainLengths();
+        long committed = 0, pushes = 0;
+        for (int i = 0; i < chains.length; i++) {
+            committed += chains[i];
+            if (i > 0)
+                pushes += chains[i];
+        }
+        CasEngine cas = server.casEngine();
+        for (int i = 0; i < Math.min(MAX_REPORTED, violations.size()); i++)
+            System.out.println("  " + violations.get(i));
+        System.out.println(String.format(Locale.ROOT,
+                "engine=%s workers=%d players=%d map=%dx%d moves/s=%.0f committed=%d pushes=%d refused=%d conflicts=%d violations=%d",
+                cas != null ? "cas" : "locks", workerCount, live, width, height,
+                totalMoves * 1e9 / Math.max(1, totalNanos), committed, pushes, server.blockedMoves(),
+                cas != null ? cas.conflicts() : server.lockWaitTimes().count(), violations.size()));
+        return violations.isEmpty();
+    }
+
+    private int spawn(String name) {
+        int id = server.internPlayer(name);
+        if (id < 0 || server.randomPosition(id) != Status.OK)
+            throw new IllegalStateException("No room for " + name);
+        return id;
+    }
+
+    /**
+     * Takes snapshots until the round ends. A worker has at most one of
+     * its players off the map at a time, while logging it out and in.
+     */
+    private void readSnapshots(int live, int workerCount) {
+        while (running) {
+            Snapshot snap = server.snapshot();
+            if (snap.players > live || snap.players < live - workerCount)
+                violation("snapshot of epoch " + snap.epoch + " counts " + snap.players
+                        + " players, " + live + " are logged in");
+        }
+    }
+
+    /**
+     * Checks the whole map against the players of the workers, while
+     * nobody moves.
+     */
+    private void checkMap(Worker[] workers, int live) {
+        int[] seen = new int[maxPlayers];
+        boolean[] loggedIn = new boolean[maxPlayers];
+        for (Worker w : workers)
+            for (int id : w.ids)
+                loggedIn[id] = true;
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                int id = server.playerAt(x, y);
+                if (id == Board.FREE)
+                    continue;
+                if (id < Board.FREE) {
+                    violation("(" + x + ", " + y + ") is still reserved");
+                    continue;
+                }
+                seen[id]++;
+                if (!loggedIn[id])
+                    violation("player " + id + " logged out but still at (" + x + ", " + y + ")");
+                long pos = server.localPosition(id);
+                if (pos != Server.pack(x, y))
+                    violation("player " + id + " found at (" + x + ", " + y + ") but placed at ("
+                            + Server.unpackX(pos) + ", " + Server.unpackY(pos) + ")");
+            }
+        }
+        for (int id = 0; id < maxPlayers; id++) {
+            if (loggedIn[id] && seen[id] == 0)
+                violation("player " + id + " is lost");
+            else if (seen[id] > 1)
+                violation("player " + id + " is on " + seen[id] + " positions");
+        }
+        int counted = server.snapshot().players;
+        if (counted != live)
+            violation("snapshot counts " + counted + " players, " + live + " are logged in");
+    }
+
+    private synchronized void violation(String message) {
+        violations.add(message);
+    }
+
+    /**
+     * Moves its players until the round ends.
+     */
+    private class Worker implements Runnable {
+        final int[] ids;
+        final SplittableRandom random;
+        final int[] dx = new int[8];
+        final int[] dy = new int[8];
+        long moves = 0;
+        private int logins = 0;
+        private final int number;
+
+        Worker(int number, int players) {
+            this.number = number;
+            this.ids = new int[players];
+            this.random = new SplittableRandom(number);
+        }
+
+        public void run() {
+            if (ids.length == 0)
+                return;
+            while (running) {
+                int k = random.nextInt(ids.length);
+                int roll = random.nextInt(100);
+                if (roll < 2) {
+                    server.removePlayer(ids[k]);
+                    ids[k] = spawn("stress-" + number + "-login-" + logins++);
+                } else if (roll < 10) {
+                    int n = 1 + random.nextInt(dx.length);
+                    for (int i = 0; i < n; i++) {
+                        int d = random.nextInt(8);
+                        dx[i] = PushResolver.DX[d];
+                        dy[i] = PushResolver.DY[d];
+                    }
+                    server.updatePositions(ids[k], dx, dy, n);
+                    moves += n;
+                } else {
+                    int d = random.nextInt(8);
+                    server.updatePosition(ids[k], PushResolver.DX[d], PushResolver.DY[d]);
+                    moves++;
+                }
+            }
+        }
+    }
+}
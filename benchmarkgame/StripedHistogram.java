@@ -0,0 +1,57 @@
+package benchmarkgame;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A LatencyHistogram many threads record into at once, for the server's
+ * metrics. Like a LongAdder, the counts are spread over a few stripes
+ * picked by thread, so threads on different cores seldom update the same
+ * array; reading adds the stripes together into a LatencyHistogram.
+ *
+ * A read made while values are recorded may miss some of them, or count
+ * one in its bucket but not yet in the sum.
+ */
+class StripedHistogram {
+    /**
+     * Every stripe holds the buckets, then the sum and the maximum.
+     */
+    private static final int SUM = LatencyHistogram.BUCKETS;
+    private static final int MAX = SUM + 1;
+    private static final int STRIPES = Math.min(8,
+            Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+    public StripedHistogram() {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new AtomicLongArray(MAX + 1);
+    }
+
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        else if (value > LatencyHistogram.MAX_VALUE)
+            value = LatencyHistogram.MAX_VALUE;
+        long h = Thread.currentThread().threadId() * 0x9E3779B97F4A7C15L;
+        AtomicLongArray stripe = stripes[(int) (h >>> 32) & (STRIPES - 1)];
+        stripe.getAndIncrement(LatencyHistogram.index(value));
+        stripe.getAndAdd(SUM, value);
+        long max;
+        while (value > (max = stripe.get(MAX)) && !stripe.compareAndSet(MAX, max, value))
+            ;
+    }
+
+    /**
+     * Adds the stripes together.
+     */
+    public LatencyHistogram snapshot() {
+        LatencyHistogram h = new LatencyHistogram();
+        long[] counts = new long[LatencyHistogram.BUCKETS];
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < counts.length; i++)
+                counts[i] = stripe.get(i);
+            h.add(counts, stripe.get(SUM), stripe.get(MAX));
+        }
+        return h;
+    }
+}
@@ -0,0 +1,480 @@
+package benchmarkgame;
+
+import benchmarkgame.gameutils.SetConfig;
+import benchmarkgame.gameutils.Status;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Alternative to the lock-based engine: connections only publish intents
+ * (spawn, move, batch, leave) into a pre-allocated ring, and a single
+ * simulation thread applies them in ring order, tick after tick, without
+ * taking any lock. The order in which intents were published is the order
+ * in which the game happens, and the push chains are resolved by the same
+ * seeded PushResolver, so a recorded order always replays the same game.
+ *
+ * Each tick applies every intent published before it started. With a tick
+ * rate of 0 the thread runs ticks back to back, sleeping only while the
+ * ring is empty; with a rate of N it starts a tick every 1/N seconds, so
+ * a player gets at most N answers per second.
+ *
+ * Blocking connections wait for their intent on a per-thread Waiter;
+ * non-blocking ones hand in an IntentListener for their spawn and moves
+ * and are told once it is applied. A leave is never waited for.
+ */
+class TickEngine implements Runnable {
+    /**
+     * Kinds of intents.
+     */
+    static final int SPAWN = 0, REMOVE = 1, MOVE = 2, BATCH = 3;
+    private static final VarHandle POSITIONS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final Server server;
+    private final Board map;
+    private final int[] posX;
+    private final int[] posY;
+    private final PushResolver pushes;
+    private final StateJournal journal;
+    private final BoardSnapshots snapshots;
+    private final NeighborIndex neighbors;
+    private final Chain chain = new Chain();
+    private final IntentRing ring;
+    private final long periodNanos;
+    private final SplittableRandom random;
+    /**
+     * Position of each player packed by Server.pack, written by the
+     * simulation thread only, read by anyone.
+     */
+    private final long[] positions;
+    private final ThreadLocal<Waiter> waiters = ThreadLocal.withInitial(Waiter::new);
+    private final AtomicLong ticks = new AtomicLong();
+    private volatile boolean sleeping = false;
+    private Thread thread;
+    /**
+     * CPUs the simulation thread pins itself to, or null.
+     */
+    private String cpus;
+
+    /**
+     * @param server the server, for the player IDs and the occupancy.
+     * @param map the game map, written by the simulation thread only.
+     * @param posX current column of each player.
+     * @param posY current row of each player.
+     * @param pushes push chain resolver, used without stripes.
+     * @param tickRate ticks per second, 0 to run ticks back to back.
+     * @param seed seed of the spawn positions.
+     * @param journal told about every player placed or removed, or null.
+     * @param snapshots told about every player placed or removed.
+     * @param neighbors told about every player placed or removed.
+     */
+    public TickEngine(Server server, Board map, int[] posX, int[] posY,
+            PushResolver pushes, int tickRate, long seed, StateJournal journal,
+            BoardSnapshots snapshots, NeighborIndex neighbors) {
+        this.server = server;
+        this.map = map;
+        this.posX = posX;
+        this.posY = posY;
+        this.pushes = pushes;
+        this.journal = journal;
+        this.snapshots = snapshots;
+        this.neighbors = neighbors;
+        this.periodNanos = tickRate > 0 ? 1_000_000_000L / tickRate : 0;
+        this.random = new SplittableRandom(seed);
+        this.positions = new long[posX.length];
+        Arrays.fill(positions, Server.NOT_MOVED);
+        // every connection has at most one intent and its leave in flight
+        this.ring = new IntentRing(Math.max(1024, Integer.highestOneBit(4 * posX.length - 1) * 2));
+    }
+
+    /**
+     * Starts the simulation thread.
+     * @param cpus CPUs to pin it to, as taskset -c lists them, or null.
+     */
+    public void start(String cpus) {
+        this.cpus = cpus;
+        thread = new Thread(this, "tick-engine");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Places a player whose room on the map is already reserved, waiting
+     * for the tick that does it.
+     */
+    public Status spawn(int id) {
+        Waiter w = waiters.get();
+        publish(SPAWN, id, 0, 0, null, null, 0, w);
+        w.await();
+        return Status.OK;
+    }
+
+    /**
+     * Publishes the spawn of a player whose room on the map is already
+     * reserved; the listener gets its position once it is placed.
+     */
+    public void submitSpawn(IntentListener listener, int id) {
+        publish(SPAWN, id, 0, 0, null, null, 0, listener);
+    }
+
+    /**
+     * Places a player at a given position if it is free, before the
+     * simulation thread starts, e.g. to lay out a recovered map.
+     */
+    public boolean restore(int id, int x, int y) {
+        if (thread != null)
+            throw new IllegalStateException("Players are placed by the simulation thread");
+        if (posX[id] >= 0 || map.get(x, y) != Board.FREE)
+            return false;
+        long pos = Server.pack(x, y);
+        long epoch = snapshots.enter(id);
+        map.set(x, y, id);
+        snapshots.changed(epoch, id, pos);
+        neighbors.changed(id, pos);
+        snapshots.exit(epoch, id);
+        posX[id] = x;
+        posY[id] = y;
+        POSITIONS.setOpaque(positions, id, pos);
+        if (journal != null)
+            journal.changed(id, pos);
+        return true;
+    }
+
+    /**
+     * Takes the player off the map and releases its ID, without waiting.
+     */
+    public void remove(int id) {
+        publish(REMOVE, id, 0, 0, null, null, 0, null);
+    }
+
+    /**
+     * Moves the player and waits for the tick that does it.
+     * @return the new position, packed by Server.pack, or Server.NOT_MOVED.
+     */
+    public long move(int id, int dx, int dy) {
+        Waiter w = waiters.get();
+        publish(MOVE, id, dx, dy, null, null, 0, w);
+        w.await();
+        return w.result;
+    }
+
+    /**
+     * Applies a batch of moves and waits for the tick that does it.
+     * @return the number of moves made.
+     */
+    public int moveBatch(int id, int[] dx, int[] dy, int n) {
+        Waiter w = waiters.get();
+        publish(BATCH, id, 0, 0, dx, dy, n, w);
+        w.await();
+        return w.count;
+    }
+
+    /**
+     * Publishes a move, the listener gets the new position or
+     * Server.NOT_MOVED.
+     */
+    public void submitMove(IntentListener listener, int id, int dx, int dy) {
+        publish(MOVE, id, dx, dy, null, null, 0, listener);
+    }
+
+    /**
+     * Publishes a batch of moves, the listener gets the final position and
+     * the number of moves made. The arrays must not change until then.
+     */
+    public void submitBatch(IntentListener listener, int id, int[] dx, int[] dy, int n) {
+        publish(BATCH, id, 0, 0, dx, dy, n, listener);
+    }
+
+    /**
+     * Position of the player as of the last tick, packed by Server.pack.
+     */
+    public long position(int id) {
+        return (long) POSITIONS.getOpaque(positions, id);
+    }
+
+    /**
+     * Number of ticks run so far.
+     */
+    public long ticks() {
+        return ticks.get();
+    }
+
+    private void publish(int kind, int id, int dx, int dy, int[] bx, int[] by, int n,
+            IntentListener listener) {
+        ring.publish(kind, id, dx, dy, bx, by, n, listener);
+        if (sleeping) {
+            sleeping = false;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public void run() {
+        if (cpus != null)
+            SetConfig.pinThread(cpus);
+        long next = System.nanoTime();
+        while (true) {
+            int applied = tick();
+            if (periodNanos > 0) {
+                next += periodNanos;
+                long wait;
+                while ((wait = next - System.nanoTime()) > 0)
+                    LockSupport.parkNanos(this, wait);
+            } else if (applied == 0) {
+                // sleep until a producer publishes, checking once more in
+                // case it did so before seeing the flag
+                sleeping = true;
+                if (ring.isEmpty())
+                    LockSupport.parkNanos(this, 1_000_000L);
+                sleeping = false;
+            }
+        }
+    }
+
+    /**
+     * Applies every intent published before the tick started.
+     * @return the number of intents applied.
+     */
+    private int tick() {
+        long end = ring.claimed();
+        int applied = 0;
+        while (ring.consumed() < end) {
+            ring.awaitHead();
+            apply(ring);
+            ring.advance();
+            applied++;
+        }
+        ticks.incrementAndGet();
+        return applied;
+    }
+
+    private void apply(IntentRing r) {
+        int id = r.player();
+        IntentListener listener = r.listener();
+        switch (r.kind()) {
+            case SPAWN:
+                place(id);
+                break;
+            case REMOVE: {
+                boolean placed = posX[id] >= 0;
+                if (placed) {
+                    long epoch = snapshots.enter(id);
+                    map.set(posX[id], posY[id], Board.FREE);
+                    snapshots.changed(epoch, id, Server.NOT_MOVED);
+                    neighbors.changed(id, Server.NOT_MOVED);
+                    snapshots.exit(epoch, id);
+                    posX[id] = -1;
+                    posY[id] = -1;
+                    POSITIONS.setOpaque(positions, id, Server.NOT_MOVED);
+                    if (journal != null)
+                        journal.changed(id, Server.NOT_MOVED);
+                }
+                server.releasePlayer(id, placed);
+                break;
+            }
+            case MOVE: {
+                long ret = step(id, r.dx(), r.dy()) ? Server.pack(posX[id], posY[id]) : Server.NOT_MOVED;
+                listener.applied(ret, ret == Server.NOT_MOVED ? 0 : 1);
+                return;
+            }
+            case BATCH: {
+                int[] bx = r.batchX(), by = r.batchY();
+                int moved = 0;
+                for (int i = 0, n = r.count(); i < n; i++)
+                    if (step(id, bx[i], by[i]))
+                        moved++;
+                listener.applied(Server.pack(posX[id], posY[id]), moved);
+                return;
+            }
+        }
+        if (listener != null)
+            listener.applied(Server.pack(posX[id], posY[id]), 1);
+    }
+
+    private boolean step(int id, int dx, int dy) {
+        if (posX[id] < 0 || pushes.resolve(id, dx, dy, null, chain) != PushResolver.MOVED)
+            return false;
+        pushes.commit(chain);
+        for (int i = 0; i < chain.length; i++) {
+            int m = chain.ids[i];
+            POSITIONS.setOpaque(positions, m, Server.pack(posX[m], posY[m]));
+        }
+        return true;
+    }
+
+    private void place(int id) {
+        if (posX[id] >= 0)
+            return;
+        while (true) {
+            long pos = map.randomFree(random);
+            if (pos < 0)
+                continue;
+            int x = Server.unpackX(pos), y = Server.unpackY(pos);
+            if (map.get(x, y) == Board.FREE) {
+                long epoch = snapshots.enter(id);
+                map.set(x, y, id);
+                snapshots.changed(epoch, id, pos);
+                neighbors.changed(id, pos);
+                snapshots.exit(epoch, id);
+                posX[id] = x;
+                posY[id] = y;
+                POSITIONS.setOpaque(positions, id, pos);
+                if (journal != null)
+                    journal.changed(id, pos);
+                return;
+            }
+        }
+    }
+}
+
+/**
+ * Lets a blocking thread wait for its own intent; one per thread, reused.
+ */
+class Waiter implements IntentListener {
+    private final Thread thread = Thread.currentThread();
+    private volatile boolean done = false;
+    long result;
+    int count;
+
+    public void applied(long position, int count) {
+        this.result = position;
+        this.count = count;
+        done = true;
+        LockSupport.unpark(thread);
+    }
+
+    void await() {
+        while (!done)
+            LockSupport.park(this);
+        done = false;
+    }
+}
+
+/**
+ * Multi-producer, single-consumer ring of intents, in the style of a
+ * disruptor: every slot is allocated up front as a column of plain arrays.
+ * A producer claims a sequence number with one atomic increment, fills the
+ * slot and publishes it by storing the sequence in the slot's marker; the
+ * consumer reads slots in sequence order as their markers appear.
+ */
+class IntentRing {
+    private final int mask;
+    private final AtomicLongArray published;
+    private final int[] kinds;
+    private final int[] players;
+    private final int[] dxs;
+    private final int[] dys;
+    private final int[] counts;
+    private final int[][] batchXs;
+    private final int[][] batchYs;
+    private final IntentListener[] listeners;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0;
+    private int slot;
+
+    /**
+     * @param capacity number of slots, a power of two.
+     */
+    IntentRing(int capacity) {
+        mask = capacity - 1;
+        published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++)
+            published.set(i, -1);
+        kinds = new int[capacity];
+        players = new int[capacity];
+        dxs = new int[capacity];
+        dys = new int[capacity];
+        counts = new int[capacity];
+        batchXs = new int[capacity][];
+        batchYs = new int[capacity][];
+        listeners = new IntentListener[capacity];
+    }
+
+    void publish(int kind, int id, int dx, int dy, int[] bx, int[] by, int n,
+            IntentListener listener) {
+        long seq = tail.getAndIncrement();
+        // full: wait for the consumer to free the slot
+        while (seq - head > mask)
+            Thread.yield();
+        int i = (int) seq & mask;
+        kinds[i] = kind;
+        players[i] = id;
+        dxs[i] = dx;
+        dys[i] = dy;
+        batchXs[i] = bx;
+        batchYs[i] = by;
+        counts[i] = n;
+        listeners[i] = listener;
+        published.lazySet(i, seq);
+    }
+
+    /**
+     * Sequence number the next producer will get.
+     */
+    long claimed() {
+        return tail.get();
+    }
+
+    long consumed() {
+        return head;
+    }
+
+    boolean isEmpty() {
+        return tail.get() == head;
+    }
+
+    /**
+     * Waits for the producer of the oldest claimed slot to publish it.
+     */
+    void awaitHead() {
+        long seq = head;
+        slot = (int) seq & mask;
+        while (published.get(slot) != seq)
+            Thread.yield();
+    }
+
+    /**
+     * Frees the slot just read.
+     */
+    void advance() {
+        batchXs[slot] = null;
+        batchYs[slot] = null;
+        listeners[slot] = null;
+        head = head + 1;
+    }
+
+    int kind() {
+        return kinds[slot];
+    }
+
+    int player() {
+        return players[slot];
+    }
+
+    int dx() {
+        return dxs[slot];
+    }
+
+    int dy() {
+        return dys[slot];
+    }
+
+    int count() {
+        return counts[slot];
+    }
+
+    int[] batchX() {
+        return batchXs[slot];
+    }
+
+    int[] batchY() {
+        return batchYs[slot];
+    }
+
+    IntentListener listener() {
+        return listeners[slot];
+    }
+}
@@ -0,0 +1,51 @@
+package benchmarkgame;
+
+/**
+ * Paces the commands of one connection: tokens accrue at a fixed rate up
+ * to a burst, and each command takes one, a batch one per move. A
+ * connection sending no faster than the rate never waits, one sending
+ * faster waits for its tokens instead of being refused, so its commands
+ * queue in its own socket and TCP slows the player down rather than the
+ * other connections.
+ *
+ * A batch of more moves than the burst could never find its tokens, so it
+ * goes on once the bucket is full and leaves it in debt: the commands
+ * after it wait until the moves it made beyond the burst are paid for.
+ *
+ * Used by the thread serving the connection only, so it needs no locking.
+ */
+class TokenBucket {
+    private final double perNano;
+    private final int burst;
+    private double tokens;
+    private long last;
+
+    /**
+     * @param rate moves per second.
+     * @param burst most moves made at once after a pause; a batch of
+     * more moves waits for a full bucket and pays the rest afterwards.
+     */
+    public TokenBucket(int rate, int burst) {
+        this.perNano = rate / 1e9;
+        this.burst = burst;
+        this.tokens = burst;
+        this.last = System.nanoTime();
+    }
+
+    /**
+     * Takes the tokens of n moves, if there are enough, or if n is more
+     * than the burst and the bucket is full.
+     * @return 0 if they were taken, else the nanoseconds until there will
+     * be enough.
+     */
+    public long take(int n, long now) {
+        tokens = Math.min(burst, tokens + (now - last) * perNano);
+        last = now;
+        int needed = Math.min(n, burst);
+        if (tokens >= needed) {
+            tokens -= n;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((needed - tokens) / perNano));
+    }
+}
@@ -0,0 +1,241 @@
+package benchmarkgame;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the commands that change the map as the players send them, for
+ * TraceReplay to apply again without network, e.g.
+ * "java benchmarkgame.Server 127.0.0.1 --trace=run.trace".
+ *
+ * Connections append records to a buffer under a lock, in the order the
+ * commands arrive; every FLUSH_MILLIS a recording thread writes what was
+ * appended meanwhile to the file. A login records where the player was
+ * placed, so a replay need not draw the same random positions.
+ *
+ * The file starts with MAGIC and the options the moves depend on: map
+ * width and height, most players, push depth and region side as ints, and
+ * the push seed as a long. Then come records made of a type byte (LOGIN,
+ * MOVE, BATCH or LOGOUT), the microseconds since the previous record and
+ * the player ID as varints, then for a login the x and y varints, for a
+ * move one step byte, and for a batch a count byte and that many steps. A
+ * step is (dx + 1) * 3 + dy + 1.
+ */
+class TraceRecorder implements Runnable {
+    static final int MAGIC = 0x42475431; // "BGT1"
+    static final byte LOGIN = 1, MOVE = 2, BATCH = 3, LOGOUT = 4;
+    private static final long FLUSH_MILLIS = 100;
+    /**
+     * Longest record: type, two 10-byte varints, count and steps.
+     */
+    private static final int RECORD_LIMIT = 1 + 10 + 10 + 1 + 255;
+
+    private final File file;
+    private final ServerConfig config;
+    private final int width;
+    private final int height;
+    private final int maxPlayers;
+    /**
+     * Records appended since the last write, and the buffer the recording
+     * thread writes from; swapped under appendLock.
+     */
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private ByteBuffer appended = ByteBuffer.allocate(1 << 16);
+    private ByteBuffer writing = ByteBuffer.allocate(1 << 16);
+    private long last = System.nanoTime();
+    private long records = 0;
+    private FileChannel out;
+    private volatile boolean running = true;
+    private Thread thread;
+
+    /**
+     * @param file the trace, replaced if it exists.
+     * @param config options of the map, written in the header.
+     * @param width map width.
+     * @param height map height.
+     * @param maxPlayers most players on the map.
+     */
+    public TraceRecorder(File file, ServerConfig config, int width, int height, int maxPlayers) {
+        this.file = file;
+        this.config = config;
+        this.width = width;
+        this.height = height;
+        this.maxPlayers = maxPlayers;
+    }
+
+    /**
+     * Opens the file, writes the header and starts the recording thread.
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(4 * 6 + 8);
+        header.putInt(MAGIC).putInt(width).putInt(height).putInt(maxPlayers)
+            .putInt(config.maxPushDepth).putInt(config.regionSide).putLong(config.pushSeed).flip();
+        while (header.hasRemaining())
+            out.write(header);
+        thread = new Thread(this, "trace-recorder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the recording thread, writing what is left.
+     */
+    public void close() {
+        running = false;
+        if (thread == null)
+            return;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A player placed at a position, packed by Server.pack.
+     */
+    public void login(int id, long pos) {
+        appendLock.lock();
+        try {
+            ByteBuffer b = begin(LOGIN, id);
+            putVarint(b, Server.unpackX(pos));
+            putVarint(b, Server.unpackY(pos));
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    public void move(int id, int dx, int dy) {
+        appendLock.lock();
+        try {
+            begin(MOVE, id).put(step(dx, dy));
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * The first n moves of dx and dy, sent as one batch.
+     */
+    public void batch(int id, int[] dx, int[] dy, int n) {
+        appendLock.lock();
+        try {
+            ByteBuffer b = begin(BATCH, id).put((byte) n);
+            for (int i = 0; i < n; i++)
+                b.put(step(dx[i], dy[i]));
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    public void logout(int id) {
+        appendLock.lock();
+        try {
+            begin(LOGOUT, id);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Records written or waiting to be.
+     */
+    public long recordCount() {
+        appendLock.lock();
+        try {
+            return records;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Starts a record, with appendLock held.
+     * @return the buffer to put the rest of it in.
+     */
+    private ByteBuffer begin(byte type, int id) {
+        if (appended.remaining() < RECORD_LIMIT)
+            appended = ByteBuffer.allocate(appended.capacity() * 2).put(appended.flip());
+        long now = System.nanoTime();
+        appended.put(type);
+        putVarint(appended, (now - last) / 1000);
+        // what is left under a microsecond counts towards the next record
+        last = now - (now - last) % 1000;
+        putVarint(appended, id);
+        records++;
+        return appended;
+    }
+
+    public void run() {
+        try {
+            while (running) {
+                LockSupport.parkNanos(this, FLUSH_MILLIS * 1_000_000L);
+                write();
+            }
+            out.close();
+        } catch (IOException ex) {
+            Logger.getLogger(TraceRecorder.class.getName()).log(Level.SEVERE, "Trace recording stopped", ex);
+        }
+    }
+
+    private void write() throws IOException {
+        appendLock.lock();
+        try {
+            ByteBuffer full = appended;
+            appended = writing;
+            writing = full;
+        } finally {
+            appendLock.unlock();
+        }
+        writing.flip();
+        while (writing.hasRemaining())
+            out.write(writing);
+        writing.clear();
+    }
+
+    static byte step(int dx, int dy) {
+        return (byte) ((dx + 1) * 3 + dy + 1);
+    }
+
+    static int stepX(int step) {
+        return step / 3 - 1;
+    }
+
+    static int stepY(int step) {
+        return step % 3 - 1;
+    }
+
+    /**
+     * Puts a non-negative value 7 bits at a time, lowest first, the high
+     * bit of each byte telling whether another one follows.
+     */
+    static void putVarint(ByteBuffer b, long v) {
+        while (v >= 0x80) {
+            b.put((byte) (v | 0x80));
+            v >>>= 7;
+        }
+        b.put((byte) v);
+    }
+
+    static long readVarint(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7f) << shift;
+            if (b < 0x80)
+                return v;
+        }
+    }
+}
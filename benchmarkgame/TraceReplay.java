@@ -0,0 +1,349 @@
+package benchmarkgame;
+
+import benchmarkgame.gameutils.Status;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Offline tool applying a trace recorded by TraceRecorder straight to the
+ * engine, without sockets, to tell the cost of the game logic from that of
+ * the network, e.g. "java benchmarkgame.TraceReplay run.trace --threads=4".
+ *
+ * The whole trace is read first and split by player between the threads,
+ * each applying the commands of its players in the recorded order, as
+ * fast as it can or at the recorded pace times --pace. A login puts the
+ * player where it was placed when recorded, or at a random position if
+ * that one is taken. With one thread every command is applied in the order
+ * the server received it, so a replay always ends with the same map, and
+ * the state digest printed tells whether two replays did; with more, the
+ * moves of different threads interleave as they happen to.
+ *
+ * The map options come from the trace; other server options, e.g.
+ * --engine=cas, apply on top of them.
+ */
+public class TraceReplay {
+    private final Server server;
+    private final int width;
+    private final int height;
+    private final Lane[] lanes;
+    /**
+     * How many times faster than recorded the trace is replayed, or 0 for
+     * as fast as possible.
+     */
+    private final double pace;
+    /**
+     * ID of each recorded player in the replay, -1 while it is not logged
+     * in; and the recorded ID of each player of the replay. An entry of
+     * replayIds is only touched by the thread of its player.
+     */
+    private final int[] replayIds;
+    private final int[] recordedIds;
+    private volatile long start;
+
+    TraceReplay(Server server, int width, int height, Lane[] lanes, int recordedPlayers,
+            int maxPlayers, double pace) {
+        this.server = server;
+        this.width = width;
+        this.height = height;
+        this.lanes = lanes;
+        this.pace = pace;
+        this.replayIds = new int[recordedPlayers];
+        this.recordedIds = new int[maxPlayers];
+        Arrays.fill(replayIds, -1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = 1;
+        double pace = 0;
+        ServerConfig config = new ServerConfig();
+        Lane[] lanes;
+        int recordedPlayers = 0;
+        try {
+            if (args.length < 1 || args[0].startsWith("--"))
+                throw new IllegalArgumentException("No trace given");
+            for (int i = 1; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.startsWith("--threads="))
+                    threads = Integer.parseInt(arg.substring("--threads=".length()));
+                else if (arg.startsWith("--pace="))
+                    pace = arg.equals("--pace=max") ? 0 : Double.parseDouble(arg.substring("--pace=".length()));
+            }
+            if (threads < 1 || pace < 0)
+                throw new IllegalArgumentException("--threads must be positive and --pace not negative");
+            lanes = new Lane[threads];
+            for (int i = 0; i < threads; i++)
+                lanes[i] = new Lane();
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(args[0]), 1 << 16))) {
+                recordedPlayers = read(in, config, lanes);
+            }
+            config.journal = null;
+            config.trace = null;
+            for (int i = 1; i < args.length; i++) {
+                String arg = args[i];
+                int eq = arg.indexOf('=');
+                if (!arg.startsWith("--") || eq < 0)
+                    throw new IllegalArgumentException("Option must be --name=value: " + arg);
+                if (!arg.startsWith("--threads=") && !arg.startsWith("--pace="))
+                    config.set(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage() + "\n\nSyntax: java benchmarkgame.TraceReplay <trace> [--threads=N]"
+                    + " [--pace=max|F] [server options]\n\n"
+                    + "Applies a trace recorded with --trace to the engine, with N threads, as fast as possible\n"
+                    + "or F times the recorded pace.\n\n" + ServerConfig.usage());
+            System.exit(1);
+            return;
+        }
+
+        Server server = Server.offline(config);
+        new TraceReplay(server, config.boardWidth(), config.boardHeight(), lanes, recordedPlayers,
+                config.maxPlayers, pace).run();
+        System.exit(0);
+    }
+
+    /**
+     * Reads the header of a trace into config and its records into the
+     * lanes, by player ID; a record cut short ends the trace.
+     * @return the number of player IDs in the trace.
+     */
+    static int read(DataInputStream in, ServerConfig config, Lane[] lanes) throws IOException {
+        if (in.readInt() != TraceRecorder.MAGIC)
+            throw new IOException("Not a trace");
+        config.width = in.readInt();
+        config.height = in.readInt();
+        config.maxPlayers = in.readInt();
+        config.maxPushDepth = in.readInt();
+        config.regionSide = in.readInt();
+        config.pushSeed = in.readLong();
+        long time = 0;
+        int players = 0;
+        byte[] steps = new byte[255];
+        try {
+            while (true) {
+                byte type = in.readByte();
+                time += TraceRecorder.readVarint(in);
+                int id = (int) TraceRecorder.readVarint(in);
+                int a = 0, b = 0;
+                switch (type) {
+                    case TraceRecorder.LOGIN:
+                        a = (int) TraceRecorder.readVarint(in);
+                        b = (int) TraceRecorder.readVarint(in);
+                        break;
+                    case TraceRecorder.MOVE:
+                        a = in.readUnsignedByte();
+                        break;
+                    case TraceRecorder.BATCH:
+                        b = in.readUnsignedByte();
+                        in.readFully(steps, 0, b);
+                        break;
+                    case TraceRecorder.LOGOUT:
+                        break;
+                    default:
+                        throw new IOException("Unknown record " + type);
+                }
+                Lane lane = lanes[id % lanes.length];
+                if (type == TraceRecorder.BATCH)
+                    a = lane.addSteps(steps, b);
+                lane.add(time, type, id, a, b);
+                players = Math.max(players, id + 1);
+            }
+        } catch (EOFException ex) {
+            return players;
+        }
+    }
+
+    /**
+     * Replays the lanes, one thread each, and prints what it took.
+     */
+    void run() throws InterruptedException {
+        Worker[] workers = new Worker[lanes.length];
+        Thread[] threads = new Thread[lanes.length];
+        CountDownLatch go = new CountDownLatch(1);
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(lanes[i], go);
+            threads[i] = new Thread(workers[i], "replay-" + i);
+            threads[i].start();
+        }
+        start = System.nanoTime();
+        go.countDown();
+        for (Thread t : threads)
+            t.join();
+        long elapsed = System.nanoTime() - start;
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        long records = 0, logins = 0, moves = 0, batches = 0, logouts = 0, displaced = 0, skipped = 0;
+        long recorded = 0;
+        for (Worker w : workers) {
+            latencies.add(w.latencies);
+            records += w.lane.count;
+            logins += w.logins;
+            moves += w.moves;
+            batches += w.batches;
+            logouts += w.logouts;
+            displaced += w.displaced;
+            skipped += w.skipped;
+            if (w.lane.count > 0)
+                recorded = Math.max(recorded, w.lane.times[w.lane.count - 1]);
+        }
+        System.out.println(String.format(Locale.ROOT,
+                "threads=%d pace=%s records=%d logins=%d moves=%d batches=%d logouts=%d displaced=%d skipped=%d"
+                + " recorded=%.3fs elapsed=%.3fs moves/s=%.0f p50_us=%.1f p99_us=%.1f p99.9_us=%.1f max_us=%.1f state=%016x",
+                lanes.length, pace == 0 ? "max" : String.valueOf(pace), records, logins, moves, batches, logouts,
+                displaced, skipped, recorded / 1e6, elapsed / 1e9, moves * 1e9 / Math.max(1, elapsed),
+                latencies.valueAt(50) / 1e3, latencies.valueAt(99) / 1e3, latencies.valueAt(99.9) / 1e3,
+                latencies.max() / 1e3, digest()));
+    }
+
+    /**
+     * Digest of which recorded player stands on each position.
+     */
+    private long digest() {
+        long h = 0xcbf29ce484222325L;
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                int id = server.playerAt(x, y);
+                h = (h ^ (id >= 0 ? recordedIds[id] : -1)) * 0x100000001b3L;
+            }
+        }
+        return h;
+    }
+
+    /**
+     * The records of the players of one thread, in recorded order: the
+     * microseconds since the trace started, the type, the recorded player
+     * ID and two arguments, the position of a login, the step of a move
+     * or the offset in steps and the length of a batch.
+     */
+    static class Lane {
+        long[] times = new long[1024];
+        byte[] types = new byte[1024];
+        int[] ids = new int[1024];
+        int[] as = new int[1024];
+        int[] bs = new int[1024];
+        byte[] steps = new byte[1024];
+        int count = 0;
+        int stepCount = 0;
+
+        void add(long time, byte type, int id, int a, int b) {
+            if (count == times.length) {
+                int size = count * 2;
+                times = Arrays.copyOf(times, size);
+                types = Arrays.copyOf(types, size);
+                ids = Arrays.copyOf(ids, size);
+                as = Arrays.copyOf(as, size);
+                bs = Arrays.copyOf(bs, size);
+            }
+            times[count] = time;
+            types[count] = type;
+            ids[count] = id;
+            as[count] = a;
+            bs[count] = b;
+            count++;
+        }
+
+        /**
+         * @return the offset of the steps added.
+         */
+        int addSteps(byte[] batch, int n) {
+            if (stepCount + n > steps.length)
+                steps = Arrays.copyOf(steps, Math.max(stepCount + n, steps.length * 2));
+            System.arraycopy(batch, 0, steps, stepCount, n);
+            stepCount += n;
+            return stepCount - n;
+        }
+    }
+
+    /**
+     * Applies a lane. Moves are timed from the call, or from when they
+     * were due at the recorded pace, so falling behind counts.
+     */
+    private class Worker implements Runnable {
+        final Lane lane;
+        final CountDownLatch go;
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final int[] dx = new int[255];
+        final int[] dy = new int[255];
+        long logins = 0, moves = 0, batches = 0, logouts = 0, displaced = 0, skipped = 0;
+
+        Worker(Lane lane, CountDownLatch go) {
+            this.lane = lane;
+            this.go = go;
+        }
+
+        public void run() {
+            try {
+                go.await();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            for (int i = 0; i < lane.count; i++) {
+                long due = 0;
+                if (pace > 0) {
+                    due = start + (long) (lane.times[i] * 1000 / pace);
+                    for (long wait; (wait = due - System.nanoTime()) > 0; )
+                        LockSupport.parkNanos(wait);
+                }
+                int rid = lane.ids[i];
+                int id = replayIds[rid];
+                byte type = lane.types[i];
+                if (type == TraceRecorder.LOGIN) {
+                    login(rid, lane.as[i], lane.bs[i]);
+                } else if (id < 0) {
+                    skipped++;
+                } else if (type == TraceRecorder.LOGOUT) {
+                    server.removePlayer(id);
+                    replayIds[rid] = -1;
+                    logouts++;
+                } else {
+                    long from = pace > 0 ? due : System.nanoTime();
+                    if (type == TraceRecorder.MOVE) {
+                        int step = lane.as[i];
+                        server.updatePosition(id, TraceRecorder.stepX(step), TraceRecorder.stepY(step));
+                        moves++;
+                    } else {
+                        int off = lane.as[i], n = lane.bs[i];
+                        for (int k = 0; k < n; k++) {
+                            dx[k] = TraceRecorder.stepX(lane.steps[off + k]);
+                            dy[k] = TraceRecorder.stepY(lane.steps[off + k]);
+                        }
+                        server.updatePositions(id, dx, dy, n);
+                        moves += n;
+                        batches++;
+                    }
+                    latencies.record(System.nanoTime() - from);
+                }
+            }
+        }
+
+        private void login(int rid, int x, int y) {
+            if (replayIds[rid] >= 0)
+                server.removePlayer(replayIds[rid]);
+            replayIds[rid] = -1;
+            int id = server.internPlayer("replay/" + rid);
+            if (id < 0) {
+                skipped++;
+                return;
+            }
+            // the tick engine only places players itself
+            if (server.tickEngine() != null || !server.place(id, x, y)) {
+                if (server.randomPosition(id) != Status.OK) {
+                    server.removePlayer(id);
+                    skipped++;
+                    return;
+                }
+                displaced++;
+            }
+            recordedIds[id] = rid;
+            replayIds[rid] = id;
+            logins++;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package benchmarkgame.gameutils;
+
+/**
+ * Compact binary alternative to the text protocol ("MOVE UP").
+ *
+ * A client opts in by sending HELLO and VERSION as the first two bytes of
+ * the connection, which no text command starts with; the server echoes them
+ * once the player is on the map. From then on every request is REQUEST_SIZE
+ * bytes, the Command ordinal followed by its argument (the Move ordinal for
+ * MOVE), and every reply is REPLY_SIZE bytes, a status followed by the new
+ * position as two big-endian ints.
+ *
+ * A BATCH request carries its number of moves as argument, followed by that
+ * many Move ordinals. It gets a single BATCH_REPLY_SIZE reply: the BATCHED
+ * status, the number of moves made, then the final position.
+ *
+ * A SHOW request gets a reply frame with the SNAPSHOT status and the number
+ * of rows and columns shown instead of a position, followed by the number
+ * of players on the map as an int and by a bitmap of the positions shown,
+ * row by row, the first position in the highest bit of the first byte.
+ *
+ * A STATS request gets a reply frame with the STATS status, the size in
+ * bytes and the number of lines of the server metrics instead of a
+ * position, followed by the lines, each ending with '\n', as the text
+ * STATS command lists them.
+ *
+ * A NOTIFY request with argument 1 asks to be told whenever another
+ * player's move pushes this one, and with argument 0 stops it; it gets a
+ * reply frame with the NOTIFYING status and the argument as x. From then
+ * on a PUSHED frame holding the player's current position may come before
+ * any reply; pushes that happen before it is written are coalesced into
+ * it.
+ *
+ * An ATTACK request carries its radius as argument, from 0 to MAX_RADIUS,
+ * and gets a reply frame with the ATTACKED status, the number of players
+ * hit as x and the radius as y.
+ *
+ * A player the server has no room for gets the handshake answer then a
+ * single reply frame with the FULL status, whatever it sent, and the
+ * server closes the connection.
+ */
+public final class BinaryProtocol {
+    /**
+     * Opening bytes of a binary connection.
+     */
+    public static final byte HELLO = (byte) 0xB1;
+    public static final byte VERSION = 1;
+    /**
+     * Size of a request and of a reply frame.
+     */
+    public static final int REQUEST_SIZE = 2;
+    public static final int REPLY_SIZE = 9;
+    public static final int BATCH_REPLY_SIZE = 10;
+    /**
+     * Most moves in a single batch.
+     */
+    public static final int MAX_BATCH = 255;
+    /**
+     * Largest ATTACK radius.
+     */
+    public static final int MAX_RADIUS = 255;
+    /**
+     * Reply statuses; the position is only meaningful for MOVED.
+     */
+    public static final byte MOVED = 0;
+    public static final byte NOT_MOVED = 1;
+    public static final byte INVALID = 2;
+    public static final byte BATCHED = 3;
+    public static final byte SNAPSHOT = 4;
+    public static final byte STATS = 5;
+    public static final byte PUSHED = 6;
+    public static final byte NOTIFYING = 7;
+    public static final byte ATTACKED = 8;
+    public static final byte FULL = 9;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Size of the bitmap following a SNAPSHOT reply.
+     */
+    public static int bitmapSize(int rows, int cols) {
+        return (rows * cols + 7) / 8;
+    }
+
+    public static int batchMoved(byte[] buf, int off) {
+        return buf[off + 1] & 0xff;
+    }
+
+    public static int batchX(byte[] buf, int off) {
+        return getInt(buf, off + 2);
+    }
+
+    public static int batchY(byte[] buf, int off) {
+        return getInt(buf, off + 6);
+    }
+
+    public static int replyX(byte[] buf, int off) {
+        return getInt(buf, off + 1);
+    }
+
+    public static int replyY(byte[] buf, int off) {
+        return getInt(buf, off + 5);
+    }
+
+    private static int getInt(byte[] buf, int off) {
+        return (buf[off] & 0xff) << 24 | (buf[off + 1] & 0xff) << 16
+            | (buf[off + 2] & 0xff) << 8 | (buf[off + 3] & 0xff);
+    }
+}
@@ -12,5 +12,5 @@ package benchmarkgame.gameutils;
  */
 
 public enum Command {
-    MOVE, BUY, ATTACK, SHOW
+    MOVE, BUY, ATTACK, SHOW, BATCH, STATS, NOTIFY
 }
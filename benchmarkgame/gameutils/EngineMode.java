@@ -0,0 +1,22 @@
+package benchmarkgame.gameutils;
+
+/**
+ * How the game server applies the players' moves to the map.
+ */
+public enum EngineMode {
+    /**
+     * Each connection applies its own moves, taking the stripes of the
+     * regions involved.
+     */
+    LOCKS,
+    /**
+     * Connections publish their moves into a ring that a single simulation
+     * thread applies, tick by tick, without locks.
+     */
+    TICK,
+    /**
+     * Each connection applies its own moves with compare-and-set on the
+     * cells involved, without locks.
+     */
+    CAS
+}
@@ -0,0 +1,21 @@
+package benchmarkgame.gameutils;
+
+/**
+ * When the server writes the replies buffered for a connection.
+ */
+public enum FlushPolicy {
+    /**
+     * After every reply.
+     */
+    IMMEDIATE,
+    /**
+     * After every N replies, and whenever the connection has no further
+     * request waiting.
+     */
+    COUNT,
+    /**
+     * Once the connection has no further request waiting, so a burst of
+     * pipelined requests is answered with a single write.
+     */
+    BATCH
+}
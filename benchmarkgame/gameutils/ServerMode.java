@@ -0,0 +1,19 @@
+package benchmarkgame.gameutils;
+
+/**
+ * Connection handling strategies available to the game server.
+ */
+public enum ServerMode {
+    /**
+     * One platform thread per connection, blocking on the socket streams.
+     */
+    BLOCKING,
+    /**
+     * One virtual thread per connection, blocking on the socket streams.
+     */
+    VIRTUAL,
+    /**
+     * A small fixed set of selector threads multiplexing non-blocking channels.
+     */
+    NIO
+}
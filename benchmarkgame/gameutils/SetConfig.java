@@ -1,5 +1,9 @@
 package benchmarkgame.gameutils;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 public class SetConfig {
   public static String configStr(int numBig, int numLITTLE) {
     String config = "0x";
@@ -26,41 +30,74 @@ public class SetConfig {
     return config;
   }
 
-  public static int getProcessID() throws
-    NoSuchFieldException,
-    IllegalAccessException,
-    NoSuchMethodException,
-    java.lang.reflect.InvocationTargetException
-  {
-    java.lang.management.RuntimeMXBean runtime =
-      java.lang.management.ManagementFactory.getRuntimeMXBean();
-    java.lang.reflect.Field jvm = runtime.getClass().getDeclaredField("jvm");
-    jvm.setAccessible(true);
-    sun.management.VMManagement mgmt =
-      (sun.management.VMManagement) jvm.get(runtime);
-    java.lang.reflect.Method pid_method =
-      mgmt.getClass().getDeclaredMethod("getProcessId");
-    pid_method.setAccessible(true);
-    return (Integer)pid_method.invoke(mgmt);
+  /**
+   * ID of this process, as taskset takes it.
+   */
+  public static long getProcessID() {
+    return ProcessHandle.current().pid();
+  }
+
+  /**
+   * Linux ID of the calling thread, read from /proc/thread-self, or -1
+   * where there is none, e.g. on a virtual thread, which has no thread of
+   * its own.
+   */
+  public static long getThreadID() {
+    if (Thread.currentThread().isVirtual())
+      return -1;
+    try {
+      Path self = Files.readSymbolicLink(Paths.get("/proc/thread-self"));
+      return Long.parseLong(self.getFileName().toString());
+    } catch (Exception e) {
+      return -1;
+    }
   }
 
   public static void setConfig(int numBig, int numLITTLE) {
+    taskset("-a", "-p", configStr(numBig, numLITTLE), String.valueOf(getProcessID()));
+  }
+
+  /**
+   * Pins every thread of this process to a list of CPUs such as "0-3,6",
+   * as taskset -c reads it. Threads started later inherit the affinity of
+   * the thread starting them.
+   * @return whether taskset succeeded.
+   */
+  public static boolean setAffinity(String cpus) {
+    return taskset("-a", "-p", "-c", cpus, String.valueOf(getProcessID()));
+  }
+
+  /**
+   * Pins the calling thread, and so the threads it starts from now on, to
+   * a list of CPUs; does nothing on a virtual thread.
+   * @return whether taskset succeeded.
+   */
+  public static boolean pinThread(String cpus) {
+    long tid = getThreadID();
+    if (tid < 0) {
+      System.err.println("Cannot pin " + Thread.currentThread() + " to " + cpus);
+      return false;
+    }
+    return taskset("-p", "-c", cpus, String.valueOf(tid));
+  }
+
+  private static boolean taskset(String... args) {
+    String[] cmd = new String[args.length + 1];
+    cmd[0] = "taskset";
+    System.arraycopy(args, 0, cmd, 1, args.length);
     try {
-      Runtime r = Runtime.getRuntime();
-      //
-      // Build the command:
-      String configStr = configStr(numBig, numLITTLE);
-      final int pid = getProcessID();
-      String cmd = "taskset -pa " + configStr + " " + pid;
-      //
-      // Set the configuration of cores:
-      Process p = r.exec(cmd);
-      // Check for ls failure
+      Process p = new ProcessBuilder(cmd)
+        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start();
       if (p.waitFor() != 0) {
-        System.err.println("exit value = " + p.exitValue());
+        System.err.println(String.join(" ", cmd) + ": exit value = " + p.exitValue());
+        return false;
       }
+      return true;
     } catch (Exception e) {
       e.printStackTrace();
+      return false;
     }
   }
 }
@@ -0,0 +1,67 @@
+package benchmarkgame;
+
+import benchmarkgame.gameutils.EngineMode;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Server.attack on large maps filled to a given share of their positions,
+ * by players drawn at random; the map does not move meanwhile. The time
+ * should follow the players in the buckets around the radius, not the
+ * side of the map, which only adds the cache misses of reading positions
+ * spread over more memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class AttackBenchmark {
+    @Param({"1024", "4096"})
+    public int side;
+    /**
+     * Percentage of the positions taken.
+     */
+    @Param({"10", "50"})
+    public int occupancy;
+    @Param({"4", "16", "64"})
+    public int radius;
+    @Param({"LOCKS", "CAS"})
+    public EngineMode engine;
+
+    Server server;
+    int players;
+
+    @Setup
+    public void setUp() throws Exception {
+        players = (int) ((long) side * side * occupancy / 100);
+        BenchmarkMap map = new BenchmarkMap(side, side, players, engine);
+        map.fill(players);
+        server = map.server;
+    }
+
+    /**
+     * The attackers of a thread, drawn among the players.
+     */
+    @State(Scope.Thread)
+    public static class Attacker {
+        SplittableRandom random = new SplittableRandom(BenchmarkMap.SEED);
+    }
+
+    @Benchmark
+    public int attack(Attacker a) {
+        return server.attack(a.random.nextInt(players), radius);
+    }
+}
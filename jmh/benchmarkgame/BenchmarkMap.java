@@ -0,0 +1,113 @@
+package benchmarkgame;
+
+import benchmarkgame.gameutils.EngineMode;
+import benchmarkgame.gameutils.Status;
+import java.util.SplittableRandom;
+
+/**
+ * A game map laid out for a benchmark: an offline server, without journal,
+ * whose players are placed at chosen positions or at positions drawn from
+ * a fixed seed, so every run measures the same map.
+ *
+ * Regions of the map can be reserved for the layout of each benchmark
+ * thread before the rest is filled.
+ */
+class BenchmarkMap {
+    static final long SEED = 42;
+
+    final Server server;
+    final int width;
+    final int height;
+    /**
+     * Positions taken or reserved so far, row by row.
+     */
+    private final boolean[] used;
+    private final SplittableRandom random = new SplittableRandom(SEED);
+    private int names = 0;
+
+    /**
+     * A map moved by the lock-based engine.
+     * @param width map width.
+     * @param height map height.
+     * @param maxPlayers players the map must have room for.
+     * @throws Exception
+     */
+    BenchmarkMap(int width, int height, int maxPlayers) throws Exception {
+        this(width, height, maxPlayers, EngineMode.LOCKS);
+    }
+
+    /**
+     * @param engine engine moving the players; not TICK, whose moves wait
+     * for the next tick.
+     * @throws Exception
+     */
+    BenchmarkMap(int width, int height, int maxPlayers, EngineMode engine) throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.engine = engine;
+        config.width = width;
+        config.height = height;
+        config.maxPlayers = maxPlayers;
+        config.pushSeed = SEED;
+        config.journal = null;
+        this.server = Server.offline(config);
+        this.width = width;
+        this.height = height;
+        this.used = new boolean[width * height];
+    }
+
+    /**
+     * Logs a player in at a given position, reserved or not.
+     * @return its ID.
+     */
+    synchronized int place(int x, int y) {
+        int id = server.internPlayer(name());
+        if (id < 0 || !server.place(id, x, y))
+            throw new IllegalStateException("Cannot place a player at (" + x + ", " + y + ")");
+        used[y * width + x] = true;
+        return id;
+    }
+
+    /**
+     * Keeps a rectangle free of the players placed by fill.
+     */
+    synchronized void reserve(int x, int y, int w, int h) {
+        for (int j = y; j < y + h; j++)
+            for (int i = x; i < x + w; i++)
+                used[j * width + i] = true;
+    }
+
+    /**
+     * Logs n players in at random positions neither taken nor reserved.
+     */
+    synchronized void fill(int n) {
+        int free = 0;
+        for (boolean u : used)
+            if (!u)
+                free++;
+        if (n > free)
+            throw new IllegalArgumentException("Only " + free + " positions left for " + n + " players");
+        for (int placed = 0; placed < n; ) {
+            int x = random.nextInt(width), y = random.nextInt(height);
+            if (!used[y * width + x]) {
+                place(x, y);
+                placed++;
+            }
+        }
+    }
+
+    /**
+     * Logs a player in where the server chooses, like a new connection;
+     * only once the map is filled, as fill does not know the position.
+     * @return its ID.
+     */
+    synchronized int spawn() {
+        int id = server.internPlayer(name());
+        if (id < 0 || server.randomPosition(id) != Status.OK)
+            throw new IllegalStateException("No room left for another player");
+        return id;
+    }
+
+    private String name() {
+        return "bench-" + names++;
+    }
+}
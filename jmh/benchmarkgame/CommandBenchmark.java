@@ -0,0 +1,100 @@
+package benchmarkgame;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The text command path of a Handler without its connection: a line split
+ * and run by handleCommand, engine included, and the formatting of move
+ * replies alone. Replies are encoded into the handler's ReplyWriter as
+ * usual and dropped instead of written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+    @Param({"128", "1024"})
+    public int side;
+    @Param({"100", "10000"})
+    public int players;
+    /**
+     * Commands sent in turn; each pair leaves the player where it was if
+     * nothing is in the way.
+     */
+    @Param({"MOVE RIGHT|MOVE LEFT", "BATCH RIGHT UP LEFT DOWN|BATCH UR DL UL DR"})
+    public String lines;
+
+    private BenchmarkMap map;
+
+    @Setup
+    public void setUp() throws Exception {
+        map = new BenchmarkMap(side, side, players + 64);
+        map.fill(players);
+    }
+
+    /**
+     * The handler of a thread, logged in like a new connection.
+     */
+    @State(Scope.Thread)
+    public static class Player {
+        BenchmarkHandler handler;
+        String[] lines;
+        int next = 0;
+        final long position = Server.pack(1234, 567);
+
+        @Setup
+        public void setUp(CommandBenchmark b) {
+            lines = b.lines.split("\\|");
+            handler = new BenchmarkHandler(b.map.server, b.map.spawn());
+        }
+    }
+
+    @Benchmark
+    public int handleCommand(Player p) throws Exception {
+        String line = p.lines[p.next];
+        p.next = (p.next + 1) % p.lines.length;
+        p.handler.handleCommand(p.handler.clientID, line.split(" "));
+        return p.handler.replies.pending();
+    }
+
+    @Benchmark
+    public int textMoveReply(Player p) throws Exception {
+        p.handler.replyMove(Handler.TEXT_MOVE, p.position);
+        return p.handler.replies.pending();
+    }
+
+    @Benchmark
+    public int binaryMoveReply(Player p) throws Exception {
+        p.handler.replyMove(Handler.BINARY_MOVE, p.position);
+        return p.handler.replies.pending();
+    }
+}
+
+/**
+ * A Handler serving no connection: its replies are dropped when flushed.
+ */
+class BenchmarkHandler extends Handler {
+    BenchmarkHandler(Server server, int playerID) {
+        this.s = server;
+        this.playerID = playerID;
+        this.clientID = "127.0.0.1/" + (40000 + playerID);
+    }
+
+    @Override
+    protected void drain() {
+        replies.buffer().clear();
+    }
+}
@@ -0,0 +1,136 @@
+package benchmarkgame;
+
+import benchmarkgame.gameutils.EngineMode;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Server.updatePosition with the lock-based or the cas engine, one mover
+ * per thread, each in a block of the map laid out for the case measured:
+ * <ul>
+ * <li>FREE: the target position is free, the mover steps right and back.
+ * <li>PUSH: a player stands on the target with free positions all around;
+ * one operation is the push, the mover stepping back and the pushed
+ * player returning, so the last two are free moves.
+ * <li>CHAIN: the mover stands in the middle of a packed block, so the
+ * chain grows to the push depth and the move is refused; nothing changes
+ * and every operation walks the longest chain.
+ * </ul>
+ * Blocks are multiples of the region side, so movers never share a stripe
+ * or a cell, and the rest of the map is filled with players at random
+ * positions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MoveBenchmark {
+    public enum Layout { FREE, PUSH, CHAIN }
+
+    @Param({"128", "1024"})
+    public int side;
+    /**
+     * Players filling the map around the blocks.
+     */
+    @Param({"100", "10000"})
+    public int players;
+    @Param({"FREE", "PUSH", "CHAIN"})
+    public Layout layout;
+    @Param({"LOCKS", "CAS"})
+    public EngineMode engine;
+
+    Server server;
+    private int block;
+    private int blocksPerRow;
+    private BenchmarkMap map;
+    private final AtomicInteger nextBlock = new AtomicInteger();
+
+    @Setup
+    public void setUp(BenchmarkParams params) throws Exception {
+        int region = new ServerConfig().regionSide;
+        int depth = new ServerConfig().maxPushDepth;
+        int needed = layout == Layout.FREE ? 3 : layout == Layout.PUSH ? 5 : 2 * depth + 5;
+        block = (needed + region - 1) / region * region;
+        blocksPerRow = side / block;
+        int threads = params.getThreads();
+        if (blocksPerRow * blocksPerRow < threads)
+            throw new IllegalArgumentException("A " + side + " map has no room for " + threads + " " + layout + " blocks");
+        map = new BenchmarkMap(side, side, players + threads * block * block, engine);
+        for (int t = 0; t < threads; t++)
+            map.reserve(t % blocksPerRow * block, t / blocksPerRow * block, block, block);
+        map.fill(players);
+        server = map.server;
+    }
+
+    /**
+     * The mover of a thread and its block.
+     */
+    @State(Scope.Thread)
+    public static class Mover {
+        int id;
+        int dx = 1;
+        /**
+         * For PUSH, the player pushed and the position it is pushed from.
+         */
+        int pushed;
+        int pushedX;
+        int pushedY;
+
+        @Setup
+        public void setUp(MoveBenchmark b) {
+            int t = b.nextBlock.getAndIncrement();
+            int x = t % b.blocksPerRow * b.block, y = t / b.blocksPerRow * b.block;
+            switch (b.layout) {
+                case FREE:
+                    id = b.map.place(x + 1, y + 1);
+                    break;
+                case PUSH:
+                    id = b.map.place(x + 1, y + 2);
+                    pushedX = x + 2;
+                    pushedY = y + 2;
+                    pushed = b.map.place(pushedX, pushedY);
+                    break;
+                default:
+                    int c = b.block / 2;
+                    for (int j = 0; j < b.block; j++)
+                        for (int i = 0; i < b.block; i++)
+                            if (i != c || j != c)
+                                b.map.place(x + i, y + j);
+                    id = b.map.place(x + c, y + c);
+            }
+        }
+    }
+
+    @Benchmark
+    public long updatePosition(Mover m) {
+        switch (layout) {
+            case FREE:
+                long ret = server.updatePosition(m.id, m.dx, 0);
+                m.dx = -m.dx;
+                return ret;
+            case PUSH:
+                ret = server.updatePosition(m.id, 1, 0);
+                server.updatePosition(m.id, -1, 0);
+                long at = server.position(m.pushed);
+                server.updatePosition(m.pushed,
+                        m.pushedX - Server.unpackX(at), m.pushedY - Server.unpackY(at));
+                return ret;
+            default:
+                return server.updatePosition(m.id, 1, 0);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package benchmarkgame;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Server.toString, a snapshot of the map rendered as text, on maps smaller
+ * and larger than the rendered corner. Threads taking snapshots at the
+ * same time wait for each other.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+    @Param({"64", "1024"})
+    public int side;
+    /**
+     * Percentage of the map taken by players.
+     */
+    @Param({"10", "90"})
+    public int occupancy;
+
+    Server server;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkMap map = new BenchmarkMap(side, side, side * side);
+        map.fill((int) ((long) side * side * occupancy / 100));
+        server = map.server;
+    }
+
+    @Benchmark
+    public String render() {
+        return server.toString();
+    }
+}
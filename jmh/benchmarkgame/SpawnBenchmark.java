@@ -0,0 +1,59 @@
+package benchmarkgame;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Server.randomPosition on a map filled to a given occupancy. One
+ * operation is a whole visit, like a connection that logs in and leaves:
+ * internPlayer, randomPosition and removePlayer, which keeps the
+ * occupancy steady.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpawnBenchmark {
+    private static final String NAME = "127.0.0.1/41317";
+
+    @Param({"128", "1024"})
+    public int side;
+    /**
+     * Percentage of the map taken by players.
+     */
+    @Param({"10", "50", "90", "99"})
+    public int occupancy;
+
+    Server server;
+
+    @Setup
+    public void setUp(BenchmarkParams params) throws Exception {
+        int cells = side * side;
+        // room for every thread to place its visitor
+        int players = Math.min((int) ((long) cells * occupancy / 100), cells - params.getThreads());
+        BenchmarkMap map = new BenchmarkMap(side, side, cells);
+        map.fill(players);
+        server = map.server;
+    }
+
+    @Benchmark
+    public int randomPosition() {
+        int id = server.internPlayer(NAME);
+        server.randomPosition(id);
+        server.removePlayer(id);
+        return id;
+    }
+}